@@ -18,6 +18,7 @@ package com.kurento.kas.sip.transaction;
 
 import javax.sip.ResponseEvent;
 import javax.sip.message.Request;
+import javax.sip.message.Response;
 
 import com.kurento.kas.sip.ua.KurentoSipException;
 import com.kurento.kas.sip.ua.SipCall;
@@ -32,7 +33,10 @@ public class CBye extends CTransaction {
 
 	@Override
 	public void processResponse(ResponseEvent event) {
-		// DO NOTHING
+		int statusCode = event.getResponse().getStatusCode();
+		if (statusCode == Response.UNAUTHORIZED
+				|| statusCode == Response.PROXY_AUTHENTICATION_REQUIRED)
+			handleAuthChallenge(event);
 	}
 
 }
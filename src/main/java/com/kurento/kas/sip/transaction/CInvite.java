@@ -23,10 +23,8 @@ import javax.sip.DialogState;
 import javax.sip.InvalidArgumentException;
 import javax.sip.ResponseEvent;
 import javax.sip.SipException;
-import javax.sip.header.AllowHeader;
 import javax.sip.header.CSeqHeader;
 import javax.sip.header.ContentTypeHeader;
-import javax.sip.header.SupportedHeader;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
 
@@ -46,14 +44,11 @@ public class CInvite extends CTransaction {
 	private static final Logger log = LoggerFactory.getLogger(CInvite.class
 			.getSimpleName());
 
+	private volatile boolean responseReceived = false;
+
 	public CInvite(SipUA sipUA, SipCall call) throws KurentoSipException {
 		super(Request.INVITE, sipUA, call);
 
-		// INVITE requires to increase sequence number
-		CTransaction.cSeqNumber++;
-		request.addHeader(buildAllowHeader());
-		request.addHeader(buildSupportedHeader());
-
 		log.debug("Creating offer...");
 		CreateSdpOfferObserver o = new CreateSdpOfferObserver() {
 			@Override
@@ -79,33 +74,13 @@ public class CInvite extends CTransaction {
 		call.createSdpOffer(o);
 	}
 
-	private AllowHeader buildAllowHeader() throws KurentoSipException {
-		try {
-			// Dialog is null here. Make sure you don't use it
-			return sipUA.getHeaderFactory().createAllowHeader(
-					"INVITE,ACK,CANCEL,BYE");
-		} catch (ParseException e) {
-			throw new KurentoSipException(
-					"Parse Exception building Header Factory", e);
-		}
-	}
-
-	private SupportedHeader buildSupportedHeader() throws KurentoSipException {
-		try {
-			// Dialog is null here. Make sure you don't use it
-			return sipUA.getHeaderFactory().createSupportedHeader("100rel");
-		} catch (ParseException e) {
-			throw new KurentoSipException(
-					"Parse Exception building Support header", e);
-		}
-	}
-
 	@Override
 	public void processResponse(ResponseEvent event) {
 		Response response = event.getResponse();
 		int statusCode = response.getStatusCode();
 		log.info("processResponse: " + statusCode + " dialog: " + this.dialog
 				+ ", state: " + dialog.getState());
+		responseReceived = true;
 
 		// Processing response
 		if (statusCode == Response.TRYING) {
@@ -124,6 +99,15 @@ public class CInvite extends CTransaction {
 			log.info("<<<<<<< " + statusCode + " 1xx: dialog: " + this.dialog
 					+ ", state: " + dialog.getState());
 			// DO NOTHING
+		} else if (statusCode == Response.UNAUTHORIZED
+				|| statusCode == Response.PROXY_AUTHENTICATION_REQUIRED) {
+			log.info("<<<<<<< " + statusCode + " Authentication required: dialog: "
+					+ this.dialog + ", state: " + dialog.getState());
+			if (handleAuthChallenge(event))
+				// New client transaction and dialog for the authenticated INVITE
+				call.outgoingTransactionChanged(this);
+			else
+				call.terminatedCall(getFailureReason());
 		} else if (statusCode == Response.REQUEST_TERMINATED) {
 			log.info("<<<<<<< " + statusCode + " TERMINATED: dialog: "
 					+ this.dialog.getDialogId() + ", state: "
@@ -190,12 +174,56 @@ public class CInvite extends CTransaction {
 					+ " Response code not supported : dialog: " + this.dialog
 					+ ", state: " + dialog.getState());
 			log.error("Unsupported status code received:" + statusCode);
-			call.terminatedCall(Reason.ERROR);
+			call.terminatedCall(getFailureReason());
 			// sendAck(); // ACK is automatically sent by the SIP Stack for
 			// codes >4xx
 		}
 	}
 
+	@Override
+	public void processTimeout() {
+		if (call.isTerminating()) {
+			log.info("INVITE timeout while the call is hung up");
+			call.terminatedCall(Reason.LOCAL_HANGUP);
+			return;
+		}
+		super.processTimeout();
+	}
+
+	@Override
+	public boolean processTransportError() {
+		// Nothing reached the remote party: the INVITE can be sent again
+		// through a new flow. Otherwise it may be taken as a second INVITE
+		if (!responseReceived && resend()) {
+			// New client transaction and dialog
+			call.outgoingTransactionChanged(this);
+			return true;
+		}
+
+		if (call.isTerminating()) {
+			log.info("INVITE lost on transport error while the call is hung up");
+			call.terminatedCall(Reason.LOCAL_HANGUP);
+			return false;
+		}
+		log.warn("INVITE lost on transport error");
+		call.transportError();
+		return false;
+	}
+
+	/*
+	 * The INVITE is not sent again once the call is hung up, so the call
+	 * ends as hung up rather than failed
+	 */
+	private Reason getFailureReason() {
+		return call.isTerminating() ? Reason.LOCAL_HANGUP : Reason.ERROR;
+	}
+
+	@Override
+	void onFailover() {
+		// New client transaction and dialog
+		call.outgoingTransactionChanged(this);
+	}
+
 	private void sendAck(byte[] sdp) throws KurentoSipException {
 		// Non 2XX responses will cause the SIP Stack to send the ACK message
 		// automatically
@@ -212,10 +240,9 @@ public class CInvite extends CTransaction {
 						.createContentTypeHeader("application", "SDP");
 				ackRequest.setContent(sdp, contentTypeHeader);
 			}
+			sipUA.getWireTrace().traceSent(ackRequest);
+			sipUA.getFlightRecorder().messageSent(ackRequest);
 			dialog.sendAck(ackRequest);
-			log.info("SIP send ACK\n" + ">>>>>>>>>> SIP send ACK >>>>>>>>>>\n"
-					+ ackRequest.toString() + "\n"
-					+ ">>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>");
 		} catch (InvalidArgumentException e) {
 			String msg = "Invalid Argument Exception while sending ACK for transaction: "
 					+ this.dialog.getDialogId();
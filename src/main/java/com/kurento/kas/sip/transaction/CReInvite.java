@@ -0,0 +1,119 @@
+/*
+Kurento Sip User Agent implementation.
+Copyright (C) <2011>  <Tikal Technologies>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License version 3
+as published by the Free Software Foundation.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package com.kurento.kas.sip.transaction;
+
+import javax.sip.InvalidArgumentException;
+import javax.sip.ResponseEvent;
+import javax.sip.SipException;
+import javax.sip.address.Address;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.kurento.kas.call.TerminatedCall.Reason;
+import com.kurento.kas.call.impl.CallBase.SetRemoteSdpObserver;
+import com.kurento.kas.sip.ua.KurentoSipException;
+import com.kurento.kas.sip.ua.SipCall;
+import com.kurento.kas.sip.ua.SipUA;
+import com.kurento.kas.ua.KurentoException;
+
+/**
+ * re-INVITE of an established call that moves its remote target to a new
+ * Contact, e.g. after a network handover, with a new offer for the media on
+ * the new address. The answer is applied before the ACK. A failed re-INVITE
+ * leaves the call as it was (rfc3261 14.1), except when the dialog is gone.
+ */
+public class CReInvite extends CTransaction {
+
+	private static final Logger log = LoggerFactory.getLogger(CReInvite.class
+			.getSimpleName());
+
+	public CReInvite(SipUA sipUA, SipCall call, Address contact, String sdp)
+			throws KurentoSipException {
+		super(Request.INVITE, sipUA, call);
+		request.setHeader(sipUA.getHeaderFactory().createContactHeader(
+				contact));
+		log.debug("Moving call " + call.getId() + " to Contact " + contact);
+		sendRequest(sdp);
+	}
+
+	@Override
+	public void processResponse(ResponseEvent event) {
+		Response response = event.getResponse();
+		int statusCode = response.getStatusCode();
+
+		if (statusCode < 200) {
+			// DO NOTHING
+		} else if (statusCode == Response.OK) {
+			log.info("<<<<<<< 200 OK: call " + call.getId() + " moved to "
+					+ request.getHeader(ContactHeader.NAME));
+			byte[] rawContent = response.getRawContent();
+			if (rawContent != null && rawContent.length > 0) {
+				processSdpAnswer(rawContent);
+			} else {
+				log.warn("re-INVITE response received with no SDP");
+				sendAck();
+			}
+		} else if (statusCode == Response.UNAUTHORIZED
+				|| statusCode == Response.PROXY_AUTHENTICATION_REQUIRED) {
+			handleAuthChallenge(event);
+		} else if (statusCode == Response.CALL_OR_TRANSACTION_DOES_NOT_EXIST
+				|| statusCode == Response.REQUEST_TIMEOUT) {
+			log.warn("<<<<<<< " + statusCode + ": call " + call.getId()
+					+ " lost on handover");
+			call.terminatedCall(Reason.ERROR);
+		} else {
+			log.warn("<<<<<<< " + statusCode + ": call " + call.getId()
+					+ " not moved, keeping previous Contact");
+		}
+	}
+
+	private void processSdpAnswer(byte[] rawContent) {
+		call.setRemoteSdp(new String(rawContent), new SetRemoteSdpObserver() {
+			@Override
+			public void onSuccess() {
+				sendAck();
+			}
+
+			@Override
+			public void onError(KurentoException error) {
+				// The 200 OK is acknowledged anyway: rfc3261 13.2.2.4
+				sendAck();
+				sipUA.getErrorHandler().onCallError(call, error);
+			}
+		});
+	}
+
+	private void sendAck() {
+		try {
+			Request ackRequest = dialog.createAck(((CSeqHeader) request
+					.getHeader(CSeqHeader.NAME)).getSeqNumber());
+			sipUA.getWireTrace().traceSent(ackRequest);
+			sipUA.getFlightRecorder().messageSent(ackRequest);
+			dialog.sendAck(ackRequest);
+		} catch (InvalidArgumentException e) {
+			log.error("Unable to create ACK for re-INVITE", e);
+		} catch (SipException e) {
+			log.error("Unable to send ACK for re-INVITE", e);
+		}
+	}
+
+}
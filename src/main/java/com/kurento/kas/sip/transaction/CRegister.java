@@ -16,19 +16,16 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>
  */
 package com.kurento.kas.sip.transaction;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
-import java.util.Locale;
+import java.util.ListIterator;
 
 import javax.sip.InvalidArgumentException;
 import javax.sip.ResponseEvent;
-import javax.sip.address.URI;
-import javax.sip.header.AuthorizationHeader;
+import javax.sip.address.Address;
 import javax.sip.header.CallIdHeader;
-import javax.sip.header.HeaderFactory;
-import javax.sip.header.ProxyAuthenticateHeader;
-import javax.sip.header.WWWAuthenticateHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.ExpiresHeader;
+import javax.sip.header.RetryAfterHeader;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
 
@@ -83,19 +80,57 @@ public class CRegister extends CTransaction {
 		}
 	}
 
+	public Register getRegister() {
+		return register;
+	}
+
+	public int getExpires() {
+		return expires;
+	}
+
+	@Override
+	Register getCredentials() {
+		return register;
+	}
+
+	// With a persistent connection the binding belongs to the flow kept
+	// alive to the outbound proxy: rfc5626 4.2
+	@Override
+	boolean isBoundToFlow() {
+		return sipUA.getPreferences().isPersistentConnection();
+	}
+
+	// REGISTER CSeq is kept by the registration: RFC3261 10.2
+	@Override
+	long getNextCSeqNumber(long cSeqNumber) {
+		return sipRegister.getCseq();
+	}
+
 	@Override
 	public void processResponse(ResponseEvent event) {
 		Response response = event.getResponse();
 		int statusCode = response.getStatusCode();
 
+		if (statusCode >= 200 && statusCode != Response.UNAUTHORIZED
+				&& statusCode != Response.PROXY_AUTHENTICATION_REQUIRED)
+			sipUA.getRegisterTracker().complete(this);
+
 		if (statusCode == Response.OK) {
 			log.info("<<<<<<< 200 OK: Register sucessful for user: "
 					+ register.getUri());
 			if (expires > 0) {
-				long period = (long) (expires * 1000 * 0.5);
-				log.debug("Period = " + expires);
+				int grantedExpires = getGrantedExpires(response);
+				long period = sipUA.getRegisterScheduler().onRegistered(
+						sipRegister, grantedExpires);
+				log.debug("Granted expires = " + grantedExpires
+						+ "; refresh period = " + period);
 				sipUA.getWakeupTimer().schedule(
-						sipRegister.getSipRegisterTimerTask(), period, period);
+						sipRegister.getSipRegisterTimerTask(),
+						period,
+						period,
+						sipUA.getPreferences()
+								.getSipRegRefreshToleranceSeconds() * 1000L);
+				sipUA.onNatBindingRefreshed();
 				sipUA.getRegisterHandler().onUserOnline(register);
 			} else {
 				sipUA.getRegisterHandler().onUserOffline(register);
@@ -104,20 +139,19 @@ public class CRegister extends CTransaction {
 		} else if (statusCode == Response.UNAUTHORIZED
 				|| statusCode == Response.PROXY_AUTHENTICATION_REQUIRED) {
 			// Peer Authentication
-			try {
-				sendWithAuth(event);
-			} catch (KurentoSipException e) {
-				String msg = "Unable to send Auth REGISTER";
-				log.error(msg, e);
-				sipUA.getRegisterHandler().onRegisterError(register,
-						new KurentoException(e));
+			if (!handleAuthChallenge(event)) {
+				log.warn("<<<<<<< " + statusCode
+						+ ": Register Failure. Unable to authenticate user "
+						+ register.getUri());
+				sipUA.getRegisterTracker().complete(this);
+				sipUA.getRegisterHandler().onAuthenticationFailure(register);
 			}
 		} else if (statusCode == Response.REQUEST_TIMEOUT) {
 			// 408: Request TimeOut
 			log.warn("<<<<<<< 408 REQUEST_TIMEOUT: Register Failure. Unable to contact registrar from "
 					+ register.getUri());
 			sipUA.getRegisterHandler().onUserOffline(register);
-			// TODO: retry
+			scheduleRetry(getRetryAfter(response));
 		} else if (statusCode == Response.NOT_FOUND) { // 404: Not Found
 			log.warn("<<<<<<< 404 NOT_FOUND: Register Failure. User "
 					+ register.getUri() + " not found");
@@ -139,6 +173,7 @@ public class CRegister extends CTransaction {
 					+ response.getStatusCode());
 			sipUA.getRegisterHandler().onRegisterError(register,
 					new KurentoException("503 SERVICE_UNAVAILABLE"));
+			scheduleRetry(getRetryAfter(response));
 		} else { // Non supported response code Discard
 			log.warn("Register Failure. Status code: "
 					+ response.getStatusCode());
@@ -150,117 +185,69 @@ public class CRegister extends CTransaction {
 	@Override
 	public void processTimeout() {
 		log.warn("Register request timeout for uri: " + register.getUri());
+		sipUA.getRegisterTracker().complete(this);
 		sipUA.getRegisterHandler().onUserOffline(register);
-		// TODO: retry
+		scheduleRetry(-1);
 	}
 
-	private void sendWithAuth(ResponseEvent event) throws KurentoSipException {
-		Response response = event.getResponse();
-		int statusCode = response.getStatusCode();
-
-		createRequest();
-
-		if (statusCode == 401 || statusCode == 407) { // 401 Peer Authentication
-			log.info("Authentication Required in REGISTER transaction for user: "
-					+ register.getUri());
-			AuthorizationHeader authorization = getAuthorizationHearder(response);
-			request.setHeader(authorization);
-		} else if (statusCode == 407) { // 407: Proxy Auth Required
-			log.info("Proxy Authentication Required in REGISTER transaction for user: "
-					+ register.getUri());
-			ProxyAuthenticateHeader proxyAuthenticateHeader;
-			proxyAuthenticateHeader = (ProxyAuthenticateHeader) response
-					.getHeader(ProxyAuthenticateHeader.NAME);
-			log.debug("ProxyAuthenticateHeader is "
-					+ proxyAuthenticateHeader.toString());
-			request.setHeader(proxyAuthenticateHeader);
+	@Override
+	public boolean processTransportError() {
+		log.warn("Register request lost on transport error for uri: "
+				+ register.getUri());
+		sipUA.getRegisterTracker().complete(this);
+		if (expires == 0) {
+			sipUA.getRegisterHandler().onUserOffline(register);
+			return false;
 		}
 
-		sendRequest(); // 2nd request with authentication
-	}
-
-	// AuthenticationHearder RFC2617 construction for request digest without qop
-	// parameter and MD5 hash algorithm.
-	private AuthorizationHeader getAuthorizationHearder(Response response)
-			throws KurentoSipException {
-		WWWAuthenticateHeader wwwAuthenticateHeader;
-		AuthorizationHeader authorization = null;
-		try {
-			wwwAuthenticateHeader = (WWWAuthenticateHeader) response
-					.getHeader(WWWAuthenticateHeader.NAME);
-
-			String schema = wwwAuthenticateHeader.getScheme();
-			String realm = wwwAuthenticateHeader.getRealm();
-			String nonce = wwwAuthenticateHeader.getNonce();
-			String alg = wwwAuthenticateHeader.getAlgorithm();
-			String opaque = wwwAuthenticateHeader.getOpaque();
-
-			log.debug("WWWAuthenticateHeader is "
-					+ wwwAuthenticateHeader.toString());
-
-			URI localUri = sipUA.getAddressFactory().createURI(
-					register.getUri());
-
-			HeaderFactory factory = sipUA.getHeaderFactory();
-			authorization = factory.createAuthorizationHeader(schema);
-			authorization.setUsername(register.getAuthuser());
-			authorization.setRealm(realm);
-			authorization.setNonce(nonce);
-			authorization.setURI(localUri);
-			String respon = getAuthResponse(register.getAuthuser(),
-					register.getPassword(), realm, this.method,
-					register.getUri(), nonce, alg);
-			authorization.setResponse(respon);
-			authorization.setAlgorithm(alg);
-			authorization.setOpaque(opaque);
-		} catch (ParseException e) {
-			throw new KurentoSipException(
-					"Error generating authentication hearder", e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new KurentoSipException(
-					"Error generating authentication hearder", e);
+		// Right away through a new flow the first time, with backoff if
+		// that fails too
+		if (sipUA.getRegisterScheduler().onTransportError(sipRegister)) {
+			sipUA.register(register);
+			return true;
 		}
-
-		return authorization;
+		sipUA.getRegisterHandler().onUserOffline(register);
+		scheduleRetry(-1);
+		return false;
 	}
 
-	private String getAuthResponse(String userName, String password,
-			String realm, String method, String uri, String nonce,
-			String algorithm) throws NoSuchAlgorithmException {
-		MessageDigest messageDigest = MessageDigest.getInstance(algorithm);
-
-		// A1
-		String A1 = userName + ":" + realm + ":" + password;
-		byte mdbytes[] = messageDigest.digest(A1.getBytes());
-		String HA1 = toHexString(mdbytes);
-		log.debug("DigestClientAuthenticationMethod for HA1:" + HA1 + "!");
+	private void scheduleRetry(int retryAfter) {
+		// Unregister is not retried
+		if (expires == 0)
+			return;
 
-		// A2
-		String A2 = method.toUpperCase(Locale.getDefault()) + ":" + uri;
-		mdbytes = messageDigest.digest(A2.getBytes());
-		String HA2 = toHexString(mdbytes);
-		log.debug("DigestClientAuthenticationMethod for HA2:" + HA2 + "!");
+		long delay = sipUA.getRegisterScheduler().onFailure(sipRegister,
+				retryAfter);
+		sipUA.getWakeupTimer().schedule(sipRegister.getSipRegisterTimerTask(),
+				delay, delay);
+	}
 
-		String KD = HA1 + ":" + nonce + ":" + HA2;
-		mdbytes = messageDigest.digest(KD.getBytes());
-		String response = toHexString(mdbytes);
+	// Expiration granted by the registrar for our contact: RFC3261 10.2.4
+	private int getGrantedExpires(Response response) {
+		Address contact = sipRegister.getAddress();
+		ListIterator<?> it = response.getHeaders(ContactHeader.NAME);
+		while (it != null && it.hasNext()) {
+			ContactHeader contactHeader = (ContactHeader) it.next();
+			if (contact != null
+					&& contact.getURI().equals(
+							contactHeader.getAddress().getURI())
+					&& contactHeader.getExpires() > 0)
+				return contactHeader.getExpires();
+		}
 
-		log.debug("DigestClientAlgorithm, response generated: " + response);
+		ExpiresHeader expiresHeader = response.getExpires();
+		if (expiresHeader != null && expiresHeader.getExpires() > 0)
+			return expiresHeader.getExpires();
 
-		return response;
+		return expires;
 	}
 
-	private static String toHexString(byte b[]) {
-		int pos = 0;
-		char[] c = new char[b.length * 2];
-		for (int i = 0; i < b.length; i++) {
-			c[pos++] = toHex[(b[i] >> 4) & 0x0F];
-			c[pos++] = toHex[b[i] & 0x0f];
-		}
-		return new String(c);
+	private static int getRetryAfter(Response response) {
+		RetryAfterHeader retryAfterHeader = (RetryAfterHeader) response
+				.getHeader(RetryAfterHeader.NAME);
+		if (retryAfterHeader == null)
+			return -1;
+		return retryAfterHeader.getRetryAfter();
 	}
 
-	private static final char[] toHex = { '0', '1', '2', '3', '4', '5', '6',
-			'7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
-
 }
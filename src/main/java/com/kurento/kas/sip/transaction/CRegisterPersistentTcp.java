@@ -33,6 +33,10 @@ public class CRegisterPersistentTcp extends CRegister {
 			log.debug("received: " + received);
 			if (expires == 0 || rport != sipUA.getPublicPort()
 					|| !received.equalsIgnoreCase(sipUA.getPublicAddress())) {
+				// Superseded, e.g. by an unregister: the AOR is not
+				// registered again
+				if (!sipUA.getRegisterTracker().complete(this))
+					return;
 				sipUA.setPublicPort(rport);
 				sipUA.setPublicAddress(received);
 				sipUA.updateContactAddress(localUri);
@@ -16,14 +16,17 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>
  */
 package com.kurento.kas.sip.transaction;
 
+import java.net.InetSocketAddress;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.sip.ClientTransaction;
 import javax.sip.Dialog;
 import javax.sip.DialogState;
 import javax.sip.InvalidArgumentException;
+import javax.sip.ListeningPoint;
 import javax.sip.ObjectInUseException;
 import javax.sip.ResponseEvent;
 import javax.sip.SipException;
@@ -35,23 +38,43 @@ import javax.sip.header.CSeqHeader;
 import javax.sip.header.CallIdHeader;
 import javax.sip.header.ContactHeader;
 import javax.sip.header.ContentTypeHeader;
-import javax.sip.header.FromHeader;
-import javax.sip.header.MaxForwardsHeader;
+import javax.sip.header.RetryAfterHeader;
+import javax.sip.header.RouteHeader;
 import javax.sip.header.ToHeader;
-import javax.sip.header.UserAgentHeader;
 import javax.sip.header.ViaHeader;
 import javax.sip.message.Request;
+import javax.sip.message.Response;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import android.os.SystemClock;
+
 import com.kurento.kas.sip.ua.KurentoSipException;
+import com.kurento.kas.sip.ua.ProxyTargetSet;
+import com.kurento.kas.sip.ua.RttEstimator;
 import com.kurento.kas.sip.ua.SipCall;
 import com.kurento.kas.sip.ua.SipUA;
+import com.kurento.kas.ua.Register;
 
 public abstract class CTransaction extends Transaction {
 
-	private static final int MAX_FORWARDS = 70;
+	// A stale nonce can be challenged again, wrong credentials can not
+	private static final int MAX_AUTH_ATTEMPTS = 3;
+	private int authAttempts = 0;
+
+	// Sent again once after a transport error
+	private boolean transportRetried = false;
+
+	// RTT measurement of the last request sent
+	private int retransmitTimer = RttEstimator.DEFAULT_T1;
+	private long sentTime;
+	private volatile boolean rttMeasured = true;
+	private volatile boolean answered = false;
+
+	// Proxy of out of dialog requests, and those already tried: rfc3263 4.3
+	private volatile InetSocketAddress target;
+	private final Set<InetSocketAddress> triedTargets = new HashSet<InetSocketAddress>();
 
 	private ClientTransaction clientTransaction;
 	Request request;
@@ -68,6 +91,9 @@ public abstract class CTransaction extends Transaction {
 	String localUri;
 	String remoteUri;
 
+	// CSeq of out of dialog requests. Dialogs keep their own sequence
+	long cSeqNumber;
+
 	// ////////////
 	//
 	// CONSTRUCTOR
@@ -81,7 +107,7 @@ public abstract class CTransaction extends Transaction {
 		this.method = method;
 		this.localUri = localUri;
 		this.remoteUri = remoteUri;
-		CTransaction.cSeqNumber = cSeqNumber;
+		this.cSeqNumber = cSeqNumber;
 		createRequest();
 	}
 
@@ -93,6 +119,8 @@ public abstract class CTransaction extends Transaction {
 		this.dialog = call.getDialog();
 		this.localUri = call.getLocalUri();
 		this.remoteUri = call.getRemoteUri();
+		if (dialog == null)
+			this.cSeqNumber = call.getNextCSeqNumber();
 		createRequest();
 	}
 
@@ -117,6 +145,49 @@ public abstract class CTransaction extends Transaction {
 		return dialog;
 	}
 
+	public SipCall getCall() {
+		return call;
+	}
+
+	public String getMethod() {
+		return request.getMethod();
+	}
+
+	/**
+	 * @return Proxy the request has been sent to, or null if it follows the
+	 *         route of its dialog or the outbound proxy of the stack
+	 */
+	public InetSocketAddress getTarget() {
+		return target;
+	}
+
+	/*
+	 * The request must reach the proxy of the flow the keep alives are sent
+	 * through, so it does not fail over to other proxies
+	 */
+	boolean isBoundToFlow() {
+		return false;
+	}
+
+	/*
+	 * An INVITE of a call being hung up is not sent again, after a challenge,
+	 * a failed proxy or a transport error: nothing would be left to cancel it
+	 */
+	boolean maySendAgain() {
+		return call == null || !call.isTerminating()
+				|| !Request.INVITE.equals(request.getMethod());
+	}
+
+	/*
+	 * Credentials used to authenticate this request. By default those of the
+	 * registration of the local URI
+	 */
+	Register getCredentials() {
+		if (localUri == null)
+			return null;
+		return sipUA.getRegister(localUri);
+	}
+
 	// //////////////
 	//
 	// BUILD REQUEST
@@ -127,22 +198,13 @@ public abstract class CTransaction extends Transaction {
 		// Check if dialog exists
 		if (dialog == null) {
 			try {
-				CallIdHeader callIdHeader = buildCallIdHeader();
-				FromHeader fromHeader = buildFromHeader();
-				ToHeader toHeader = buildToHeader();
-				List<ViaHeader> viaHeaders = buildViaHeaders();
-				CSeqHeader cSeqHeader = buildCSeqHeader();
-				MaxForwardsHeader maxForwardsHeader = buildMaxForwardsHeader();
-				UserAgentHeader userAgentHeader = buildUserAgentHeader();
-				ContactHeader contactHeader = buildContactHeader();
-				SipURI requestURI = buildRequestURI();
-
-				// Create Request
-				request = sipUA.getMessageFactory().createRequest(requestURI,
-						method, callIdHeader, cSeqHeader, fromHeader, toHeader,
-						viaHeaders, maxForwardsHeader);
-				request.addHeader(userAgentHeader);
-				request.addHeader(contactHeader);
+				// Clone the template of the local URI and method
+				Address remoteAddress = sipUA.getAddressFactory()
+						.createAddress(remoteUri);
+				request = sipUA.getRequestTemplateCache().createRequest(
+						method, localUri, remoteAddress,
+						buildCallIdHeader().getCallId(), cSeqNumber,
+						getNewRandomTag(), getNewRandomBranch());
 			} catch (ParseException e) {
 				throw new KurentoSipException(
 						"Parse error while creating SIP client transaction", e);
@@ -163,14 +225,16 @@ public abstract class CTransaction extends Transaction {
 		createClientTransaction();
 	}
 
-	private void createClientTransaction() throws KurentoSipException {
+	void createClientTransaction() throws KurentoSipException {
 		SipProvider sipProvider = sipUA.getSipProvider();
 		if (sipProvider == null)
 			throw new KurentoSipException(
 					"Unable to create client transaction, SIP Provider not initated");
+		route();
 		try {
 			clientTransaction = sipProvider.getNewClientTransaction(request);
 			clientTransaction.setApplicationData(this);
+			setRetransmitTimer();
 
 			// get dialog again
 			dialog = clientTransaction.getDialog();
@@ -181,57 +245,106 @@ public abstract class CTransaction extends Transaction {
 		}
 	}
 
-	// // ALL THIS HELPER FUNCTIONS ARE CALLED WHEN DIALOG=NULL // //
-
-	private CallIdHeader buildCallIdHeader() throws KurentoSipException {
-		SipProvider sipProvider = sipUA.getSipProvider();
-		if (sipProvider == null)
-			throw new KurentoSipException(
-					"Unable to create client transaction, SIP Provider not initated");
-		// Dialog is null here. Make sure you don't use it
-		return sipProvider.getNewCallId();
+	/*
+	 * Out of dialog requests go to the best proxy through a loose route, so
+	 * the proxy can change per request while the stack keeps its outbound
+	 * proxy. CANCEL keeps the route of its INVITE, and requests bound to the
+	 * flow stay on the outbound proxy
+	 */
+	private void route() throws KurentoSipException {
+		if (Request.CANCEL.equals(request.getMethod()))
+			return;
+		ToHeader to = (ToHeader) request.getHeader(ToHeader.NAME);
+		if (to == null || to.getTag() != null)
+			return;
+
+		if (target == null)
+			target = isBoundToFlow() ? sipUA.getOutboundProxyAddress() : sipUA
+					.getProxyTargets().select(null, true);
+		if (target == null)
+			return;
+		triedTargets.add(target);
+
+		request.removeHeader(RouteHeader.NAME);
+		if (target.equals(sipUA.getOutboundProxyAddress()))
+			return;
+		try {
+			SipURI uri = sipUA.getAddressFactory().createSipURI(null,
+					target.getAddress().getHostAddress());
+			uri.setPort(target.getPort());
+			uri.setTransportParam(sipUA.getPreferences().getSipTransport()
+					.toLowerCase());
+			uri.setLrParam();
+			request.addHeader(sipUA.getHeaderFactory().createRouteHeader(
+					sipUA.getAddressFactory().createAddress(uri)));
+		} catch (ParseException e) {
+			throw new KurentoSipException("Unable to route request to "
+					+ target, e);
+		}
 	}
 
-	private FromHeader buildFromHeader() throws ParseException {
-		// Dialog is null here. Make sure you don't use it
-		String localTag = getNewRandomTag();
-		Address localAddress = sipUA.getAddressFactory()
-				.createAddress(localUri);
-		return sipUA.getHeaderFactory()
-				.createFromHeader(localAddress, localTag);
+	private String getDestination() {
+		InetSocketAddress t = target;
+		if (t == null)
+			return sipUA.getOutboundProxy();
+		return sipUA.getDestination(t);
 	}
 
-	private ToHeader buildToHeader() throws ParseException {
-		// Dialog is null here. Make sure you don't use it
-		Address remoteAddress = sipUA.getAddressFactory().createAddress(
-				remoteUri);
-		return sipUA.getHeaderFactory().createToHeader(remoteAddress, null);
+	/*
+	 * T1 from the RTT to the destination instead of the 500 ms default:
+	 * RFC3261 17.1.1.1. Only unreliable transports retransmit
+	 */
+	private void setRetransmitTimer() {
+		if (!ListeningPoint.UDP.equalsIgnoreCase(sipUA.getPreferences()
+				.getSipTransport()))
+			return;
+
+		retransmitTimer = sipUA.getRttEstimator().getT1(getDestination());
+		if (retransmitTimer == RttEstimator.DEFAULT_T1)
+			return;
+		try {
+			clientTransaction.setRetransmitTimer(retransmitTimer);
+		} catch (UnsupportedOperationException e) {
+			log.warn("Unable to set retransmission timer", e);
+			retransmitTimer = RttEstimator.DEFAULT_T1;
+		}
 	}
 
-	private List<ViaHeader> buildViaHeaders() throws ParseException,
-			InvalidArgumentException {
-		// Dialog is null here. Make sure you don't use it
-		List<ViaHeader> viaHeaders = new ArrayList<ViaHeader>();
-		ViaHeader viaHeader = sipUA.getHeaderFactory().createViaHeader(
-				sipUA.getLocalAddress(), sipUA.getLocalPort(),
-				sipUA.getPreferences().getSipTransport(), getNewRandomBranch());
-
-		viaHeader.setRPort();
-		// add via headers
-		viaHeaders.add(viaHeader);
-		return viaHeaders;
+	/**
+	 * A response to the last request sent has been received. The first one
+	 * of an INVITE or REGISTER gives an RTT sample of the destination. Any
+	 * but a 503 tells the proxy is healthy.
+	 */
+	public void onResponseReceived(int statusCode) {
+		answered = true;
+		if (rttMeasured)
+			return;
+		rttMeasured = true;
+
+		// Karn's algorithm: the response of a retransmitted request may
+		// belong to any copy
+		long rtt = SystemClock.elapsedRealtime() - sentTime;
+		boolean sample = (Request.INVITE.equals(request.getMethod()) || Request.REGISTER
+				.equals(request.getMethod()))
+				&& !(ListeningPoint.UDP.equalsIgnoreCase(sipUA.getPreferences()
+						.getSipTransport()) && rtt >= retransmitTimer);
+
+		InetSocketAddress t = target;
+		if (t != null && statusCode != Response.SERVICE_UNAVAILABLE)
+			sipUA.getProxyTargets().onResponse(t, sample ? rtt : -1);
+		if (sample)
+			sipUA.getRttEstimator().addSample(getDestination(), rtt);
 	}
 
-	private CSeqHeader buildCSeqHeader() throws ParseException,
-			InvalidArgumentException {
-		// Dialog is null here. Make sure you don't use it
-		return sipUA.getHeaderFactory().createCSeqHeader(cSeqNumber, method);
-	}
+	// // ALL THIS HELPER FUNCTIONS ARE CALLED WHEN DIALOG=NULL // //
 
-	private MaxForwardsHeader buildMaxForwardsHeader()
-			throws InvalidArgumentException {
+	private CallIdHeader buildCallIdHeader() throws KurentoSipException {
+		SipProvider sipProvider = sipUA.getSipProvider();
+		if (sipProvider == null)
+			throw new KurentoSipException(
+					"Unable to create client transaction, SIP Provider not initated");
 		// Dialog is null here. Make sure you don't use it
-		return sipUA.getHeaderFactory().createMaxForwardsHeader(MAX_FORWARDS);
+		return sipProvider.getNewCallId();
 	}
 
 	private ContentTypeHeader buildContentTypeHeader()
@@ -246,24 +359,6 @@ public abstract class CTransaction extends Transaction {
 		}
 	}
 
-	private ContactHeader buildContactHeader() throws KurentoSipException {
-		// Dialog is null here. Make sure you don't use it
-		ContactHeader contact = sipUA.getHeaderFactory().createContactHeader(
-				sipUA.getContactAddress(localUri));
-		return contact;
-	}
-
-	private UserAgentHeader buildUserAgentHeader() throws ParseException {
-		// Dialog is null here. Make sure you don't use it
-		return sipUA.getUserAgentHeader();
-	}
-
-	private SipURI buildRequestURI() throws ParseException {
-		// Dialog is null here. Make sure you don't use it
-		return (SipURI) sipUA.getAddressFactory().createAddress(remoteUri)
-				.getURI();
-	}
-
 	// ///////////////////
 	//
 	// MANAGE TRANSACTION
@@ -285,10 +380,18 @@ public abstract class CTransaction extends Transaction {
 			}
 		}
 
-		log.info("SIP send request\n"
-				+ ">>>>>>>>>> SIP send request >>>>>>>>>>\n"
-				+ clientTransaction.getRequest().toString()
-				+ ">>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>");
+		authorize();
+		send();
+	}
+
+	private void send() throws KurentoSipException {
+		log.info("SIP send request: " + request.getMethod());
+		sipUA.getWireTrace().traceSent(request);
+		sipUA.getFlightRecorder().messageSent(request);
+		sipUA.trackClientTransaction(this);
+		sentTime = SystemClock.elapsedRealtime();
+		rttMeasured = false;
+		answered = false;
 
 		try {
 			if (dialog != null
@@ -301,6 +404,221 @@ public abstract class CTransaction extends Transaction {
 		}
 	}
 
+	// ///////////////////
+	//
+	// AUTHENTICATION
+	//
+	// ///////////////////
+
+	/*
+	 * Add credentials preemptively when a challenge for the user is cached,
+	 * saving the 401/407 round trip
+	 */
+	private void authorize() throws KurentoSipException {
+		// CANCEL can not be challenged nor resubmitted: RFC3261 22.1
+		if (Request.CANCEL.equals(request.getMethod()))
+			return;
+
+		Register register = getCredentials();
+		if (register == null)
+			return;
+
+		try {
+			sipUA.getCredentialCache().authorize(request,
+					register.getAuthuser());
+		} catch (ParseException e) {
+			throw new KurentoSipException(
+					"Error generating authentication header", e);
+		}
+	}
+
+	/**
+	 * Resend the request with credentials for the challenge of a 401/407
+	 * response. The challenge is cached so next requests of the same user are
+	 * authenticated preemptively.
+	 *
+	 * @return true if the request has been sent again, false if credentials
+	 *         are not available or have already been rejected
+	 */
+	boolean handleAuthChallenge(ResponseEvent event) {
+		Response response = event.getResponse();
+		Register register = getCredentials();
+		if (register == null) {
+			log.warn("No credentials to authenticate " + method + " from "
+					+ localUri);
+			return false;
+		}
+
+		if (!maySendAgain())
+			return false;
+
+		boolean stale = DigestCredentialCache.isStale(response);
+		if ((authAttempts > 0 && !stale) || authAttempts >= MAX_AUTH_ATTEMPTS) {
+			log.warn("Credentials rejected for user " + register.getAuthuser());
+			sipUA.getCredentialCache().clear(register.getAuthuser());
+			return false;
+		}
+		authAttempts++;
+
+		try {
+			if (!sipUA.getCredentialCache().onChallenge(response,
+					register.getAuthuser(), register.getPassword()))
+				return false;
+
+			log.info("Authentication required in " + method
+					+ " transaction for user: " + register.getAuthuser());
+			createAuthRequest();
+			authorize();
+			createClientTransaction();
+			send();
+			return true;
+		} catch (NoSuchAlgorithmException e) {
+			log.error("Unable to generate authentication header", e);
+		} catch (KurentoSipException e) {
+			log.error("Unable to send authenticated " + method, e);
+		}
+		return false;
+	}
+
+	/*
+	 * Send the request again in a new transaction, so it goes through a new
+	 * flow after a transport error. Only once per request
+	 */
+	boolean resend() {
+		if (transportRetried || !maySendAgain())
+			return false;
+		transportRetried = true;
+
+		try {
+			log.info("Send " + method + " again after transport error");
+			createAuthRequest();
+			authorize();
+			createClientTransaction();
+			send();
+			return true;
+		} catch (KurentoSipException e) {
+			log.error("Unable to send " + method + " again", e);
+		}
+		return false;
+	}
+
+	/**
+	 * The proxy of the request failed. It counts against the health of the
+	 * proxy, and the request is sent to the next one in a new transaction if
+	 * any is left.
+	 *
+	 * @param retryAfter
+	 *            Seconds of the Retry-After of a 503, or -1
+	 * @return true if the request has been sent again
+	 */
+	public boolean failover(ProxyTargetSet.Failure failure, int retryAfter) {
+		InetSocketAddress failed = target;
+		if (failed == null)
+			return false;
+		sipUA.getProxyTargets().onFailure(failed, failure, retryAfter);
+		if (isBoundToFlow() || !maySendAgain())
+			return false;
+
+		// After a provisional response the INVITE may have reached the
+		// remote party, only a final response ends it
+		if (answered && Request.INVITE.equals(request.getMethod())
+				&& failure != ProxyTargetSet.Failure.SERVICE_UNAVAILABLE)
+			return false;
+
+		InetSocketAddress next = sipUA.getProxyTargets().select(triedTargets,
+				false);
+		if (next == null)
+			return false;
+
+		try {
+			log.info("Send " + request.getMethod() + " to proxy " + next
+					+ " after " + failure + " of " + failed);
+			target = next;
+			createAuthRequest();
+			authorize();
+			createClientTransaction();
+			send();
+			onFailover();
+			return true;
+		} catch (KurentoSipException e) {
+			log.error("Unable to send " + request.getMethod() + " to proxy "
+					+ next, e);
+		}
+		return false;
+	}
+
+	/**
+	 * Fail over on a 503 response: rfc3263 4.3.
+	 *
+	 * @return true if the request has been sent to another proxy
+	 */
+	public boolean failover(Response response) {
+		RetryAfterHeader retryAfterHeader = (RetryAfterHeader) response
+				.getHeader(RetryAfterHeader.NAME);
+		return failover(ProxyTargetSet.Failure.SERVICE_UNAVAILABLE,
+				retryAfterHeader == null ? -1 : retryAfterHeader
+						.getRetryAfter());
+	}
+
+	/*
+	 * The request has been sent to another proxy in a new client transaction
+	 */
+	void onFailover() {
+	}
+
+	/*
+	 * Same request as the challenged one, in a new transaction: RFC3261 22.2
+	 */
+	private void createAuthRequest() throws KurentoSipException {
+		if (dialog != null && DialogState.CONFIRMED.equals(dialog.getState())) {
+			// The dialog builds the new request, body and Contact are kept,
+			// e.g. the offer and new address of a re-INVITE
+			Request previous = request;
+			try {
+				request = dialog.createRequest(method);
+				ContactHeader contact = (ContactHeader) previous
+						.getHeader(ContactHeader.NAME);
+				if (contact != null)
+					request.setHeader(contact);
+				ContentTypeHeader contentType = (ContentTypeHeader) previous
+						.getHeader(ContentTypeHeader.NAME);
+				if (previous.getRawContent() != null && contentType != null)
+					request.setContent(previous.getRawContent(), contentType);
+			} catch (SipException e) {
+				throw new KurentoSipException(
+						"Unable to create request from dialog", e);
+			} catch (ParseException e) {
+				throw new KurentoSipException(
+						"Unable to copy content of request from dialog", e);
+			}
+			return;
+		}
+
+		try {
+			Request authRequest = (Request) request.clone();
+			CSeqHeader cSeqHeader = (CSeqHeader) authRequest
+					.getHeader(CSeqHeader.NAME);
+			cSeqHeader.setSeqNumber(getNextCSeqNumber(cSeqHeader
+					.getSeqNumber()));
+			ViaHeader viaHeader = (ViaHeader) authRequest
+					.getHeader(ViaHeader.NAME);
+			viaHeader.setBranch(getNewRandomBranch());
+			request = authRequest;
+		} catch (ParseException e) {
+			throw new KurentoSipException(
+					"Parse error while creating authenticated request", e);
+		} catch (InvalidArgumentException e) {
+			throw new KurentoSipException(
+					"Invalid CSeq for authenticated request", e);
+		}
+	}
+
+	long getNextCSeqNumber(long cSeqNumber) {
+		if (call != null)
+			return call.getNextCSeqNumber();
+		return cSeqNumber + 1;
+	}
+
 	public void terminate() throws KurentoSipException {
 		try {
 			clientTransaction.terminate();
@@ -317,4 +635,18 @@ public abstract class CTransaction extends Transaction {
 			call.callTimeout();
 	}
 
+	/**
+	 * The flow the request was sent through failed before the final
+	 * response. The client transaction is already terminated, so no timeout
+	 * follows. Handled as a timeout unless overridden.
+	 *
+	 * @return true if the request has been sent again, so its outcome is
+	 *         still to come
+	 */
+	public boolean processTransportError() {
+		log.info("Client transaction transport error");
+		processTimeout();
+		return false;
+	}
+
 }
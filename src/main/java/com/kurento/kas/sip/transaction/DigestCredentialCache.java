@@ -0,0 +1,302 @@
+/*
+Kurento Sip User Agent implementation.
+Copyright (C) <2011>  <Tikal Technologies>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License version 3
+as published by the Free Software Foundation.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package com.kurento.kas.sip.transaction;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.text.ParseException;
+import java.util.ListIterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sip.address.AddressFactory;
+import javax.sip.address.URI;
+import javax.sip.header.AuthorizationHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.ProxyAuthenticateHeader;
+import javax.sip.header.ProxyAuthorizationHeader;
+import javax.sip.header.WWWAuthenticateHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Digest credentials (RFC2617) shared by every client transaction of a UA.
+ * For each user and realm it keeps the last challenge (nonce, opaque, qop)
+ * and the precomputed HA1, so requests can carry Authorization or
+ * Proxy-Authorization preemptively instead of waiting for a 401/407.
+ * qop=auth is supported with an increasing nonce-count.
+ */
+public class DigestCredentialCache {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(DigestCredentialCache.class.getSimpleName());
+
+	private static final String MD5 = "MD5";
+	private static final String MD5_SESS = "MD5-sess";
+	private static final String QOP_AUTH = "auth";
+
+	private static final SecureRandom cnonceRandom = new SecureRandom();
+
+	// username -> realm -> challenge
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Challenge>> challenges = new ConcurrentHashMap<String, ConcurrentHashMap<String, Challenge>>();
+
+	private final AddressFactory addressFactory;
+	private final HeaderFactory headerFactory;
+
+	public DigestCredentialCache(AddressFactory addressFactory,
+			HeaderFactory headerFactory) {
+		this.addressFactory = addressFactory;
+		this.headerFactory = headerFactory;
+	}
+
+	/**
+	 * Store the challenges of a 401/407 response for a user.
+	 *
+	 * @return true if at least one supported challenge was stored
+	 */
+	public boolean onChallenge(Response response, String username,
+			String password) throws NoSuchAlgorithmException {
+		if (username == null || password == null)
+			return false;
+
+		boolean stored = false;
+		ListIterator<?> it = response.getHeaders(WWWAuthenticateHeader.NAME);
+		while (it != null && it.hasNext())
+			stored |= store((WWWAuthenticateHeader) it.next(), false,
+					username, password);
+
+		it = response.getHeaders(ProxyAuthenticateHeader.NAME);
+		while (it != null && it.hasNext())
+			stored |= store((WWWAuthenticateHeader) it.next(), true,
+					username, password);
+
+		return stored;
+	}
+
+	/*
+	 * True if any of the challenges of the response states that the previous
+	 * nonce was just stale and credentials were right: RFC2617 3.2.1
+	 */
+	public static boolean isStale(Response response) {
+		WWWAuthenticateHeader h = (WWWAuthenticateHeader) response
+				.getHeader(WWWAuthenticateHeader.NAME);
+		if (h != null && h.isStale())
+			return true;
+		h = (WWWAuthenticateHeader) response
+				.getHeader(ProxyAuthenticateHeader.NAME);
+		return h != null && h.isStale();
+	}
+
+	/**
+	 * Set Authorization and Proxy-Authorization headers on a request for
+	 * every challenge cached for the user.
+	 *
+	 * @return true if any header was added
+	 */
+	public boolean authorize(Request request, String username)
+			throws ParseException {
+		if (username == null)
+			return false;
+
+		ConcurrentHashMap<String, Challenge> userChallenges = challenges
+				.get(username);
+		if (userChallenges == null || userChallenges.isEmpty())
+			return false;
+
+		request.removeHeader(AuthorizationHeader.NAME);
+		request.removeHeader(ProxyAuthorizationHeader.NAME);
+
+		// Digest URI must be exactly the Request-URI: RFC3261 22.4
+		String uri = request.getRequestURI().toString();
+		URI digestUri = addressFactory.createURI(uri);
+		String method = request.getMethod();
+		boolean added = false;
+		for (Challenge challenge : userChallenges.values()) {
+			try {
+				request.addHeader(challenge.createHeader(headerFactory,
+						method, uri, digestUri));
+				added = true;
+			} catch (NoSuchAlgorithmException e) {
+				log.warn("Unable to compute digest for realm "
+						+ challenge.realm, e);
+			}
+		}
+
+		return added;
+	}
+
+	public void clear(String username) {
+		challenges.remove(username);
+	}
+
+	public void clear() {
+		challenges.clear();
+	}
+
+	public int size() {
+		int n = 0;
+		for (ConcurrentHashMap<String, Challenge> c : challenges.values())
+			n += c.size();
+		return n;
+	}
+
+	private boolean store(WWWAuthenticateHeader header, boolean proxy,
+			String username, String password) throws NoSuchAlgorithmException {
+		if (!"Digest".equalsIgnoreCase(header.getScheme())) {
+			log.warn("Unsupported authentication scheme: "
+					+ header.getScheme());
+			return false;
+		}
+
+		String algorithm = header.getAlgorithm();
+		if (algorithm != null && !MD5.equalsIgnoreCase(algorithm)
+				&& !MD5_SESS.equalsIgnoreCase(algorithm)) {
+			log.warn("Unsupported digest algorithm: " + algorithm);
+			return false;
+		}
+
+		Challenge challenge = new Challenge(header, proxy, username, password);
+		ConcurrentHashMap<String, Challenge> userChallenges = challenges
+				.get(username);
+		if (userChallenges == null) {
+			userChallenges = new ConcurrentHashMap<String, Challenge>();
+			ConcurrentHashMap<String, Challenge> previous = challenges
+					.putIfAbsent(username, userChallenges);
+			if (previous != null)
+				userChallenges = previous;
+		}
+		userChallenges.put(challenge.realm, challenge);
+		return true;
+	}
+
+	private static class Challenge {
+
+		private final String scheme;
+		private final String realm;
+		private final String nonce;
+		private final String opaque;
+		private final String algorithm;
+		private final String qop;
+		private final boolean proxy;
+
+		private final String username;
+		private final String ha1;
+		private final String cnonce;
+		private final AtomicInteger nonceCount = new AtomicInteger();
+
+		private Challenge(WWWAuthenticateHeader header, boolean proxy,
+				String username, String password)
+				throws NoSuchAlgorithmException {
+			this.scheme = header.getScheme();
+			this.realm = header.getRealm();
+			this.nonce = header.getNonce();
+			this.opaque = header.getOpaque();
+			this.algorithm = header.getAlgorithm();
+			this.qop = selectQop(header.getQop());
+			this.proxy = proxy;
+			this.username = username;
+			this.cnonce = newCNonce();
+
+			String a1 = md5(username + ":" + realm + ":" + password);
+			if (MD5_SESS.equalsIgnoreCase(algorithm))
+				a1 = md5(a1 + ":" + nonce + ":" + cnonce);
+			this.ha1 = a1;
+		}
+
+		private AuthorizationHeader createHeader(HeaderFactory factory,
+				String method, String uri, URI digestUri) throws ParseException,
+				NoSuchAlgorithmException {
+			AuthorizationHeader authorization;
+			if (proxy)
+				authorization = factory.createProxyAuthorizationHeader(scheme);
+			else
+				authorization = factory.createAuthorizationHeader(scheme);
+
+			authorization.setUsername(username);
+			authorization.setRealm(realm);
+			authorization.setNonce(nonce);
+			authorization.setURI(digestUri);
+			if (algorithm != null)
+				authorization.setAlgorithm(algorithm);
+			if (opaque != null)
+				authorization.setOpaque(opaque);
+
+			String ha2 = md5(method.toUpperCase(Locale.ENGLISH) + ":" + uri);
+			String response;
+			if (qop != null) {
+				int nc = nonceCount.incrementAndGet();
+				String ncValue = toNonceCount(nc);
+				response = md5(ha1 + ":" + nonce + ":" + ncValue + ":"
+						+ cnonce + ":" + qop + ":" + ha2);
+				authorization.setQop(qop);
+				authorization.setCNonce(cnonce);
+				authorization.setNonceCount(nc);
+			} else {
+				response = md5(ha1 + ":" + nonce + ":" + ha2);
+			}
+			authorization.setResponse(response);
+
+			return authorization;
+		}
+
+		private static String selectQop(String qopOptions) {
+			if (qopOptions == null)
+				return null;
+			for (String option : qopOptions.split(",")) {
+				if (QOP_AUTH.equalsIgnoreCase(option.trim()))
+					return QOP_AUTH;
+			}
+			// auth-int is not supported. Fall back to RFC2069 digest
+			return null;
+		}
+
+		private static String toNonceCount(int nc) {
+			String hex = Integer.toHexString(nc);
+			return "00000000".substring(hex.length()) + hex;
+		}
+
+		private static String newCNonce() {
+			byte b[] = new byte[8];
+			cnonceRandom.nextBytes(b);
+			return toHexString(b);
+		}
+	}
+
+	private static String md5(String s) throws NoSuchAlgorithmException {
+		MessageDigest messageDigest = MessageDigest.getInstance(MD5);
+		return toHexString(messageDigest.digest(s.getBytes()));
+	}
+
+	static String toHexString(byte b[]) {
+		int pos = 0;
+		char[] c = new char[b.length * 2];
+		for (int i = 0; i < b.length; i++) {
+			c[pos++] = toHex[(b[i] >> 4) & 0x0F];
+			c[pos++] = toHex[b[i] & 0x0f];
+		}
+		return new String(c);
+	}
+
+	private static final char[] toHex = { '0', '1', '2', '3', '4', '5', '6',
+			'7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+}
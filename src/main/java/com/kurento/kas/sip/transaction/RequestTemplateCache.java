@@ -0,0 +1,179 @@
+/*
+Kurento Sip User Agent implementation.
+Copyright (C) <2011>  <Tikal Technologies>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License version 3
+as published by the Free Software Foundation.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package com.kurento.kas.sip.transaction;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sip.InvalidArgumentException;
+import javax.sip.address.Address;
+import javax.sip.address.URI;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.ToHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.Request;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.kurento.kas.sip.ua.SipUA;
+
+/**
+ * Prebuilt out of dialog requests per local URI and method. A request is
+ * created by cloning its template and patching the fields that change on
+ * every request: From tag, Via branch, Call-ID, CSeq, To and Request-URI.
+ * Templates hold the Contact and Via of the current provider, so they must be
+ * invalidated when the contact address or the transport changes.
+ */
+public class RequestTemplateCache {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(RequestTemplateCache.class.getSimpleName());
+
+	private static final int MAX_FORWARDS = 70;
+
+	// Placeholders replaced on every request
+	private static final String TEMPLATE_CALL_ID = "template";
+	private static final String TEMPLATE_TAG = "template";
+	private static final String TEMPLATE_BRANCH = "z9hG4bK_template";
+
+	private final SipUA sipUA;
+
+	// localUri -> method -> template
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Request>> templates = new ConcurrentHashMap<String, ConcurrentHashMap<String, Request>>();
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	public RequestTemplateCache(SipUA sipUA) {
+		this.sipUA = sipUA;
+	}
+
+	Request createRequest(String method, String localUri,
+			Address remoteAddress, String callId, long cSeqNumber,
+			String tag, String branch) throws ParseException,
+			InvalidArgumentException {
+		Request request = (Request) getTemplate(method, localUri).clone();
+
+		((FromHeader) request.getHeader(FromHeader.NAME)).setTag(tag);
+		((ToHeader) request.getHeader(ToHeader.NAME)).setAddress(remoteAddress);
+		((ViaHeader) request.getHeader(ViaHeader.NAME)).setBranch(branch);
+		((CallIdHeader) request.getHeader(CallIdHeader.NAME))
+				.setCallId(callId);
+		((CSeqHeader) request.getHeader(CSeqHeader.NAME))
+				.setSeqNumber(cSeqNumber);
+		request.setRequestURI((URI) remoteAddress.getURI().clone());
+
+		return request;
+	}
+
+	/**
+	 * Drop the templates of a local URI, e.g. when its contact changes.
+	 */
+	public void invalidate(String localUri) {
+		if (templates.remove(localUri) != null)
+			log.debug("Request templates invalidated for " + localUri);
+	}
+
+	/**
+	 * Drop every template, e.g. when the transport or the local address
+	 * changes.
+	 */
+	public void invalidateAll() {
+		templates.clear();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	private Request getTemplate(String method, String localUri)
+			throws ParseException, InvalidArgumentException {
+		ConcurrentHashMap<String, Request> localTemplates = templates
+				.get(localUri);
+		if (localTemplates == null) {
+			localTemplates = new ConcurrentHashMap<String, Request>();
+			ConcurrentHashMap<String, Request> previous = templates
+					.putIfAbsent(localUri, localTemplates);
+			if (previous != null)
+				localTemplates = previous;
+		}
+
+		Request template = localTemplates.get(method);
+		if (template != null) {
+			hitCount.incrementAndGet();
+			return template;
+		}
+
+		missCount.incrementAndGet();
+		template = buildTemplate(method, localUri);
+		// Concurrent builders produce equivalent templates. Keep any of them
+		localTemplates.put(method, template);
+		return template;
+	}
+
+	private Request buildTemplate(String method, String localUri)
+			throws ParseException, InvalidArgumentException {
+		HeaderFactory headerFactory = sipUA.getHeaderFactory();
+
+		Address localAddress = sipUA.getAddressFactory()
+				.createAddress(localUri);
+		FromHeader fromHeader = headerFactory.createFromHeader(localAddress,
+				TEMPLATE_TAG);
+		// To and Request-URI are replaced by the remote ones
+		ToHeader toHeader = headerFactory.createToHeader(localAddress, null);
+		CallIdHeader callIdHeader = headerFactory
+				.createCallIdHeader(TEMPLATE_CALL_ID);
+		CSeqHeader cSeqHeader = headerFactory.createCSeqHeader(1L, method);
+
+		List<ViaHeader> viaHeaders = new ArrayList<ViaHeader>();
+		ViaHeader viaHeader = headerFactory.createViaHeader(
+				sipUA.getLocalAddress(), sipUA.getLocalPort(), sipUA
+						.getPreferences().getSipTransport(), TEMPLATE_BRANCH);
+		viaHeader.setRPort();
+		viaHeaders.add(viaHeader);
+
+		Request template = sipUA.getMessageFactory().createRequest(
+				localAddress.getURI(), method, callIdHeader, cSeqHeader,
+				fromHeader, toHeader, viaHeaders,
+				headerFactory.createMaxForwardsHeader(MAX_FORWARDS));
+		template.addHeader(sipUA.getUserAgentHeader());
+		template.addHeader(headerFactory.createContactHeader(sipUA
+				.getContactAddress(localUri)));
+
+		if (Request.INVITE.equals(method)) {
+			template.addHeader(headerFactory
+					.createAllowHeader("INVITE,ACK,CANCEL,BYE"));
+			template.addHeader(headerFactory.createSupportedHeader("100rel"));
+		}
+
+		log.debug("Request template created for " + method + " from "
+				+ localUri);
+		return template;
+	}
+
+}
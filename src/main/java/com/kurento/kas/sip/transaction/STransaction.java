@@ -112,11 +112,11 @@ public abstract class STransaction extends Transaction {
 				response.setContent(sdp, contentTypeHeader);
 			}
 
-			log.info("SIP response send\n"
-					+ ">>>>>>> SIP response send >>>>>>>\n" + "\tTRANSACTION: "
-					+ serverTransaction.getBranchId() + "\n" + "\t CODE: "
-					+ response.getStatusCode() + "\n" + response.toString()
-					+ "\n" + ">>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>");
+			log.info("SIP response send. TRANSACTION: "
+					+ serverTransaction.getBranchId() + "; CODE: "
+					+ response.getStatusCode());
+			sipUA.getWireTrace().traceSent(response);
+			sipUA.getFlightRecorder().messageSent(response);
 
 			serverTransaction.sendResponse(response);
 			log.info("Transaction goes to state: "
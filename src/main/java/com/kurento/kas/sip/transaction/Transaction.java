@@ -17,17 +17,10 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>
 
 package com.kurento.kas.sip.transaction;
 
-import java.security.SecureRandom;
+import com.kurento.kas.sip.util.IdGenerator;
 
 public abstract class Transaction {
 
-	static long cSeqNumber = System.currentTimeMillis() % 100000000;
-
-	// Protocol helper
-	private static SecureRandom rn = new SecureRandom();
-	private static final int tagLength = 10;
-	private static final int branchLength = 10;
-
 	// ///////////////
 	//
 	// SIP HELPERS
@@ -35,28 +28,11 @@ public abstract class Transaction {
 	// ///////////////
 
 	String getNewRandomTag() {
-		byte t[] = new byte[tagLength];
-		for (int i = 0; i < tagLength; i++) {
-			t[i] = (byte) rand('a', 'z');
-		}
-		return new String(t);
+		return IdGenerator.newTag();
 	}
 
 	String getNewRandomBranch() {
-		byte b[] = new byte[branchLength];
-		for (int i = 0; i < branchLength; i++) {
-			b[i] = (byte) rand('a', 'z');
-		}
-		return "z9hG4bK_" + new String(b);
-	}
-
-	int rand(int lo, int hi) {
-		int n = hi - lo + 1;
-		int i = rn.nextInt(n);
-		if (i < 0) {
-			i = -i;
-		}
-		return lo + i;
+		return IdGenerator.newBranch();
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,209 @@
+/*
+Kurento Sip User Agent implementation.
+Copyright (C) <2011>  <Tikal Technologies>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License version 3
+as published by the Free Software Foundation.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package com.kurento.kas.sip.ua;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.os.SystemClock;
+
+/**
+ * Outcome of the requests sent when the UA is terminated: a BYE or CANCEL per
+ * call and an unregister per local contact. The UA waits for all of them, up
+ * to a deadline, before the SIP stack is stopped.
+ * <p>
+ * Updated only from the UA looper. Final once {@link #isFinished()}, when
+ * {@link com.kurento.kas.ua.UAHandler#onTerminated(com.kurento.kas.ua.UA)}
+ * is called.
+ */
+public class DrainReport {
+
+	public enum Kind {
+		CALL, REGISTER
+	}
+
+	public enum Outcome {
+		/**
+		 * Waiting for the transaction
+		 */
+		PENDING,
+		/**
+		 * 2xx response
+		 */
+		COMPLETED,
+		/**
+		 * Error response, see {@link Item#getStatusCode()}
+		 */
+		FAILED,
+		/**
+		 * Transaction timeout
+		 */
+		TIMED_OUT,
+		/**
+		 * No outcome before the drain deadline
+		 */
+		ABANDONED,
+		/**
+		 * Nothing to wait for: the call was not established or the request
+		 * could not be sent
+		 */
+		NOT_SENT
+	}
+
+	private final long startUptime = SystemClock.uptimeMillis();
+	private long duration = -1;
+	private final LinkedHashMap<String, Item> items = new LinkedHashMap<String, Item>();
+	private int pending = 0;
+
+	DrainReport() {
+	}
+
+	void add(Kind kind, String target, boolean sent) {
+		Item item = new Item(kind, target);
+		if (sent)
+			pending++;
+		else
+			item.outcome = Outcome.NOT_SENT;
+		items.put(key(kind, target), item);
+	}
+
+	/*
+	 * Return true if the item was waiting for this outcome
+	 */
+	boolean complete(Kind kind, String target, Outcome outcome,
+			int statusCode) {
+		Item item = items.get(key(kind, target));
+		if (item == null || item.outcome != Outcome.PENDING)
+			return false;
+
+		item.outcome = outcome;
+		item.statusCode = statusCode;
+		item.elapsed = SystemClock.uptimeMillis() - startUptime;
+		pending--;
+		return true;
+	}
+
+	boolean isDrained() {
+		return pending == 0;
+	}
+
+	/*
+	 * Items still pending are abandoned
+	 */
+	void finish() {
+		for (Item item : items.values()) {
+			if (item.outcome == Outcome.PENDING)
+				item.outcome = Outcome.ABANDONED;
+		}
+		pending = 0;
+		duration = SystemClock.uptimeMillis() - startUptime;
+	}
+
+	public boolean isFinished() {
+		return duration >= 0;
+	}
+
+	/**
+	 * @return Milliseconds the drain lasted, or -1 if not finished
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	public List<Item> getItems() {
+		return Collections.unmodifiableList(new ArrayList<Item>(items
+				.values()));
+	}
+
+	/**
+	 * @return Number of items with the outcome
+	 */
+	public int count(Outcome outcome) {
+		int n = 0;
+		for (Item item : items.values()) {
+			if (item.outcome == outcome)
+				n++;
+		}
+		return n;
+	}
+
+	@Override
+	public String toString() {
+		return items.size() + " items in " + duration + " ms: completed="
+				+ count(Outcome.COMPLETED) + " failed="
+				+ count(Outcome.FAILED) + " timed_out="
+				+ count(Outcome.TIMED_OUT) + " abandoned="
+				+ count(Outcome.ABANDONED) + " not_sent="
+				+ count(Outcome.NOT_SENT);
+	}
+
+	private static String key(Kind kind, String target) {
+		return kind + ":" + target;
+	}
+
+	public static class Item {
+
+		private final Kind kind;
+		private final String target;
+		private Outcome outcome = Outcome.PENDING;
+		private int statusCode = -1;
+		private long elapsed = -1;
+
+		private Item(Kind kind, String target) {
+			this.kind = kind;
+			this.target = target;
+		}
+
+		public Kind getKind() {
+			return kind;
+		}
+
+		/**
+		 * @return Call id or AOR
+		 */
+		public String getTarget() {
+			return target;
+		}
+
+		public Outcome getOutcome() {
+			return outcome;
+		}
+
+		/**
+		 * @return Final response status code, or -1 if none
+		 */
+		public int getStatusCode() {
+			return statusCode;
+		}
+
+		/**
+		 * @return Milliseconds from the drain start to the outcome, or -1
+		 */
+		public long getElapsed() {
+			return elapsed;
+		}
+
+		@Override
+		public String toString() {
+			return kind + " " + target + " " + outcome
+					+ (statusCode > 0 ? " " + statusCode : "");
+		}
+	}
+
+}
@@ -0,0 +1,238 @@
+/*
+Kurento Sip User Agent implementation.
+Copyright (C) <2011>  <Tikal Technologies>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License version 3
+as published by the Free Software Foundation.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package com.kurento.kas.sip.ua;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Learns the longest keep alive interval that keeps the NAT binding of a
+ * network. A pong after an idle interval proves the binding lasts at least
+ * that long, a lost pong that it may not.
+ * <ul>
+ * <li>After {@value #PROBE_SUCCESSES} pongs in a row the interval is probed
+ * longer: halfway to the shortest interval known to fail, or 50% longer if
+ * none is known.</li>
+ * <li>A lost pong backs off to the longest interval known to work, or to half
+ * the interval if none is known.</li>
+ * <li>Once converged, the failing interval is forgotten after
+ * {@value #REPROBE_SUCCESSES} pongs, as bindings change over time.</li>
+ * </ul>
+ * What is learned is kept per network across restarts.
+ */
+public class KeepAliveController {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(KeepAliveController.class.getSimpleName());
+
+	private static final String PREFERENCES_NAME = "com.kurento.kas.sip.keepalive";
+
+	private static final int PROBE_SUCCESSES = 3;
+	private static final int REPROBE_SUCCESSES = 20;
+	private static final int MIN_PROBE_STEP = 10; // seconds
+	private static final int HISTORY_SIZE = 32;
+
+	private final SharedPreferences learned;
+	private final LinkedList<Change> history = new LinkedList<Change>();
+
+	private int initialInterval;
+	private int minInterval;
+	private int maxInterval;
+
+	private String network;
+	private int interval;
+	private int good; // Longest interval with pong. 0 if unknown
+	private int bad; // Shortest interval without pong. 0 if unknown
+	private int successes;
+
+	KeepAliveController(Context context) {
+		learned = context.getSharedPreferences(PREFERENCES_NAME,
+				Context.MODE_PRIVATE);
+	}
+
+	/*
+	 * Intervals in seconds
+	 */
+	synchronized void configure(int initialInterval, int minInterval,
+			int maxInterval) {
+		this.minInterval = Math.max(1, minInterval);
+		this.maxInterval = Math.max(this.minInterval, maxInterval);
+		this.initialInterval = clamp(initialInterval);
+		if (network != null)
+			interval = clamp(interval);
+	}
+
+	/*
+	 * Switch to the network, restoring what was learned about it
+	 */
+	synchronized void setNetwork(String network) {
+		if (network == null || network.equals(this.network))
+			return;
+
+		this.network = network;
+		interval = clamp(learned.getInt(network + ".interval",
+				initialInterval));
+		good = learned.getInt(network + ".good", 0);
+		bad = learned.getInt(network + ".bad", 0);
+		successes = 0;
+		addHistory("network");
+	}
+
+	public synchronized String getNetwork() {
+		return network;
+	}
+
+	/**
+	 * @return Current keep alive interval in seconds
+	 */
+	public synchronized int getCurrentInterval() {
+		return network == null ? initialInterval : interval;
+	}
+
+	/**
+	 * @return Latest interval changes, oldest first
+	 */
+	public synchronized List<Change> getHistory() {
+		return new ArrayList<Change>(history);
+	}
+
+	/*
+	 * A pong arrived for a ping sent after being idle for sentInterval.
+	 * Return the interval to use from now on
+	 */
+	synchronized int onPong(int sentInterval) {
+		if (network == null)
+			return getCurrentInterval();
+
+		good = Math.max(good, sentInterval);
+		if (sentInterval != interval)
+			return interval; // Interval changed since the ping
+
+		successes++;
+		if (successes >= PROBE_SUCCESSES) {
+			int next = clamp(bad > 0 ? (good + bad) / 2 : interval * 3 / 2);
+			if (next - interval >= MIN_PROBE_STEP
+					|| (bad == 0 && next > interval)) {
+				interval = next;
+				successes = 0;
+				addHistory("probe");
+			} else if (bad > 0 && successes >= REPROBE_SUCCESSES) {
+				// Converged for long
+				log.debug("Forget keep alive failures at " + bad
+						+ " s on network " + network);
+				bad = 0;
+				successes = 0;
+			}
+		}
+
+		save();
+		return interval;
+	}
+
+	/*
+	 * No pong for a ping sent after being idle for sentInterval. Return the
+	 * interval to use from now on
+	 */
+	synchronized int onPongLost(int sentInterval) {
+		if (network == null)
+			return getCurrentInterval();
+
+		if (bad == 0 || sentInterval < bad)
+			bad = sentInterval;
+		if (good >= bad)
+			good = 0; // The binding got shorter
+
+		int next = clamp(good > 0 ? good : sentInterval / 2);
+		successes = 0;
+		if (next != interval) {
+			interval = next;
+			addHistory("backoff");
+		}
+
+		save();
+		return interval;
+	}
+
+	private int clamp(int seconds) {
+		return Math.max(minInterval, Math.min(maxInterval, seconds));
+	}
+
+	private void save() {
+		learned.edit().putInt(network + ".interval", interval)
+				.putInt(network + ".good", good)
+				.putInt(network + ".bad", bad).apply();
+	}
+
+	private void addHistory(String reason) {
+		log.info("Keep alive interval " + interval + " s on network "
+				+ network + " (" + reason + ")");
+		history.addLast(new Change(System.currentTimeMillis(), network,
+				interval, reason));
+		if (history.size() > HISTORY_SIZE)
+			history.removeFirst();
+	}
+
+	public static class Change {
+
+		private final long time;
+		private final String network;
+		private final int interval;
+		private final String reason;
+
+		private Change(long time, String network, int interval, String reason) {
+			this.time = time;
+			this.network = network;
+			this.interval = interval;
+			this.reason = reason;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public String getNetwork() {
+			return network;
+		}
+
+		/**
+		 * @return Seconds
+		 */
+		public int getInterval() {
+			return interval;
+		}
+
+		/**
+		 * @return network, probe or backoff
+		 */
+		public String getReason() {
+			return reason;
+		}
+
+		@Override
+		public String toString() {
+			return time + " " + network + " " + interval + "s " + reason;
+		}
+	}
+
+}
@@ -0,0 +1,224 @@
+/*
+Kurento Sip User Agent implementation.
+Copyright (C) <2011>  <Tikal Technologies>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License version 3
+as published by the Free Software Foundation.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package com.kurento.kas.sip.ua;
+
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the pong of the CRLF keep alives sent on a flow (rfc5626 4.4.1).
+ * Anything received on the connection after the ping counts as the pong, as
+ * it proves the flow is alive. On datagram flows the pong is the STUN
+ * response to the keep alive (rfc5626 4.4.2). A flow without pong before the
+ * deadline is dead.
+ */
+public class KeepAliveMonitor {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(KeepAliveMonitor.class.getSimpleName());
+
+	enum PongResult {
+		RECEIVED, REBOUND, LOST, NOT_TRACKED
+	}
+
+	private final Map<String, FlowStats> flows = new HashMap<String, FlowStats>();
+
+	private KurentoSslNetworkLayer networkLayer;
+	private SocketAddress pingFlow;
+	private boolean datagramPing;
+	private SocketAddress datagramPingServer;
+	private long datagramPongRtt = -1;
+	private boolean datagramRebound;
+	private SocketAddress mappedFlow;
+	private SocketAddress mapped;
+
+	KeepAliveMonitor() {
+	}
+
+	synchronized void setNetworkLayer(KurentoSslNetworkLayer networkLayer) {
+		this.networkLayer = networkLayer;
+		pingFlow = null;
+	}
+
+	/*
+	 * Return true if the pong of the ping just sent on the flow can be
+	 * tracked
+	 */
+	synchronized boolean onPingSent(SocketAddress flow) {
+		pingFlow = null;
+		if (networkLayer == null || flow == null
+				|| !networkLayer.markConnection(flow))
+			return false;
+
+		pingFlow = flow;
+		datagramPing = false;
+		getStats(flow).pings++;
+		return true;
+	}
+
+	/*
+	 * Same for a datagram flow, whose pong is the STUN response to the keep
+	 * alive (rfc5626 4.4.2). Call it before sending the request
+	 */
+	synchronized boolean onStunPingSent(SocketAddress flow, SocketAddress server) {
+		pingFlow = null;
+		if (flow == null || server == null)
+			return false;
+
+		pingFlow = flow;
+		datagramPing = true;
+		datagramPingServer = server;
+		datagramPongRtt = -1;
+		datagramRebound = false;
+		getStats(flow).pings++;
+		return true;
+	}
+
+	/*
+	 * STUN response received on the datagram flow. Only the one from the
+	 * server the keep alive was sent to is its pong. A mapped address other
+	 * than the one of the previous pong means the NAT binding expired in
+	 * between, even if the pong arrived
+	 */
+	synchronized void onStunPong(SocketAddress server,
+			SocketAddress mappedAddress, long rtt) {
+		if (pingFlow == null || !datagramPing || datagramPongRtt >= 0
+				|| !datagramPingServer.equals(server))
+			return;
+
+		datagramPongRtt = Math.max(0, rtt);
+		datagramRebound = pingFlow.equals(mappedFlow) && mapped != null
+				&& !mapped.equals(mappedAddress);
+		mappedFlow = pingFlow;
+		mapped = mappedAddress;
+	}
+
+	/*
+	 * The flow is dead if the pong was lost: nothing arrived since the ping.
+	 * It was rebound if its NAT binding expired since the previous pong
+	 */
+	synchronized PongResult onPongDeadline(SocketAddress flow) {
+		if (pingFlow == null || !pingFlow.equals(flow))
+			return PongResult.NOT_TRACKED; // Ping superseded or flow gone
+		pingFlow = null;
+
+		FlowStats stats = getStats(flow);
+		long rtt = datagramPing ? datagramPongRtt : networkLayer
+				.getTimeToReadAfterMark(flow);
+		if (rtt < 0 && datagramPing && stats.pongs == 0) {
+			// A server that never answered STUN can not tell a dead flow
+			return PongResult.NOT_TRACKED;
+		}
+		if (rtt < 0) {
+			stats.failures++;
+			log.warn("No keep alive pong from flow " + flow);
+			return PongResult.LOST;
+		}
+
+		stats.pongs++;
+		stats.lastRtt = rtt;
+		// rfc6298 smoothing
+		stats.smoothedRtt = stats.smoothedRtt < 0 ? rtt
+				: (7 * stats.smoothedRtt + rtt) / 8;
+		log.trace("Keep alive pong from flow " + flow + " in " + rtt + " ms");
+		if (datagramPing && datagramRebound) {
+			stats.failures++;
+			log.warn("NAT binding of flow " + flow + " expired");
+			return PongResult.REBOUND;
+		}
+		return PongResult.RECEIVED;
+	}
+
+	/**
+	 * Snapshot of the statistics of every flow where keep alives were sent,
+	 * by local address.
+	 */
+	public synchronized Map<String, FlowStats> getFlowStats() {
+		Map<String, FlowStats> copy = new HashMap<String, FlowStats>();
+		for (Map.Entry<String, FlowStats> e : flows.entrySet())
+			copy.put(e.getKey(), new FlowStats(e.getValue()));
+		return Collections.unmodifiableMap(copy);
+	}
+
+	private FlowStats getStats(SocketAddress flow) {
+		String key = flow.toString();
+		FlowStats stats = flows.get(key);
+		if (stats == null) {
+			stats = new FlowStats();
+			flows.put(key, stats);
+		}
+		return stats;
+	}
+
+	public static class FlowStats {
+
+		private long pings = 0;
+		private long pongs = 0;
+		private long failures = 0;
+		private long lastRtt = -1;
+		private long smoothedRtt = -1;
+
+		private FlowStats() {
+		}
+
+		private FlowStats(FlowStats other) {
+			pings = other.pings;
+			pongs = other.pongs;
+			failures = other.failures;
+			lastRtt = other.lastRtt;
+			smoothedRtt = other.smoothedRtt;
+		}
+
+		public long getPings() {
+			return pings;
+		}
+
+		public long getPongs() {
+			return pongs;
+		}
+
+		public long getFailures() {
+			return failures;
+		}
+
+		/**
+		 * @return Milliseconds, or -1 if no pong has been received
+		 */
+		public long getLastRtt() {
+			return lastRtt;
+		}
+
+		/**
+		 * @return Milliseconds, or -1 if no pong has been received
+		 */
+		public long getSmoothedRtt() {
+			return smoothedRtt;
+		}
+
+		@Override
+		public String toString() {
+			return "pings=" + pings + " pongs=" + pongs + " failures="
+					+ failures + " rtt=" + lastRtt + " srtt=" + smoothedRtt;
+		}
+	}
+
+}
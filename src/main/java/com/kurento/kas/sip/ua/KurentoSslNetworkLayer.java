@@ -19,7 +19,9 @@ package com.kurento.kas.sip.ua;
 import gov.nist.core.net.NetworkLayer;
 
 import java.io.IOException;
+import java.io.FilterInputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -33,11 +35,15 @@ import java.security.KeyStore;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
@@ -48,10 +54,23 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import android.content.Context;
+import android.os.SystemClock;
+
+import com.kurento.kas.sip.util.StunClient;
+import com.kurento.kas.sip.util.StunDatagramSocket;
 
 /**
  * SslNetworkLayer implementation for Android using keystores/truststores from
  * res dir.
+ * <p>
+ * Client connections are monitored: when one is closed, either by the stack
+ * after a read or write error or by the peer, the {@link ConnectionListener}
+ * is notified. TLS connections are layered over a monitored plain socket.
+ * <p>
+ * Connections can also be marked to know when something is received after
+ * the mark, e.g. the CRLF pong of a keep alive.
+ * <p>
+ * The SIP UDP socket is shared with a STUN client.
  * 
  */
 public class KurentoSslNetworkLayer implements NetworkLayer {
@@ -65,6 +84,31 @@ public class KurentoSslNetworkLayer implements NetworkLayer {
 
 	private static final int MAX_RETRIES = 20;
 
+	/**
+	 * Notified from the stack threads when a client connection is closed.
+	 */
+	public interface ConnectionListener {
+
+		/**
+		 * @param localAddress
+		 *            Local address of the closed connection
+		 * @param remoteAddress
+		 *            Remote address of the closed connection
+		 * @param failure
+		 *            true if the peer closed or reset the connection before
+		 */
+		void onConnectionClosed(SocketAddress localAddress,
+				SocketAddress remoteAddress, boolean failure);
+
+	}
+
+	private volatile ConnectionListener connectionListener;
+
+	// Open client connections by local address
+	private final ConcurrentHashMap<SocketAddress, MonitoredSocket> connections = new ConcurrentHashMap<SocketAddress, MonitoredSocket>();
+
+	private volatile StunDatagramSocket sipDatagramSocket;
+
 	public KurentoSslNetworkLayer() throws GeneralSecurityException {
 		SecureRandom secureRandom = new SecureRandom();
 		secureRandom.nextInt();
@@ -113,6 +157,65 @@ public class KurentoSslNetworkLayer implements NetworkLayer {
 		sslSocketFactory = sslContext.getSocketFactory();
 	}
 
+	public void setConnectionListener(ConnectionListener connectionListener) {
+		this.connectionListener = connectionListener;
+	}
+
+	/**
+	 * Start waiting for data on a connection.
+	 * 
+	 * @return false if the connection is not open or nothing has been read
+	 *         from it yet, so its reads can not be told to be observed
+	 */
+	public boolean markConnection(SocketAddress localAddress) {
+		MonitoredSocket s = connections.get(localAddress);
+		if (s == null || s.lastRead == 0)
+			return false;
+
+		s.markReadTime = 0;
+		s.markTime = SystemClock.elapsedRealtime();
+		return true;
+	}
+
+	/**
+	 * @return Milliseconds from the mark to the first data received after it,
+	 *         or -1 if nothing has been received
+	 */
+	public long getTimeToReadAfterMark(SocketAddress localAddress) {
+		MonitoredSocket s = connections.get(localAddress);
+		if (s == null || s.markReadTime == 0)
+			return -1;
+
+		return s.markReadTime - s.markTime;
+	}
+
+	/**
+	 * @return false if the connection is closed or was never opened
+	 */
+	public boolean isConnectionOpen(SocketAddress localAddress) {
+		MonitoredSocket s = connections.get(localAddress);
+		return s != null && !s.isClosed();
+	}
+
+	/**
+	 * Close a connection, e.g. because it is known to be dead. The stack is
+	 * notified as with any other connection error.
+	 * 
+	 * @return false if the connection is not open
+	 */
+	public boolean closeConnection(SocketAddress localAddress) {
+		MonitoredSocket s = connections.get(localAddress);
+		if (s == null)
+			return false;
+
+		try {
+			s.close();
+		} catch (IOException e) {
+			log.warn("Error closing connection " + localAddress, e);
+		}
+		return true;
+	}
+
 	public ServerSocket createServerSocket(int port, int backlog,
 			InetAddress bindAddress) throws IOException {
 		return new ServerSocket(port, backlog, bindAddress);
@@ -124,7 +227,21 @@ public class KurentoSslNetworkLayer implements NetworkLayer {
 
 	public DatagramSocket createDatagramSocket(int port, InetAddress laddr)
 			throws SocketException {
-		return new DatagramSocket(port, laddr);
+		// Only listening points bind a port
+		StunDatagramSocket s = new StunDatagramSocket(port, laddr);
+		sipDatagramSocket = s;
+		return s;
+	}
+
+	/**
+	 * @return STUN client of the last UDP listening point, or null if there
+	 *         is none
+	 */
+	public StunClient getStunClient() {
+		StunDatagramSocket s = sipDatagramSocket;
+		if (s == null || s.isClosed())
+			return null;
+		return s.getStunClient();
 	}
 
 	public SSLServerSocket createSSLServerSocket(int port, int backlog,
@@ -135,26 +252,31 @@ public class KurentoSslNetworkLayer implements NetworkLayer {
 
 	public SSLSocket createSSLSocket(InetAddress address, int port)
 			throws IOException {
-		return (SSLSocket) sslSocketFactory.createSocket(address, port);
+		return createSSLSocket(address, port, null);
 	}
 
 	public SSLSocket createSSLSocket(InetAddress address, int port,
 			InetAddress myAddress) throws IOException {
-		return (SSLSocket) sslSocketFactory.createSocket(address, port,
-				myAddress, 0);
+		// Closing the SSL socket closes the monitored one below
+		MonitoredSocket s = (MonitoredSocket) createSocket(address, port,
+				myAddress);
+		SSLSocket ssl = (SSLSocket) sslSocketFactory.createSocket(s,
+				address.getHostAddress(), port, true);
+		return new MonitoredSslSocket(ssl, s);
 	}
 
 	public Socket createSocket(InetAddress address, int port)
 			throws IOException {
-		return new Socket(address, port);
+		return createSocket(address, port, null);
 	}
 
 	public Socket createSocket(InetAddress address, int port,
 			InetAddress myAddress) throws IOException {
+		Socket s = new MonitoredSocket();
 		if (myAddress != null)
-			return new Socket(address, port, myAddress, 0);
-		else
-			return new Socket(address, port);
+			s.bind(new InetSocketAddress(myAddress, 0));
+		s.connect(new InetSocketAddress(address, port));
+		return s;
 	}
 
 	/**
@@ -185,7 +307,7 @@ public class KurentoSslNetworkLayer implements NetworkLayer {
 
 		for (int i = 0; i < MAX_RETRIES; i++) {
 			try {
-				Socket s = new Socket();
+				Socket s = new MonitoredSocket();
 				SocketAddress sa = null;
 				if (myAddress != null)
 					sa = new InetSocketAddress(myAddress, myPort);
@@ -207,6 +329,335 @@ public class KurentoSslNetworkLayer implements NetworkLayer {
 		throw new IOException("Unable to connect socket");
 	}
 
+	/*
+	 * Socket that reports its closing. Addresses are kept on connect because
+	 * they are no longer available once closed
+	 */
+	private class MonitoredSocket extends Socket {
+
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+		private volatile boolean failure = false;
+		private SocketAddress localSocketAddress;
+		private SocketAddress remoteSocketAddress;
+		private InputStream inputStream;
+
+		private volatile long lastRead = 0;
+		private volatile long markTime = 0;
+		private volatile long markReadTime = 0;
+
+		@Override
+		public void connect(SocketAddress endpoint, int timeout)
+				throws IOException {
+			super.connect(endpoint, timeout);
+			localSocketAddress = getLocalSocketAddress();
+			remoteSocketAddress = getRemoteSocketAddress();
+			connections.put(localSocketAddress, this);
+		}
+
+		@Override
+		public synchronized InputStream getInputStream() throws IOException {
+			if (inputStream == null)
+				inputStream = new MonitoredInputStream(super.getInputStream());
+			return inputStream;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				if (closed.compareAndSet(false, true)) {
+					if (localSocketAddress != null)
+						connections.remove(localSocketAddress, this);
+					ConnectionListener listener = connectionListener;
+					if (listener != null && localSocketAddress != null)
+						listener.onConnectionClosed(localSocketAddress,
+								remoteSocketAddress, failure);
+				}
+			}
+		}
+
+		private void onRead(int r) {
+			if (r < 0) {
+				failure = true;
+				return;
+			}
+
+			long now = SystemClock.elapsedRealtime();
+			lastRead = now;
+			if (markTime != 0 && markReadTime == 0)
+				markReadTime = now;
+		}
+
+		private class MonitoredInputStream extends FilterInputStream {
+
+			private MonitoredInputStream(InputStream in) {
+				super(in);
+			}
+
+			@Override
+			public int read() throws IOException {
+				try {
+					int r = super.read();
+					onRead(r);
+					return r;
+				} catch (IOException e) {
+					failure = true;
+					throw e;
+				}
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				try {
+					int r = super.read(b, off, len);
+					onRead(r);
+					return r;
+				} catch (IOException e) {
+					failure = true;
+					throw e;
+				}
+			}
+		}
+	}
+
+	/*
+	 * SSL socket whose reads are reported to the monitored socket below it.
+	 * TLS implementations read the file descriptor of that socket directly,
+	 * so only the decrypted stream tells when data arrives
+	 */
+	private class MonitoredSslSocket extends SSLSocket {
+
+		private final SSLSocket ssl;
+		private final MonitoredSocket socket;
+		private InputStream inputStream;
+
+		private MonitoredSslSocket(SSLSocket ssl, MonitoredSocket socket) {
+			this.ssl = ssl;
+			this.socket = socket;
+		}
+
+		@Override
+		public synchronized InputStream getInputStream() throws IOException {
+			if (inputStream == null)
+				inputStream = socket.new MonitoredInputStream(
+						ssl.getInputStream());
+			return inputStream;
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return ssl.getOutputStream();
+		}
+
+		@Override
+		public void close() throws IOException {
+			ssl.close();
+		}
+
+		@Override
+		public boolean isClosed() {
+			return ssl.isClosed();
+		}
+
+		@Override
+		public boolean isConnected() {
+			return ssl.isConnected();
+		}
+
+		@Override
+		public boolean isBound() {
+			return ssl.isBound();
+		}
+
+		@Override
+		public boolean isInputShutdown() {
+			return ssl.isInputShutdown();
+		}
+
+		@Override
+		public boolean isOutputShutdown() {
+			return ssl.isOutputShutdown();
+		}
+
+		@Override
+		public void shutdownInput() throws IOException {
+			ssl.shutdownInput();
+		}
+
+		@Override
+		public void shutdownOutput() throws IOException {
+			ssl.shutdownOutput();
+		}
+
+		@Override
+		public InetAddress getInetAddress() {
+			return ssl.getInetAddress();
+		}
+
+		@Override
+		public int getPort() {
+			return ssl.getPort();
+		}
+
+		@Override
+		public InetAddress getLocalAddress() {
+			return ssl.getLocalAddress();
+		}
+
+		@Override
+		public int getLocalPort() {
+			return ssl.getLocalPort();
+		}
+
+		@Override
+		public SocketAddress getLocalSocketAddress() {
+			return ssl.getLocalSocketAddress();
+		}
+
+		@Override
+		public SocketAddress getRemoteSocketAddress() {
+			return ssl.getRemoteSocketAddress();
+		}
+
+		@Override
+		public void setSoTimeout(int timeout) throws SocketException {
+			ssl.setSoTimeout(timeout);
+		}
+
+		@Override
+		public int getSoTimeout() throws SocketException {
+			return ssl.getSoTimeout();
+		}
+
+		@Override
+		public void setTcpNoDelay(boolean on) throws SocketException {
+			ssl.setTcpNoDelay(on);
+		}
+
+		@Override
+		public boolean getTcpNoDelay() throws SocketException {
+			return ssl.getTcpNoDelay();
+		}
+
+		@Override
+		public void setKeepAlive(boolean on) throws SocketException {
+			ssl.setKeepAlive(on);
+		}
+
+		@Override
+		public boolean getKeepAlive() throws SocketException {
+			return ssl.getKeepAlive();
+		}
+
+		@Override
+		public void setSoLinger(boolean on, int linger) throws SocketException {
+			ssl.setSoLinger(on, linger);
+		}
+
+		@Override
+		public int getSoLinger() throws SocketException {
+			return ssl.getSoLinger();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return ssl.getSupportedCipherSuites();
+		}
+
+		@Override
+		public String[] getEnabledCipherSuites() {
+			return ssl.getEnabledCipherSuites();
+		}
+
+		@Override
+		public void setEnabledCipherSuites(String[] suites) {
+			ssl.setEnabledCipherSuites(suites);
+		}
+
+		@Override
+		public String[] getSupportedProtocols() {
+			return ssl.getSupportedProtocols();
+		}
+
+		@Override
+		public String[] getEnabledProtocols() {
+			return ssl.getEnabledProtocols();
+		}
+
+		@Override
+		public void setEnabledProtocols(String[] protocols) {
+			ssl.setEnabledProtocols(protocols);
+		}
+
+		@Override
+		public SSLSession getSession() {
+			return ssl.getSession();
+		}
+
+		@Override
+		public void addHandshakeCompletedListener(
+				HandshakeCompletedListener listener) {
+			ssl.addHandshakeCompletedListener(listener);
+		}
+
+		@Override
+		public void removeHandshakeCompletedListener(
+				HandshakeCompletedListener listener) {
+			ssl.removeHandshakeCompletedListener(listener);
+		}
+
+		@Override
+		public void startHandshake() throws IOException {
+			ssl.startHandshake();
+		}
+
+		@Override
+		public void setUseClientMode(boolean mode) {
+			ssl.setUseClientMode(mode);
+		}
+
+		@Override
+		public boolean getUseClientMode() {
+			return ssl.getUseClientMode();
+		}
+
+		@Override
+		public void setNeedClientAuth(boolean need) {
+			ssl.setNeedClientAuth(need);
+		}
+
+		@Override
+		public boolean getNeedClientAuth() {
+			return ssl.getNeedClientAuth();
+		}
+
+		@Override
+		public void setWantClientAuth(boolean want) {
+			ssl.setWantClientAuth(want);
+		}
+
+		@Override
+		public boolean getWantClientAuth() {
+			return ssl.getWantClientAuth();
+		}
+
+		@Override
+		public void setEnableSessionCreation(boolean flag) {
+			ssl.setEnableSessionCreation(flag);
+		}
+
+		@Override
+		public boolean getEnableSessionCreation() {
+			return ssl.getEnableSessionCreation();
+		}
+
+		@Override
+		public String toString() {
+			return ssl.toString();
+		}
+	}
+
 	// Trust manager that does not validate certificate chains
 	private static final TrustManager[] trustAllCerts = new TrustManager[] { new X509TrustManager() {
 		@Override
@@ -0,0 +1,233 @@
+/*
+Kurento Sip User Agent implementation.
+Copyright (C) <2011>  <Tikal Technologies>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License version 3
+as published by the Free Software Foundation.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package com.kurento.kas.sip.ua;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.os.SystemClock;
+
+import com.kurento.kas.ua.KurentoException;
+
+/**
+ * Holds the outgoing operations (dial, unregister) requested while the SIP
+ * provider is down, e.g. during a network change, so that short outages do
+ * not fail them.
+ * <ul>
+ * <li>Operations are run in the order they were requested once the provider
+ * is up again.</li>
+ * <li>Each operation fails if the provider is not up before its deadline.</li>
+ * <li>The queue is bounded: an operation that does not fit fails at once.</li>
+ * </ul>
+ * The queue is only accessed from the UA looper. Metrics can be read from any
+ * thread.
+ */
+public class PendingOperationQueue {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(PendingOperationQueue.class.getSimpleName());
+
+	/*
+	 * Operation waiting for the SIP provider
+	 */
+	static abstract class Operation {
+
+		private long enqueuedUptime;
+		private long deadlineUptime;
+
+		/*
+		 * The provider is up
+		 */
+		abstract void run();
+
+		/*
+		 * The operation can not be run
+		 */
+		abstract void fail(KurentoException e);
+
+	}
+
+	private final Preferences preferences;
+	private final LinkedList<Operation> queue = new LinkedList<Operation>();
+	private boolean expireScheduled = false;
+
+	// Metrics
+	private volatile int queueDepth = 0;
+	private volatile int maxQueueDepth = 0;
+	private final AtomicLong runCount = new AtomicLong();
+	private final AtomicLong expiredCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong totalQueueWaitMillis = new AtomicLong();
+	private volatile long maxQueueWaitMillis = 0;
+	private volatile long lastQueueWaitMillis = 0;
+
+	PendingOperationQueue(Preferences preferences) {
+		this.preferences = preferences;
+	}
+
+	// ////////////////
+	//
+	// QUEUE (UA looper only)
+	//
+	// ////////////////
+
+	/*
+	 * Queue the operation until the provider is up. It fails at once if the
+	 * queue is full
+	 */
+	void add(Operation op) {
+		if (queue.size() >= preferences.getSipPendingQueueSize()) {
+			rejectedCount.incrementAndGet();
+			log.warn("Pending operation queue full (" + queue.size() + ")");
+			op.fail(new KurentoException(
+					"SIP Provider is not enabled and too many operations are pending"));
+			return;
+		}
+
+		op.enqueuedUptime = SystemClock.uptimeMillis();
+		op.deadlineUptime = op.enqueuedUptime
+				+ preferences.getSipPendingTimeoutMillis();
+		queue.addLast(op);
+		queueDepth = queue.size();
+		if (queueDepth > maxQueueDepth)
+			maxQueueDepth = queueDepth;
+		log.debug("Operation pending until SIP provider is enabled ("
+				+ queueDepth + " pending)");
+	}
+
+	/*
+	 * The provider is up: run every pending operation in order
+	 */
+	void flush() {
+		if (queue.isEmpty())
+			return;
+
+		log.info("SIP provider enabled, run " + queue.size()
+				+ " pending operation(s)");
+		long now = SystemClock.uptimeMillis();
+		while (!queue.isEmpty()) {
+			Operation op = queue.removeFirst();
+			queueDepth = queue.size();
+
+			long wait = now - op.enqueuedUptime;
+			lastQueueWaitMillis = wait;
+			totalQueueWaitMillis.addAndGet(wait);
+			if (wait > maxQueueWaitMillis)
+				maxQueueWaitMillis = wait;
+			runCount.incrementAndGet();
+
+			op.run();
+		}
+	}
+
+	/*
+	 * Fail the operations past their deadline
+	 */
+	void expire() {
+		long now = SystemClock.uptimeMillis();
+		Iterator<Operation> it = queue.iterator();
+		while (it.hasNext()) {
+			Operation op = it.next();
+			if (op.deadlineUptime > now)
+				continue;
+
+			it.remove();
+			queueDepth = queue.size();
+			expiredCount.incrementAndGet();
+			op.fail(new KurentoException("SIP Provider is not enabled after "
+					+ (now - op.enqueuedUptime) + " ms"));
+		}
+	}
+
+	/*
+	 * Fail every pending operation, e.g. when the UA is terminated
+	 */
+	void clear(KurentoException e) {
+		while (!queue.isEmpty()) {
+			Operation op = queue.removeFirst();
+			queueDepth = queue.size();
+			op.fail(e);
+		}
+	}
+
+	/*
+	 * Delay until the next deadline, or -1 if the queue is empty
+	 */
+	long getNextDelay() {
+		if (queue.isEmpty())
+			return -1;
+
+		long deadline = Long.MAX_VALUE;
+		for (Operation op : queue)
+			deadline = Math.min(deadline, op.deadlineUptime);
+		return Math.max(0, deadline - SystemClock.uptimeMillis());
+	}
+
+	boolean isExpireScheduled() {
+		return expireScheduled;
+	}
+
+	void setExpireScheduled(boolean expireScheduled) {
+		this.expireScheduled = expireScheduled;
+	}
+
+	// ////////////////
+	//
+	// METRICS
+	//
+	// ////////////////
+
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	public long getRunCount() {
+		return runCount.get();
+	}
+
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	public long getLastQueueWaitMillis() {
+		return lastQueueWaitMillis;
+	}
+
+	public long getMaxQueueWaitMillis() {
+		return maxQueueWaitMillis;
+	}
+
+	public long getAverageQueueWaitMillis() {
+		long run = runCount.get();
+		if (run == 0)
+			return 0;
+		return totalQueueWaitMillis.get() / run;
+	}
+
+}
@@ -14,9 +14,15 @@ public class Preferences {
 	public static final String SIP_ONLY_IPV4 = "SIP_ONLY_IPV4";
 	public static final String SIP_TRANSPORT = "TRANSPORT";
 	public static final String SIP_PERSISTENT_CONNECTION = "SIP_PERSISTENT_CONNECTION";
+	public static final String SIP_HANDOVER = "SIP_HANDOVER";
 
 	public static final String ENABLE_SIP_KEEP_ALIVE = "ENABLE_SIP_KEEP_ALIVE";
 	public static final String SIP_KEEP_ALIVE_SECONDS = "SIP_KEEP_ALIVE_SECONDS";
+	public static final String SIP_KEEP_ALIVE_TOLERANCE_SECONDS = "SIP_KEEP_ALIVE_TOLERANCE_SECONDS";
+	public static final String SIP_KEEP_ALIVE_PONG_TIMEOUT_MILLIS = "SIP_KEEP_ALIVE_PONG_TIMEOUT_MILLIS";
+	public static final String SIP_KEEP_ALIVE_ADAPTIVE = "SIP_KEEP_ALIVE_ADAPTIVE";
+	public static final String SIP_KEEP_ALIVE_MIN_SECONDS = "SIP_KEEP_ALIVE_MIN_SECONDS";
+	public static final String SIP_KEEP_ALIVE_MAX_SECONDS = "SIP_KEEP_ALIVE_MAX_SECONDS";
 
 	public static final String SIP_TRUST_ANY_TLS_CONNECTION = "SIP_TRUST_ANY_TLS_CONNECTION";
 	public static final String SIP_TLS_TRUSTSTORE_RAW_RES_NAME = "SIP_TLS_TRUSTSTORE_RAW_RES_NAME";
@@ -25,10 +31,24 @@ public class Preferences {
 	// SIP Proxy Server
 	public static final String SIP_PROXY_SERVER_ADDRESS = "PROXY_SERVER_ADDRESS"; // Mandatory
 	public static final String SIP_PROXY_SERVER_PORT = "PROXY_SERVER_PORT"; // Mandatory
+	public static final String SIP_PROXY_SRV = "PROXY_SRV";
+	public static final String SIP_DNS_SERVERS = "DNS_SERVERS";
 
 	// Local SIP stack
 	public static final String SIP_LOCAL_PORT = "LOCAL_PORT";
 	public static final String SIP_REG_EXPIRES = "REG_EXPIRES";
+	public static final String SIP_REG_PACING_MILLIS = "REG_PACING_MILLIS";
+	public static final String SIP_REG_JITTER_MILLIS = "REG_JITTER_MILLIS";
+	public static final String SIP_STUN_SERVER = "STUN_SERVER";
+	public static final String SIP_REG_REFRESH_TOLERANCE_SECONDS = "REG_REFRESH_TOLERANCE_SECONDS";
+	public static final String SIP_PENDING_QUEUE_SIZE = "PENDING_QUEUE_SIZE";
+	public static final String SIP_PENDING_TIMEOUT_MILLIS = "PENDING_TIMEOUT_MILLIS";
+	public static final String SIP_DRAIN_TIMEOUT_MILLIS = "DRAIN_TIMEOUT_MILLIS";
+
+	// Diagnostics
+	public static final String SIP_WIRE_TRACE = "SIP_WIRE_TRACE";
+	public static final String SIP_WIRE_TRACE_CALL_SAMPLING = "SIP_WIRE_TRACE_CALL_SAMPLING";
+	public static final String SIP_WIRE_TRACE_METHOD_SAMPLING = "SIP_WIRE_TRACE_METHOD_SAMPLING";
 
 	private final Context context;
 	private final SharedPreferences pref;
@@ -71,6 +91,11 @@ public class Preferences {
 						.equalsIgnoreCase(sipTransport));
 	}
 
+	public boolean isSipHandover() {
+		return pref.getBoolean(SIP_HANDOVER, context.getResources()
+				.getBoolean(R.bool.preference_sip_handover_default));
+	}
+
 	public boolean isEnableSipKeepAlive() {
 		return pref.getBoolean(ENABLE_SIP_KEEP_ALIVE, context.getResources()
 				.getBoolean(R.bool.preference_enable_sip_keep_alive_default));
@@ -87,6 +112,59 @@ public class Preferences {
 		return sipKeepAliveSeconds;
 	}
 
+	public int getSipKeepAliveToleranceSeconds() {
+		int sipKeepAliveToleranceSeconds = pref
+				.getInt(SIP_KEEP_ALIVE_TOLERANCE_SECONDS,
+						Integer.parseInt(context
+								.getString(R.integer.preference_sip_keep_alive_tolerance_seconds_default)));
+		if (sipKeepAliveToleranceSeconds < 0)
+			throw new RuntimeException(SIP_KEEP_ALIVE_TOLERANCE_SECONDS
+					+ " must be >= 0");
+
+		return sipKeepAliveToleranceSeconds;
+	}
+
+	public int getSipKeepAlivePongTimeoutMillis() {
+		int sipKeepAlivePongTimeoutMillis = pref
+				.getInt(SIP_KEEP_ALIVE_PONG_TIMEOUT_MILLIS,
+						Integer.parseInt(context
+								.getString(R.integer.preference_sip_keep_alive_pong_timeout_millis_default)));
+		if (sipKeepAlivePongTimeoutMillis < 0)
+			throw new RuntimeException(SIP_KEEP_ALIVE_PONG_TIMEOUT_MILLIS
+					+ " must be >= 0");
+
+		return sipKeepAlivePongTimeoutMillis;
+	}
+
+	public boolean isSipKeepAliveAdaptive() {
+		return pref.getBoolean(SIP_KEEP_ALIVE_ADAPTIVE, context.getResources()
+				.getBoolean(R.bool.preference_sip_keep_alive_adaptive_default));
+	}
+
+	public int getSipKeepAliveMinSeconds() {
+		int sipKeepAliveMinSeconds = pref
+				.getInt(SIP_KEEP_ALIVE_MIN_SECONDS,
+						Integer.parseInt(context
+								.getString(R.integer.preference_sip_keep_alive_min_seconds_default)));
+		if (sipKeepAliveMinSeconds < 1)
+			throw new RuntimeException(SIP_KEEP_ALIVE_MIN_SECONDS
+					+ " must be >= 1");
+
+		return sipKeepAliveMinSeconds;
+	}
+
+	public int getSipKeepAliveMaxSeconds() {
+		int sipKeepAliveMaxSeconds = pref
+				.getInt(SIP_KEEP_ALIVE_MAX_SECONDS,
+						Integer.parseInt(context
+								.getString(R.integer.preference_sip_keep_alive_max_seconds_default)));
+		if (sipKeepAliveMaxSeconds < getSipKeepAliveMinSeconds())
+			throw new RuntimeException(SIP_KEEP_ALIVE_MAX_SECONDS
+					+ " must be >= " + SIP_KEEP_ALIVE_MIN_SECONDS);
+
+		return sipKeepAliveMaxSeconds;
+	}
+
 	public boolean isSipTrustAnyTlsConnection() {
 		return pref.getBoolean(
 				SIP_TRUST_ANY_TLS_CONNECTION,
@@ -125,6 +203,16 @@ public class Preferences {
 								.getString(R.integer.preference_sip_proxy_server_port_default)));
 	}
 
+	public boolean isSipProxySrv() {
+		return pref.getBoolean(SIP_PROXY_SRV, context.getResources()
+				.getBoolean(R.bool.preference_sip_proxy_srv_default));
+	}
+
+	public String getSipDnsServers() {
+		return pref.getString(SIP_DNS_SERVERS,
+				context.getString(R.string.preference_sip_dns_servers_default));
+	}
+
 	public int getSipLocalPort() {
 		int sipLocalPort = pref.getInt(SIP_LOCAL_PORT, Integer.parseInt(context
 				.getString(R.integer.preference_sip_local_port_default)));
@@ -145,4 +233,102 @@ public class Preferences {
 		return sipRegExpires;
 	}
 
+	public int getSipRegPacingMillis() {
+		int sipRegPacingMillis = pref
+				.getInt(SIP_REG_PACING_MILLIS,
+						Integer.parseInt(context
+								.getString(R.integer.preference_sip_reg_pacing_millis_default)));
+		if (sipRegPacingMillis < 0)
+			throw new RuntimeException(SIP_REG_PACING_MILLIS + " must be >= 0");
+
+		return sipRegPacingMillis;
+	}
+
+	public int getSipRegJitterMillis() {
+		int sipRegJitterMillis = pref
+				.getInt(SIP_REG_JITTER_MILLIS,
+						Integer.parseInt(context
+								.getString(R.integer.preference_sip_reg_jitter_millis_default)));
+		if (sipRegJitterMillis < 0)
+			throw new RuntimeException(SIP_REG_JITTER_MILLIS + " must be >= 0");
+
+		return sipRegJitterMillis;
+	}
+
+	public int getSipRegRefreshToleranceSeconds() {
+		int sipRegRefreshToleranceSeconds = pref
+				.getInt(SIP_REG_REFRESH_TOLERANCE_SECONDS,
+						Integer.parseInt(context
+								.getString(R.integer.preference_sip_reg_refresh_tolerance_seconds_default)));
+		if (sipRegRefreshToleranceSeconds < 0)
+			throw new RuntimeException(SIP_REG_REFRESH_TOLERANCE_SECONDS
+					+ " must be >= 0");
+
+		return sipRegRefreshToleranceSeconds;
+	}
+
+	public int getSipPendingQueueSize() {
+		int sipPendingQueueSize = pref
+				.getInt(SIP_PENDING_QUEUE_SIZE,
+						Integer.parseInt(context
+								.getString(R.integer.preference_sip_pending_queue_size_default)));
+		if (sipPendingQueueSize < 0)
+			throw new RuntimeException(SIP_PENDING_QUEUE_SIZE + " must be >= 0");
+
+		return sipPendingQueueSize;
+	}
+
+	public int getSipPendingTimeoutMillis() {
+		int sipPendingTimeoutMillis = pref
+				.getInt(SIP_PENDING_TIMEOUT_MILLIS,
+						Integer.parseInt(context
+								.getString(R.integer.preference_sip_pending_timeout_millis_default)));
+		if (sipPendingTimeoutMillis < 0)
+			throw new RuntimeException(SIP_PENDING_TIMEOUT_MILLIS
+					+ " must be >= 0");
+
+		return sipPendingTimeoutMillis;
+	}
+
+	public int getSipDrainTimeoutMillis() {
+		int sipDrainTimeoutMillis = pref
+				.getInt(SIP_DRAIN_TIMEOUT_MILLIS,
+						Integer.parseInt(context
+								.getString(R.integer.preference_sip_drain_timeout_millis_default)));
+		if (sipDrainTimeoutMillis < 0)
+			throw new RuntimeException(SIP_DRAIN_TIMEOUT_MILLIS
+					+ " must be >= 0");
+
+		return sipDrainTimeoutMillis;
+	}
+
+	public boolean isSipWireTrace() {
+		return pref.getBoolean(SIP_WIRE_TRACE, context.getResources()
+				.getBoolean(R.bool.preference_sip_wire_trace_default));
+	}
+
+	public int getSipWireTraceCallSampling() {
+		int sipWireTraceCallSampling = pref
+				.getInt(SIP_WIRE_TRACE_CALL_SAMPLING,
+						Integer.parseInt(context
+								.getString(R.integer.preference_sip_wire_trace_call_sampling_default)));
+		if (sipWireTraceCallSampling < 1)
+			throw new RuntimeException(SIP_WIRE_TRACE_CALL_SAMPLING
+					+ " must be >= 1");
+
+		return sipWireTraceCallSampling;
+	}
+
+	public String getSipWireTraceMethodSampling() {
+		return pref
+				.getString(
+						SIP_WIRE_TRACE_METHOD_SAMPLING,
+						context.getString(R.string.preference_sip_wire_trace_method_sampling_default));
+	}
+
+	public String getSipStunServer() {
+		return pref.getString(SIP_STUN_SERVER,
+				context.getString(R.string.preference_sip_stun_server_default));
+	}
+
 }
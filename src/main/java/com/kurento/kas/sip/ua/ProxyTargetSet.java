@@ -0,0 +1,375 @@
+/*
+Kurento Sip User Agent implementation.
+Copyright (C) <2011>  <Tikal Technologies>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License version 3
+as published by the Free Software Foundation.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package com.kurento.kas.sip.ua;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.os.SystemClock;
+
+/**
+ * Proxies located for the configured proxy address, with a health score
+ * each, so out of dialog requests go to the best one and move to the next
+ * when it fails (rfc3263 4.3).
+ * <ul>
+ * <li>Proxies of the lowest SRV priority are used first. Within a priority
+ * the DNS order, weighted at random (rfc2782), is kept among healthy
+ * proxies.</li>
+ * <li>The score is a penalty within the priority: {@value #FAILURE_PENALTY}
+ * ms per consecutive failure (timeout, transport error, 503), plus the
+ * smoothed latency above the fastest proxy of the priority when it is more
+ * than {@value #LATENCY_TOLERANCE} ms slower. The lowest wins; ties keep the
+ * DNS order.</li>
+ * <li>After {@value #FAILURES_TO_BLACKLIST} consecutive failures, or a 503,
+ * the proxy is blacklisted for {@value #BLACKLIST_MILLIS} ms, doubling each
+ * time up to {@value #MAX_BLACKLIST_MILLIS} ms, or for its Retry-After.</li>
+ * <li>Any response clears the failures of a proxy.</li>
+ * </ul>
+ * Blacklisted proxies are only used when no other is left.
+ */
+public class ProxyTargetSet {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(ProxyTargetSet.class.getSimpleName());
+
+	public enum Failure {
+		TIMEOUT, TRANSPORT_ERROR, SERVICE_UNAVAILABLE
+	}
+
+	static final long FAILURE_PENALTY = 2000; // milliseconds
+	static final long LATENCY_TOLERANCE = 100; // milliseconds
+	static final int FAILURES_TO_BLACKLIST = 2;
+	static final long BLACKLIST_MILLIS = 30000;
+	static final long MAX_BLACKLIST_MILLIS = 300000;
+
+	private final List<Target> targets = new ArrayList<Target>();
+
+	ProxyTargetSet() {
+	}
+
+	/*
+	 * Replace the proxies, in DNS order with the SRV priority of each, e.g.
+	 * when located again. The health of those still present is kept
+	 */
+	synchronized void setTargets(List<InetSocketAddress> addresses,
+			List<Integer> priorities) {
+		List<Target> old = new ArrayList<Target>(targets);
+		targets.clear();
+		for (int i = 0; i < addresses.size(); i++) {
+			InetSocketAddress address = addresses.get(i);
+			Target t = find(old, address);
+			if (t == null)
+				t = new Target(address);
+			t.priority = priorities.get(i);
+			targets.add(t);
+		}
+		log.debug("Proxy targets: " + addresses + " priorities: "
+				+ priorities);
+	}
+
+	synchronized void clear() {
+		targets.clear();
+	}
+
+	public synchronized int size() {
+		return targets.size();
+	}
+
+	/**
+	 * Best proxy not in the excluded ones.
+	 *
+	 * @param allowBlacklisted
+	 *            Return a blacklisted proxy, the one released first, if no
+	 *            other is left
+	 * @return null if no proxy is left
+	 */
+	public synchronized InetSocketAddress select(
+			Collection<InetSocketAddress> exclude, boolean allowBlacklisted) {
+		long now = SystemClock.elapsedRealtime();
+		List<Target> available = new ArrayList<Target>();
+		Target bestBlacklisted = null;
+		for (Target t : targets) {
+			if (exclude != null && exclude.contains(t.address))
+				continue;
+			if (t.blacklistedUntil > now) {
+				if (bestBlacklisted == null
+						|| t.blacklistedUntil < bestBlacklisted.blacklistedUntil)
+					bestBlacklisted = t;
+			} else {
+				available.add(t);
+			}
+		}
+
+		if (available.isEmpty()) {
+			if (allowBlacklisted && bestBlacklisted != null)
+				return bestBlacklisted.address;
+			return null;
+		}
+
+		int priority = available.get(0).priority;
+		for (Target t : available)
+			priority = Math.min(priority, t.priority);
+
+		long fastest = getFastest(available, priority);
+		Target best = null;
+		long bestScore = 0;
+		for (Target t : available) {
+			if (t.priority != priority)
+				continue;
+			long score = t.getScore(fastest);
+			if (best == null || score < bestScore) {
+				best = t;
+				bestScore = score;
+			}
+		}
+		return best.address;
+	}
+
+	/**
+	 * A response has been received from the proxy.
+	 *
+	 * @param rtt
+	 *            Milliseconds from request to response, or -1 if it is not a
+	 *            valid sample
+	 */
+	public synchronized void onResponse(InetSocketAddress address, long rtt) {
+		Target t = find(targets, address);
+		if (t == null)
+			return;
+
+		t.responses++;
+		t.consecutiveFailures = 0;
+		t.blacklistCount = 0;
+		t.blacklistedUntil = 0;
+		if (rtt >= 0)
+			t.latency = t.latency < 0 ? rtt : (7 * t.latency + rtt) / 8;
+	}
+
+	/**
+	 * The proxy failed a request.
+	 *
+	 * @param retryAfter
+	 *            Seconds of the Retry-After of a 503, or -1
+	 */
+	public synchronized void onFailure(InetSocketAddress address,
+			Failure failure, int retryAfter) {
+		Target t = find(targets, address);
+		if (t == null)
+			return;
+
+		t.consecutiveFailures++;
+		switch (failure) {
+		case TIMEOUT:
+			t.timeouts++;
+			break;
+		case TRANSPORT_ERROR:
+			t.transportErrors++;
+			break;
+		case SERVICE_UNAVAILABLE:
+			t.unavailable++;
+			break;
+		}
+
+		long duration;
+		if (failure == Failure.SERVICE_UNAVAILABLE && retryAfter > 0)
+			duration = Math.min(MAX_BLACKLIST_MILLIS, retryAfter * 1000L);
+		else if (failure == Failure.SERVICE_UNAVAILABLE
+				|| t.consecutiveFailures >= FAILURES_TO_BLACKLIST)
+			duration = Math.min(MAX_BLACKLIST_MILLIS,
+					BLACKLIST_MILLIS << Math.min(t.blacklistCount, 10));
+		else
+			return;
+
+		t.blacklistCount++;
+		t.blacklistedUntil = SystemClock.elapsedRealtime() + duration;
+		log.warn("Proxy " + address + " blacklisted for " + duration
+				+ " ms after " + failure + ": " + t);
+	}
+
+	/**
+	 * Snapshot of the health of every proxy, in DNS order.
+	 */
+	public synchronized List<Health> getHealth() {
+		long now = SystemClock.elapsedRealtime();
+		List<Health> list = new ArrayList<Health>();
+		for (Target t : targets)
+			list.add(new Health(t, t.getScore(getFastest(targets, t.priority)),
+					now));
+		return Collections.unmodifiableList(list);
+	}
+
+	/*
+	 * Lowest smoothed latency of the proxies of the priority, or -1 if none
+	 * has been measured
+	 */
+	private static long getFastest(List<Target> targets, int priority) {
+		long fastest = -1;
+		for (Target t : targets) {
+			if (t.priority == priority && t.latency >= 0
+					&& (fastest < 0 || t.latency < fastest))
+				fastest = t.latency;
+		}
+		return fastest;
+	}
+
+	private static Target find(List<Target> targets, InetSocketAddress address) {
+		if (address == null)
+			return null;
+		for (Target t : targets) {
+			if (t.address.equals(address))
+				return t;
+		}
+		return null;
+	}
+
+	private static class Target {
+
+		private final InetSocketAddress address;
+		private int priority;
+
+		private long latency = -1;
+		private int consecutiveFailures = 0;
+		private int blacklistCount = 0;
+		private long blacklistedUntil = 0;
+
+		private long responses = 0;
+		private long timeouts = 0;
+		private long transportErrors = 0;
+		private long unavailable = 0;
+
+		private Target(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		/*
+		 * Proxies never measured, or close to the fastest one, are not
+		 * penalized for latency, so the weighted order spreads the load
+		 */
+		private long getScore(long fastest) {
+			long slower = latency >= 0 && fastest >= 0 ? latency - fastest : 0;
+			return consecutiveFailures * FAILURE_PENALTY
+					+ (slower > LATENCY_TOLERANCE ? slower : 0);
+		}
+
+		@Override
+		public String toString() {
+			return "latency=" + latency + " failures=" + consecutiveFailures
+					+ " responses=" + responses + " timeouts=" + timeouts
+					+ " transport_errors=" + transportErrors
+					+ " unavailable=" + unavailable;
+		}
+	}
+
+	public static class Health {
+
+		private final InetSocketAddress address;
+		private final int priority;
+		private final long score;
+		private final long latency;
+		private final int consecutiveFailures;
+		private final long blacklistedFor;
+		private final long responses;
+		private final long timeouts;
+		private final long transportErrors;
+		private final long unavailable;
+
+		private Health(Target t, long score, long now) {
+			address = t.address;
+			priority = t.priority;
+			this.score = score;
+			latency = t.latency;
+			consecutiveFailures = t.consecutiveFailures;
+			blacklistedFor = Math.max(0, t.blacklistedUntil - now);
+			responses = t.responses;
+			timeouts = t.timeouts;
+			transportErrors = t.transportErrors;
+			unavailable = t.unavailable;
+		}
+
+		public InetSocketAddress getAddress() {
+			return address;
+		}
+
+		/**
+		 * @return SRV priority, lower is used first
+		 */
+		public int getPriority() {
+			return priority;
+		}
+
+		/**
+		 * @return Penalty within its priority, lower is better. 0 if it is
+		 *         healthy
+		 */
+		public long getScore() {
+			return score;
+		}
+
+		/**
+		 * @return Smoothed latency in milliseconds, or -1 if not measured
+		 */
+		public long getLatency() {
+			return latency;
+		}
+
+		public int getConsecutiveFailures() {
+			return consecutiveFailures;
+		}
+
+		/**
+		 * @return Milliseconds until the proxy is released, 0 if it is not
+		 *         blacklisted
+		 */
+		public long getBlacklistedFor() {
+			return blacklistedFor;
+		}
+
+		public boolean isBlacklisted() {
+			return blacklistedFor > 0;
+		}
+
+		public long getResponses() {
+			return responses;
+		}
+
+		public long getTimeouts() {
+			return timeouts;
+		}
+
+		public long getTransportErrors() {
+			return transportErrors;
+		}
+
+		public long getUnavailable() {
+			return unavailable;
+		}
+
+		@Override
+		public String toString() {
+			return address + " priority=" + priority + " score=" + score + " latency=" + latency
+					+ " failures=" + consecutiveFailures + " blacklisted_for="
+					+ blacklistedFor;
+		}
+	}
+
+}
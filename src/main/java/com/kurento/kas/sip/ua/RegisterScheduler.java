@@ -0,0 +1,293 @@
+/*
+Kurento Sip User Agent implementation.
+Copyright (C) <2011>  <Tikal Technologies>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License version 3
+as published by the Free Software Foundation.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package com.kurento.kas.sip.ua;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.os.SystemClock;
+
+/**
+ * Paces REGISTER requests so that many AORs, or many devices behind the same
+ * registrar, do not register all at once.
+ * <ul>
+ * <li>Queued registrations are sent one at a time, separated by the pacing
+ * interval plus a random jitter. A batch (e.g. after a network change) starts
+ * after a random jitter too.</li>
+ * <li>Refreshes are scheduled from the expiration granted by the registrar,
+ * with jitter.</li>
+ * <li>Failed registrations (408, 503, timeout) are retried with exponential
+ * backoff as in RFC5626 4.5, or after Retry-After when the registrar
+ * provides it.</li>
+ * </ul>
+ * The queue is only accessed from the UA looper. Refresh and retry delays are
+ * computed from the SIP stack threads.
+ */
+public class RegisterScheduler {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(RegisterScheduler.class.getSimpleName());
+
+	// RFC5626 4.5: base time when all flows failed and upper bound
+	private static final long RETRY_BASE_MILLIS = 30 * 1000;
+	private static final long RETRY_MAX_MILLIS = 1800 * 1000;
+
+	// Refresh between 40% and 50% of the granted expiration
+	private static final double REFRESH_RATIO = 0.5;
+	private static final double REFRESH_JITTER_RATIO = 0.1;
+
+	private final Preferences preferences;
+	private final Random random = new Random();
+
+	private final LinkedHashMap<String, QueuedRegister> queue = new LinkedHashMap<String, QueuedRegister>();
+	private long nextSendUptime = 0;
+	private boolean drainScheduled = false;
+
+	private final ConcurrentHashMap<String, Integer> failures = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentHashMap<String, Boolean> transportRetries = new ConcurrentHashMap<String, Boolean>();
+
+	// Metrics
+	private volatile int queueDepth = 0;
+	private final AtomicLong sentCount = new AtomicLong();
+	private final AtomicLong retryCount = new AtomicLong();
+	private final AtomicLong totalQueueWaitMillis = new AtomicLong();
+	private volatile long maxQueueWaitMillis = 0;
+	private volatile long lastQueueWaitMillis = 0;
+
+	RegisterScheduler(Preferences preferences) {
+		this.preferences = preferences;
+	}
+
+	// ////////////////
+	//
+	// QUEUE (UA looper only)
+	//
+	// ////////////////
+
+	void add(SipRegister sipReg) {
+		enqueue(sipReg);
+	}
+
+	/*
+	 * Queue a batch of registrations. The first one is delayed by a random
+	 * jitter so that devices reacting to the same event spread out
+	 */
+	void addAll(Collection<SipRegister> sipRegs) {
+		if (sipRegs.isEmpty())
+			return;
+
+		if (queue.isEmpty()) {
+			long start = SystemClock.uptimeMillis()
+					+ nextJitter(preferences.getSipRegJitterMillis());
+			nextSendUptime = Math.max(nextSendUptime, start);
+		}
+		for (SipRegister sipReg : sipRegs)
+			enqueue(sipReg);
+	}
+
+	void remove(SipRegister sipReg) {
+		queue.remove(sipReg.getRegister().getUri());
+		queueDepth = queue.size();
+	}
+
+	void clear() {
+		queue.clear();
+		queueDepth = 0;
+	}
+
+	/*
+	 * Return the next registration to be sent, or null if the queue is empty
+	 * or pacing does not allow to send yet
+	 */
+	SipRegister poll() {
+		if (queue.isEmpty())
+			return null;
+
+		long now = SystemClock.uptimeMillis();
+		if (now < nextSendUptime)
+			return null;
+
+		Iterator<QueuedRegister> it = queue.values().iterator();
+		QueuedRegister next = it.next();
+		it.remove();
+		queueDepth = queue.size();
+
+		long wait = now - next.enqueuedUptime;
+		lastQueueWaitMillis = wait;
+		totalQueueWaitMillis.addAndGet(wait);
+		if (wait > maxQueueWaitMillis)
+			maxQueueWaitMillis = wait;
+		sentCount.incrementAndGet();
+
+		nextSendUptime = now + preferences.getSipRegPacingMillis()
+				+ nextJitter(preferences.getSipRegJitterMillis());
+		return next.sipReg;
+	}
+
+	/*
+	 * Delay until the next registration can be sent, or -1 if the queue is
+	 * empty
+	 */
+	long getNextDelay() {
+		if (queue.isEmpty())
+			return -1;
+		return Math.max(0, nextSendUptime - SystemClock.uptimeMillis());
+	}
+
+	boolean isDrainScheduled() {
+		return drainScheduled;
+	}
+
+	void setDrainScheduled(boolean drainScheduled) {
+		this.drainScheduled = drainScheduled;
+	}
+
+	private void enqueue(SipRegister sipReg) {
+		String aor = sipReg.getRegister().getUri();
+		if (!queue.containsKey(aor))
+			queue.put(aor, new QueuedRegister(sipReg));
+		queueDepth = queue.size();
+	}
+
+	// ////////////////
+	//
+	// REFRESH & RETRY (any thread)
+	//
+	// ////////////////
+
+	/**
+	 * Delay until a registration granted for the given time must be
+	 * refreshed.
+	 *
+	 * @param sipReg
+	 *            Successful registration. Its retry backoff is reset
+	 * @param grantedExpires
+	 *            Expiration granted by the registrar, in seconds
+	 * @return Refresh delay in milliseconds
+	 */
+	public long onRegistered(SipRegister sipReg, int grantedExpires) {
+		failures.remove(sipReg.getRegister().getUri());
+		transportRetries.remove(sipReg.getRegister().getUri());
+
+		double ratio = REFRESH_RATIO - REFRESH_JITTER_RATIO
+				* random.nextDouble();
+		return (long) (grantedExpires * 1000L * ratio);
+	}
+
+	/**
+	 * Delay until a failed registration must be retried.
+	 *
+	 * @param sipReg
+	 *            Failed registration
+	 * @param retryAfter
+	 *            Retry-After given by the registrar in seconds, or a negative
+	 *            value if none
+	 * @return Retry delay in milliseconds
+	 */
+	public long onFailure(SipRegister sipReg, int retryAfter) {
+		String aor = sipReg.getRegister().getUri();
+		Integer previous = failures.get(aor);
+		int n = previous == null ? 0 : previous;
+		failures.put(aor, n + 1);
+		retryCount.incrementAndGet();
+
+		long delay;
+		if (retryAfter > 0) {
+			delay = retryAfter * 1000L
+					+ nextJitter(preferences.getSipRegJitterMillis());
+		} else {
+			// RFC5626 4.5: W = min(max-time, base-time * 2^n), wait a random
+			// time between 50% and 100% of W
+			long w = RETRY_BASE_MILLIS << Math.min(n, 16);
+			w = Math.min(RETRY_MAX_MILLIS, w);
+			delay = w / 2 + nextJitter(w / 2);
+		}
+
+		log.debug("Retry REGISTER for " + aor + " in " + delay
+				+ " ms (failure " + (n + 1) + ")");
+		return delay;
+	}
+
+	/**
+	 * The flow of a registration failed before the response.
+	 *
+	 * @return true if it must be sent again at once through a new flow, only
+	 *         the first time since the last success. Otherwise it must be
+	 *         retried as a failure
+	 */
+	public boolean onTransportError(SipRegister sipReg) {
+		return transportRetries.putIfAbsent(sipReg.getRegister().getUri(),
+				Boolean.TRUE) == null;
+	}
+
+	private long nextJitter(long max) {
+		if (max <= 0)
+			return 0;
+		return (long) (random.nextDouble() * max);
+	}
+
+	// ////////////////
+	//
+	// METRICS
+	//
+	// ////////////////
+
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	public long getSentCount() {
+		return sentCount.get();
+	}
+
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	public long getLastQueueWaitMillis() {
+		return lastQueueWaitMillis;
+	}
+
+	public long getMaxQueueWaitMillis() {
+		return maxQueueWaitMillis;
+	}
+
+	public long getAverageQueueWaitMillis() {
+		long sent = sentCount.get();
+		if (sent == 0)
+			return 0;
+		return totalQueueWaitMillis.get() / sent;
+	}
+
+	private static class QueuedRegister {
+		private final SipRegister sipReg;
+		private final long enqueuedUptime;
+
+		private QueuedRegister(SipRegister sipReg) {
+			this.sipReg = sipReg;
+			this.enqueuedUptime = SystemClock.uptimeMillis();
+		}
+	}
+
+}
@@ -0,0 +1,117 @@
+/*
+Kurento Sip User Agent implementation.
+Copyright (C) <2011>  <Tikal Technologies>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License version 3
+as published by the Free Software Foundation.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package com.kurento.kas.sip.ua;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.kurento.kas.sip.transaction.CRegister;
+import com.kurento.kas.sip.transaction.CRegisterPersistentTcp;
+
+/**
+ * In-flight REGISTER transactions indexed by AOR. At most one REGISTER is
+ * pending per AOR: a new request with the same expiration is coalesced onto
+ * the pending one, and a request with a different expiration (e.g. an
+ * unregister) supersedes and terminates it. The expires 0 probe of a
+ * persistent connection registers the AOR once answered, so nothing is
+ * coalesced onto it: it is always superseded.
+ */
+public class RegisterTransactionTracker {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(RegisterTransactionTracker.class.getSimpleName());
+
+	private final ConcurrentHashMap<String, CRegister> inFlight = new ConcurrentHashMap<String, CRegister>();
+
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong supersededCount = new AtomicLong();
+
+	RegisterTransactionTracker() {
+	}
+
+	/*
+	 * Return true if a REGISTER with the same expiration is already pending
+	 * for the AOR, so a new one must not be sent
+	 */
+	boolean coalesce(String aor, int expires) {
+		CRegister pending = inFlight.get(aor);
+		if (pending == null || pending.getExpires() != expires
+				|| pending instanceof CRegisterPersistentTcp)
+			return false;
+
+		coalescedCount.incrementAndGet();
+		log.debug("REGISTER for " + aor + " (expires=" + expires
+				+ ") coalesced onto in-flight transaction");
+		return true;
+	}
+
+	/*
+	 * Track a new REGISTER, terminating the one it supersedes if any
+	 */
+	void add(CRegister creg) {
+		String aor = creg.getRegister().getUri();
+		CRegister superseded = inFlight.put(aor, creg);
+		if (superseded != null && superseded != creg) {
+			supersededCount.incrementAndGet();
+			log.debug("REGISTER for " + aor + " (expires="
+					+ superseded.getExpires() + ") superseded");
+			terminate(superseded);
+		}
+	}
+
+	/*
+	 * Called once the REGISTER reaches its final outcome
+	 */
+	public boolean complete(CRegister creg) {
+		return inFlight.remove(creg.getRegister().getUri(), creg);
+	}
+
+	void cancelAll() {
+		for (CRegister creg : inFlight.values()) {
+			if (complete(creg))
+				terminate(creg);
+		}
+	}
+
+	public boolean isInFlight(String aor) {
+		return inFlight.containsKey(aor);
+	}
+
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	public long getSupersededCount() {
+		return supersededCount.get();
+	}
+
+	private void terminate(CRegister creg) {
+		try {
+			creg.terminate();
+		} catch (KurentoSipException e) {
+			log.warn("Unable to terminate client transaction for register", e);
+		}
+	}
+
+}
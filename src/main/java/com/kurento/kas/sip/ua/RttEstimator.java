@@ -0,0 +1,160 @@
+/*
+Kurento Sip User Agent implementation.
+Copyright (C) <2011>  <Tikal Technologies>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License version 3
+as published by the Free Software Foundation.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package com.kurento.kas.sip.ua;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Round trip time to each destination, measured from INVITE and REGISTER
+ * transactions, and the SIP timers derived from it.
+ * <p>
+ * RFC3261 17.1.1.1 recommends T1 to be an estimate of the RTT, 500 ms being
+ * only the default. T1 is the retransmission timeout of rfc6298 for the
+ * destination, within {@value #MIN_T1}..{@value #MAX_T1} ms. Transactions
+ * time out after 64*T1 (Timer B and F).
+ */
+public class RttEstimator {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(RttEstimator.class.getSimpleName());
+
+	public static final int DEFAULT_T1 = 500; // milliseconds
+	static final int MIN_T1 = 150; // milliseconds
+	static final int MAX_T1 = 4000; // milliseconds, T2
+
+	private static final int TIMEOUT_T1_MULTIPLIER = 64;
+	private static final long CLOCK_GRANULARITY = 10; // milliseconds
+
+	private final Map<String, Estimate> estimates = new HashMap<String, Estimate>();
+
+	RttEstimator() {
+	}
+
+	/**
+	 * Add the RTT measured for a request to the destination. Samples of
+	 * retransmitted requests must not be added (Karn's algorithm), as the
+	 * response may belong to any of the copies.
+	 */
+	public synchronized void addSample(String destination, long rtt) {
+		Estimate e = estimates.get(destination);
+		if (e == null) {
+			e = new Estimate();
+			estimates.put(destination, e);
+		}
+
+		// rfc6298 2.2 and 2.3
+		if (e.samples == 0) {
+			e.srtt = rtt;
+			e.rttvar = rtt / 2;
+		} else {
+			e.rttvar = (3 * e.rttvar + Math.abs(e.srtt - rtt)) / 4;
+			e.srtt = (7 * e.srtt + rtt) / 8;
+		}
+		e.samples++;
+
+		long rto = e.srtt + Math.max(CLOCK_GRANULARITY, 4 * e.rttvar);
+		e.t1 = (int) Math.max(MIN_T1, Math.min(MAX_T1, rto));
+		log.trace("RTT to " + destination + ": " + rtt + " ms, " + e);
+	}
+
+	/**
+	 * @return T1 to use for requests to the destination, in milliseconds
+	 */
+	public synchronized int getT1(String destination) {
+		Estimate e = estimates.get(destination);
+		return e == null ? DEFAULT_T1 : e.t1;
+	}
+
+	/*
+	 * Forget every estimate, e.g. the path changes with the network
+	 */
+	synchronized void clear() {
+		estimates.clear();
+	}
+
+	/**
+	 * Snapshot of the current estimates, by destination.
+	 */
+	public synchronized Map<String, Estimate> getEstimates() {
+		Map<String, Estimate> copy = new HashMap<String, Estimate>();
+		for (Map.Entry<String, Estimate> e : estimates.entrySet())
+			copy.put(e.getKey(), new Estimate(e.getValue()));
+		return Collections.unmodifiableMap(copy);
+	}
+
+	public static class Estimate {
+
+		private long srtt;
+		private long rttvar;
+		private int t1 = DEFAULT_T1;
+		private long samples = 0;
+
+		private Estimate() {
+		}
+
+		private Estimate(Estimate other) {
+			srtt = other.srtt;
+			rttvar = other.rttvar;
+			t1 = other.t1;
+			samples = other.samples;
+		}
+
+		/**
+		 * @return Smoothed RTT in milliseconds
+		 */
+		public long getSmoothedRtt() {
+			return srtt;
+		}
+
+		/**
+		 * @return RTT variation in milliseconds
+		 */
+		public long getRttVariation() {
+			return rttvar;
+		}
+
+		/**
+		 * @return Milliseconds
+		 */
+		public int getT1() {
+			return t1;
+		}
+
+		/**
+		 * @return Transaction timeout (Timer B and F) in milliseconds
+		 */
+		public long getTransactionTimeout() {
+			return (long) TIMEOUT_T1_MULTIPLIER * t1;
+		}
+
+		public long getSamples() {
+			return samples;
+		}
+
+		@Override
+		public String toString() {
+			return "srtt=" + srtt + " rttvar=" + rttvar + " t1=" + t1
+					+ " samples=" + samples;
+		}
+	}
+
+}
@@ -16,17 +16,27 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>
  */
 package com.kurento.kas.sip.ua;
 
-import java.util.UUID;
+import gov.nist.javax.sip.SipProviderImpl;
+import gov.nist.javax.sip.stack.SIPDialog;
+
+import java.text.ParseException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.sip.Dialog;
 import javax.sip.SipException;
 import javax.sip.address.Address;
+import javax.sip.address.SipURI;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import android.os.Handler;
+import android.os.Message;
+
 import com.kurento.kas.call.DialingCall;
 import com.kurento.kas.call.RingingCall;
 import com.kurento.kas.call.RingingCall.RejectCode;
@@ -35,8 +45,11 @@ import com.kurento.kas.call.TerminatedCall.Reason;
 import com.kurento.kas.call.impl.CallBase;
 import com.kurento.kas.sip.transaction.CBye;
 import com.kurento.kas.sip.transaction.CCancel;
+import com.kurento.kas.sip.transaction.CReInvite;
 import com.kurento.kas.sip.transaction.CTransaction;
 import com.kurento.kas.sip.transaction.STransaction;
+import com.kurento.kas.sip.util.FlightRecorder;
+import com.kurento.kas.sip.util.IdGenerator;
 import com.kurento.kas.sip.util.LooperThread;
 import com.kurento.kas.ua.KurentoException;
 
@@ -46,6 +59,9 @@ public class SipCall extends CallBase {
 	protected static final Logger log = LoggerFactory.getLogger(SipCall.class
 			.getSimpleName());
 
+	private static final Pattern ORIGIN = Pattern
+			.compile("(?m)^o=([^\\r\\n]*)");
+
 	private enum State {
 		IDLE, INCOMING_RINGING, OUTGOING_RINGING, CONFIRMED, TERMINATED
 	}
@@ -66,9 +82,25 @@ public class SipCall extends CallBase {
 	private Dialog dialog;
 	private STransaction incomingInitiatingRequest;
 	private CTransaction outgoingInitiatingRequest;
-	private Boolean request2Terminate = false;
-
-	private final LooperThread looperThread = new LooperThread();
+	private volatile boolean request2Terminate = false;
+
+	// CSeq of the requests sent before the dialog is created
+	private final AtomicLong cSeqNumber = new AtomicLong(
+			IdGenerator.newCSeqNumber());
+
+	// Call commands. They are executed serially on the call looper
+	private static final int MSG_TERMINATE = 0;
+	private static final int MSG_CALL_FAILED = 1;
+	private static final int MSG_TERMINATED_CALL = 2;
+	private static final int MSG_INCOMING_CALL = 3;
+	private static final int MSG_COMPLETED_CALL = 4;
+	private static final int MSG_REMOTE_CALL_CANCEL = 5;
+	private static final int MSG_OUTGOING_CALL = 6;
+	private static final int MSG_ACCEPT = 7;
+	private static final int MSG_HANDOVER = 8;
+	private static final int MSG_OUTGOING_TRANSACTION_CHANGED = 9;
+
+	private final LooperThread.Mailbox mailbox;
 
 	// ////////////////////
 	//
@@ -80,11 +112,54 @@ public class SipCall extends CallBase {
 	SipCall(SipUA sipUA, String fromUri, String toUri) {
 		super(sipUA.getContext());
 		this.sipUA = sipUA;
-		this.callId = UUID.randomUUID().toString();
+		this.callId = IdGenerator.newId();
 		this.localUri = fromUri;
 		this.remoteUri = toUri;
 
-		looperThread.start();
+		// Calls share the UA looper pool. The stripe is chosen by Call-ID so
+		// every event of this call is executed in order
+		LooperThread looperThread = sipUA.getCallLooperPool().get(callId);
+		this.mailbox = looperThread.createMailbox(new Handler.Callback() {
+			@Override
+			public boolean handleMessage(Message msg) {
+				switch (msg.what) {
+				case MSG_TERMINATE:
+					terminateSync((RejectCode) msg.obj);
+					break;
+				case MSG_CALL_FAILED:
+					callFailedSync((KurentoException) msg.obj);
+					break;
+				case MSG_TERMINATED_CALL:
+					terminatedCallSync((Reason) msg.obj);
+					break;
+				case MSG_INCOMING_CALL:
+					incomingCallSync((STransaction) msg.obj);
+					break;
+				case MSG_COMPLETED_CALL:
+					completedCallSync();
+					break;
+				case MSG_REMOTE_CALL_CANCEL:
+					remoteCallCancelSync();
+					break;
+				case MSG_OUTGOING_CALL:
+					outgoingCallSync((CTransaction) msg.obj);
+					break;
+				case MSG_OUTGOING_TRANSACTION_CHANGED:
+					outgoingTransactionChangedSync((CTransaction) msg.obj);
+					break;
+				case MSG_ACCEPT:
+					sipRingingCall.acceptSync();
+					break;
+				case MSG_HANDOVER:
+					handoverSync();
+					break;
+				default:
+					log.warn("Unknown call command: " + msg.what);
+					return false;
+				}
+				return true;
+			}
+		});
 	}
 
 	// Intended for incoming calls
@@ -99,6 +174,18 @@ public class SipCall extends CallBase {
 		return callId;
 	}
 
+	/**
+	 * @return true once the call has been hung up, rejected or failed, even
+	 *         if its requests are still in progress
+	 */
+	public boolean isTerminating() {
+		return request2Terminate;
+	}
+
+	public long getNextCSeqNumber() {
+		return cSeqNumber.getAndIncrement();
+	}
+
 	@Override
 	public String getLocalUri() {
 		return localUri;
@@ -109,12 +196,6 @@ public class SipCall extends CallBase {
 		return remoteUri;
 	}
 
-	@Override
-	protected void release() {
-		looperThread.quit();
-		super.release();
-	}
-
 	public Dialog getDialog() {
 		return this.dialog;
 	}
@@ -185,19 +266,106 @@ public class SipCall extends CallBase {
 		}
 	}
 
-	void terminate(final RejectCode code) {
-		looperThread.post(new Runnable() {
-			@Override
-			public void run() {
-				terminateSync(code);
-			}
-		});
+	void terminate(RejectCode code) {
+		mailbox.send(MSG_TERMINATE, code);
 	}
 
 	void terminate() {
 		terminate(RejectCode.DECLINE);
 	}
 
+	/*
+	 * The UA moved to a new provider. The dialog sends through it from now on
+	 * and the remote party is told the new Contact with a re-INVITE. The
+	 * media moves too, so the re-INVITE carries a new offer gathered on the
+	 * new address, as a new version of the previous one (rfc3264 8)
+	 */
+	private void handoverSync() {
+		if (!State.CONFIRMED.equals(getStateTransitionSync()) || dialog == null)
+			return;
+
+		log.debug("Hand over call " + getCallInfo());
+		final Address contact;
+		try {
+			((SIPDialog) dialog).setSipProvider((SipProviderImpl) sipUA
+					.getSipProvider());
+			SipURI localSipUri = (SipURI) sipUA.getAddressFactory()
+					.createAddress(localUri).getURI();
+			contact = sipUA.createContactAddress(localSipUri.getUser());
+		} catch (ParseException e) {
+			log.error("Unable to create Contact for call handover", e);
+			return;
+		}
+
+		final String previousOffer = getLocalDescription();
+		CreateSdpOfferObserver o = new CreateSdpOfferObserver() {
+			@Override
+			public void onSdpOfferCreated(String sdp) {
+				removeCreateSdpOfferObserver(this);
+				if (request2Terminate) // Call hung up while building SDP
+					return;
+				try {
+					new CReInvite(sipUA, SipCall.this, contact,
+							nextOfferVersion(sdp, previousOffer));
+				} catch (KurentoSipException e) {
+					log.error("Unable to send re-INVITE for call handover", e);
+				}
+			}
+
+			@Override
+			public void onError(KurentoException exception) {
+				removeCreateSdpOfferObserver(this);
+				log.error("Unable to create offer for call handover, "
+						+ "call not moved", exception);
+			}
+		};
+		addCreateSdpOfferObserver(o);
+		createSdpOffer(o);
+	}
+
+	/*
+	 * An offer within a session keeps the origin of the previous one but its
+	 * version, incremented by one: rfc3264 8
+	 */
+	static String nextOfferVersion(String offer, String previousOffer) {
+		if (offer == null || previousOffer == null)
+			return offer;
+
+		Matcher m = ORIGIN.matcher(previousOffer);
+		if (!m.find())
+			return offer;
+		String[] origin = m.group(1).split(" ");
+		if (origin.length != 6)
+			return offer;
+		try {
+			origin[2] = String.valueOf(Long.parseLong(origin[2]) + 1);
+		} catch (NumberFormatException e) {
+			return offer;
+		}
+
+		StringBuilder line = new StringBuilder("o=");
+		for (int i = 0; i < origin.length; i++) {
+			if (i > 0)
+				line.append(' ');
+			line.append(origin[i]);
+		}
+		return ORIGIN.matcher(offer).replaceFirst(
+				Matcher.quoteReplacement(line.toString()));
+	}
+
+	void handover() {
+		mailbox.send(MSG_HANDOVER);
+	}
+
+	/*
+	 * Terminating the call sends a request whose outcome can be waited for:
+	 * BYE when established, CANCEL when ringing
+	 */
+	boolean isTerminationTracked() {
+		State s = getStateTransitionSync();
+		return State.CONFIRMED.equals(s) || State.OUTGOING_RINGING.equals(s);
+	}
+
 	private synchronized State getStateTransitionSync() {
 		return state;
 	}
@@ -205,6 +373,8 @@ public class SipCall extends CallBase {
 	private synchronized void stateTransitionSync(State newState) {
 		log.debug("--------- SIP CONTEXT STATE TRANSITION ");
 		log.debug("| " + getCallInfo() + ": " + state + " ---> " + newState);
+		sipUA.getFlightRecorder().record(FlightRecorder.CALL_STATE,
+				state + " -> " + newState, callId);
 		state = newState;
 	}
 
@@ -250,13 +420,8 @@ public class SipCall extends CallBase {
 		terminatedCallSync(Reason.ERROR);
 	}
 
-	private void callFailed(final KurentoException e) {
-		looperThread.post(new Runnable() {
-			@Override
-			public void run() {
-				callFailedSync(e);
-			}
-		});
+	void callFailed(KurentoException e) {
+		mailbox.send(MSG_CALL_FAILED, e);
 	}
 
 	// ////////////////////
@@ -274,13 +439,8 @@ public class SipCall extends CallBase {
 		sipUA.getCallTerminatedHandler().onTerminated(sipTerminatedCall);
 	}
 
-	public void terminatedCall(final Reason reason) {
-		looperThread.post(new Runnable() {
-			@Override
-			public void run() {
-				terminatedCallSync(reason);
-			}
-		});
+	public void terminatedCall(Reason reason) {
+		mailbox.send(MSG_TERMINATED_CALL, reason);
 	}
 
 	public void completedCallWithError(String msg) {
@@ -296,6 +456,10 @@ public class SipCall extends CallBase {
 		callFailed(new KurentoException("SIP protocol timeout"));
 	}
 
+	public void transportError() {
+		callFailed(new KurentoException("SIP transport error"));
+	}
+
 	// Use by SInvite to notify an incoming INVITE request. SDP offer is already
 	// process and the SDP answer is ready to be sent
 	private void incomingCallSync(STransaction incomingTransaction) {
@@ -350,13 +514,8 @@ public class SipCall extends CallBase {
 		}
 	}
 
-	public void incomingCall(final STransaction incomingTransaction) {
-		looperThread.post(new Runnable() {
-			@Override
-			public void run() {
-				incomingCallSync(incomingTransaction);
-			}
-		});
+	public void incomingCall(STransaction incomingTransaction) {
+		mailbox.send(MSG_INCOMING_CALL, incomingTransaction);
 	}
 
 	// Used by CInvite and SAck to inform when the call set up is completed
@@ -395,12 +554,7 @@ public class SipCall extends CallBase {
 	}
 
 	public void completedCall() {
-		looperThread.post(new Runnable() {
-			@Override
-			public void run() {
-				completedCallSync();
-			}
-		});
+		mailbox.send(MSG_COMPLETED_CALL);
 	}
 
 	// Used by SCancel transaction to notify reception of CANCEL request
@@ -428,12 +582,7 @@ public class SipCall extends CallBase {
 	}
 
 	public void remoteCallCancel() {
-		looperThread.post(new Runnable() {
-			@Override
-			public void run() {
-				remoteCallCancelSync();
-			}
-		});
+		mailbox.send(MSG_REMOTE_CALL_CANCEL);
 	}
 
 	// Use by CInvite to notify when the SDP offer has been generated and
@@ -445,19 +594,32 @@ public class SipCall extends CallBase {
 		this.dialog = outgoingTransaction.getDialog();
 		this.dialog.setApplicationData(this);
 		this.outgoingInitiatingRequest = outgoingTransaction;
+		sipUA.activedCalls.bindDialog(this);
 
 		stateTransitionSync(State.OUTGOING_RINGING);
 		if (request2Terminate) // Call has been canceled while building SDP
 			localCallCancelSync();
 	}
 
-	public void outgoingCall(final CTransaction outgoingTransaction) {
-		looperThread.post(new Runnable() {
-			@Override
-			public void run() {
-				outgoingCallSync(outgoingTransaction);
-			}
-		});
+	public void outgoingCall(CTransaction outgoingTransaction) {
+		mailbox.send(MSG_OUTGOING_CALL, outgoingTransaction);
+	}
+
+	/*
+	 * The INVITE has been sent again in a new client transaction, e.g. with
+	 * credentials. Only the dialog changes, the call is still ringing
+	 */
+	private void outgoingTransactionChangedSync(
+			CTransaction outgoingTransaction) {
+		Dialog previous = this.dialog;
+		this.dialog = outgoingTransaction.getDialog();
+		this.dialog.setApplicationData(this);
+		this.outgoingInitiatingRequest = outgoingTransaction;
+		sipUA.activedCalls.rebindDialog(this, previous);
+	}
+
+	public void outgoingTransactionChanged(CTransaction outgoingTransaction) {
+		mailbox.send(MSG_OUTGOING_TRANSACTION_CHANGED, outgoingTransaction);
 	}
 
 	// ////////////////
@@ -510,12 +672,7 @@ public class SipCall extends CallBase {
 
 		@Override
 		public void accept() {
-			looperThread.post(new Runnable() {
-				@Override
-				public void run() {
-					acceptSync();
-				}
-			});
+			mailbox.send(MSG_ACCEPT);
 		}
 
 		@Override
@@ -0,0 +1,221 @@
+/*
+Kurento Sip User Agent implementation.
+Copyright (C) <2011>  <Tikal Technologies>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License version 3
+as published by the Free Software Foundation.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package com.kurento.kas.sip.ua;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sip.Dialog;
+
+/**
+ * Active calls of a UA indexed by call ID, SIP Call-ID, dialog ID and local
+ * and remote URI. Insertion, removal and lookups are O(1). Lookups and
+ * iteration never block; writers are serialized so indexes stay consistent.
+ */
+public class SipCallRegistry {
+
+	private final ConcurrentHashMap<String, SipCall> byId = new ConcurrentHashMap<String, SipCall>();
+	private final ConcurrentHashMap<String, SipCall> bySipCallId = new ConcurrentHashMap<String, SipCall>();
+	private final ConcurrentHashMap<String, Set<SipCall>> byLocalUri = new ConcurrentHashMap<String, Set<SipCall>>();
+	private final ConcurrentHashMap<String, Set<SipCall>> byRemoteUri = new ConcurrentHashMap<String, Set<SipCall>>();
+
+	SipCallRegistry() {
+	}
+
+	// ////////////////
+	//
+	// UPDATES
+	//
+	// ////////////////
+
+	synchronized boolean add(SipCall call) {
+		if (byId.putIfAbsent(call.getId(), call) != null)
+			return false;
+
+		addToIndex(byLocalUri, call.getLocalUri(), call);
+		addToIndex(byRemoteUri, call.getRemoteUri(), call);
+		bindDialog(call);
+		return true;
+	}
+
+	/*
+	 * Index the call by its SIP Call-ID. Outgoing calls only have a dialog
+	 * once the INVITE client transaction is created
+	 */
+	synchronized void bindDialog(SipCall call) {
+		if (byId.get(call.getId()) != call)
+			return;
+
+		String sipCallId = getSipCallId(call);
+		if (sipCallId != null)
+			bySipCallId.put(sipCallId, call);
+	}
+
+	/*
+	 * The call moved to a new dialog: drop the index of the previous one
+	 */
+	synchronized void rebindDialog(SipCall call, Dialog previous) {
+		if (byId.get(call.getId()) != call)
+			return;
+
+		if (previous != null && previous.getCallId() != null)
+			bySipCallId.remove(previous.getCallId().getCallId()
+					.toLowerCase(Locale.ENGLISH), call);
+		bindDialog(call);
+	}
+
+	synchronized boolean remove(SipCall call) {
+		if (!byId.remove(call.getId(), call))
+			return false;
+
+		removeFromIndex(byLocalUri, call.getLocalUri(), call);
+		removeFromIndex(byRemoteUri, call.getRemoteUri(), call);
+		String sipCallId = getSipCallId(call);
+		if (sipCallId != null)
+			bySipCallId.remove(sipCallId, call);
+		return true;
+	}
+
+	/*
+	 * Remove every call at once and return them so they can be torn down
+	 */
+	synchronized List<SipCall> removeAll() {
+		List<SipCall> calls = new ArrayList<SipCall>(byId.values());
+		byId.clear();
+		bySipCallId.clear();
+		byLocalUri.clear();
+		byRemoteUri.clear();
+		return calls;
+	}
+
+	// ////////////////
+	//
+	// LOOKUPS
+	//
+	// ////////////////
+
+	public SipCall getById(String callId) {
+		return byId.get(callId);
+	}
+
+	public SipCall getBySipCallId(String sipCallId) {
+		return bySipCallId.get(sipCallId.toLowerCase(Locale.ENGLISH));
+	}
+
+	public SipCall getByDialogId(String dialogId) {
+		// Dialog ID is the SIP Call-ID followed by the dialog tags. Tags are
+		// not stable until the dialog is confirmed, so they are not part of
+		// the key. Call-ID might contain ':' (IPv6), so strip tags from the
+		// end
+		String key = dialogId.toLowerCase(Locale.ENGLISH);
+		for (int i = 0; i < 3 && key != null; i++) {
+			SipCall call = bySipCallId.get(key);
+			if (call != null) {
+				Dialog dialog = call.getDialog();
+				if (dialog != null
+						&& dialogId.equalsIgnoreCase(dialog.getDialogId()))
+					return call;
+				return null;
+			}
+
+			int sep = key.lastIndexOf(':');
+			key = sep < 0 ? null : key.substring(0, sep);
+		}
+
+		return null;
+	}
+
+	public Set<SipCall> getByLocalUri(String localUri) {
+		return getFromIndex(byLocalUri, localUri);
+	}
+
+	public Set<SipCall> getByRemoteUri(String remoteUri) {
+		return getFromIndex(byRemoteUri, remoteUri);
+	}
+
+	/**
+	 * Weakly consistent view of the active calls. It can be iterated while
+	 * calls are being added or removed.
+	 */
+	public Collection<SipCall> getCalls() {
+		return Collections.unmodifiableCollection(byId.values());
+	}
+
+	public int size() {
+		return byId.size();
+	}
+
+	public boolean isEmpty() {
+		return byId.isEmpty();
+	}
+
+	// ////////////////
+	//
+	// HELPERS
+	//
+	// ////////////////
+
+	private static String getSipCallId(SipCall call) {
+		Dialog dialog = call.getDialog();
+		if (dialog == null || dialog.getCallId() == null)
+			return null;
+		return dialog.getCallId().getCallId().toLowerCase(Locale.ENGLISH);
+	}
+
+	private static void addToIndex(
+			ConcurrentHashMap<String, Set<SipCall>> index, String key,
+			SipCall call) {
+		if (key == null)
+			return;
+
+		Set<SipCall> calls = index.get(key);
+		if (calls == null) {
+			calls = Collections
+					.newSetFromMap(new ConcurrentHashMap<SipCall, Boolean>());
+			index.put(key, calls);
+		}
+		calls.add(call);
+	}
+
+	private static void removeFromIndex(
+			ConcurrentHashMap<String, Set<SipCall>> index, String key,
+			SipCall call) {
+		if (key == null)
+			return;
+
+		Set<SipCall> calls = index.get(key);
+		if (calls != null) {
+			calls.remove(call);
+			if (calls.isEmpty())
+				index.remove(key);
+		}
+	}
+
+	private static Set<SipCall> getFromIndex(
+			ConcurrentHashMap<String, Set<SipCall>> index, String key) {
+		Set<SipCall> calls = index.get(key);
+		if (calls == null)
+			return Collections.emptySet();
+		return Collections.unmodifiableSet(calls);
+	}
+
+}
@@ -1,12 +1,13 @@
 package com.kurento.kas.sip.ua;
 
-import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.sip.address.Address;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.kurento.kas.sip.util.IdGenerator;
 import com.kurento.kas.sip.util.KurentoUaTimerTask;
 import com.kurento.kas.ua.Register;
 
@@ -17,16 +18,15 @@ public class SipRegister {
 
 	private final SipUA sipUA;
 	private final Register register;
-	private long cseq;
-	private final UUID registerCallId;
+	private final AtomicLong cseq = new AtomicLong(1);
+	private final String registerCallId;
 	private Address address;
 	private final SipRegisterTimerTask sipRegisterTimerTask;
 
 	public SipRegister(SipUA sipUA, Register register) {
 		this.sipUA = sipUA;
 		this.register = register;
-		this.registerCallId = UUID.randomUUID();
-		this.cseq = 1;
+		this.registerCallId = IdGenerator.newId();
 		this.sipRegisterTimerTask = new SipRegisterTimerTask();
 	}
 
@@ -34,7 +34,7 @@ public class SipRegister {
 		// instance-id: RFC5626. Used to set the registrarCallId
 		/*
 		 * According to RFC5626 instance-id must stay the same on UA reboot or
-		 * power cycle. This implementation assigns temporal UUID that stays the
+		 * power cycle. This implementation assigns temporal ID that stays the
 		 * same during UA's life cycle
 		 */
 		this(sipUA, register);
@@ -53,12 +53,12 @@ public class SipRegister {
 		this.address = address;
 	}
 
-	public synchronized long getCseq() {
-		return cseq++;
+	public long getCseq() {
+		return cseq.getAndIncrement();
 	}
 
 	public String getRegisterCallId() {
-		return registerCallId.toString();
+		return registerCallId;
 	}
 
 	public SipRegisterTimerTask getSipRegisterTimerTask() {
@@ -18,18 +18,26 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>
 package com.kurento.kas.sip.ua;
 
 import gov.nist.javax.sip.ListeningPointExt;
+import gov.nist.javax.sip.stack.SIPTransaction;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.sip.ClientTransaction;
 import javax.sip.Dialog;
@@ -45,12 +53,13 @@ import javax.sip.SipListener;
 import javax.sip.SipProvider;
 import javax.sip.TimeoutEvent;
 import javax.sip.TransactionAlreadyExistsException;
+import javax.sip.TransactionState;
 import javax.sip.TransactionTerminatedEvent;
 import javax.sip.TransactionUnavailableException;
 import javax.sip.address.Address;
-import javax.sip.address.AddressFactory;
 import javax.sip.header.HeaderFactory;
 import javax.sip.header.UserAgentHeader;
+import javax.sip.header.ViaHeader;
 import javax.sip.message.MessageFactory;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
@@ -68,6 +77,9 @@ import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 
 import com.kurento.kas.call.Call;
@@ -79,21 +91,31 @@ import com.kurento.kas.call.DialingCall;
 import com.kurento.kas.call.EstablishedCall;
 import com.kurento.kas.call.RingingCall;
 import com.kurento.kas.call.TerminatedCall;
+import com.kurento.kas.call.TerminatedCall.Reason;
 import com.kurento.kas.conference.Conference;
 import com.kurento.kas.conference.ConferenceHandler;
 import com.kurento.kas.sip.transaction.CInvite;
 import com.kurento.kas.sip.transaction.CRegister;
 import com.kurento.kas.sip.transaction.CRegisterPersistentTcp;
 import com.kurento.kas.sip.transaction.CTransaction;
+import com.kurento.kas.sip.transaction.DigestCredentialCache;
+import com.kurento.kas.sip.transaction.RequestTemplateCache;
 import com.kurento.kas.sip.transaction.SAck;
 import com.kurento.kas.sip.transaction.SBye;
 import com.kurento.kas.sip.transaction.SCancel;
 import com.kurento.kas.sip.transaction.SInvite;
 import com.kurento.kas.sip.transaction.STransaction;
 import com.kurento.kas.sip.util.AlarmUaTimer;
+import com.kurento.kas.sip.util.CachingAddressFactory;
+import com.kurento.kas.sip.util.DnsResolver;
+import com.kurento.kas.sip.util.FlightRecorder;
 import com.kurento.kas.sip.util.KurentoUaTimerTask;
 import com.kurento.kas.sip.util.LooperThread;
+import com.kurento.kas.sip.util.LooperThreadPool;
 import com.kurento.kas.sip.util.NetworkUtilities;
+import com.kurento.kas.sip.util.SipServerLocator;
+import com.kurento.kas.sip.util.SipWireTrace;
+import com.kurento.kas.sip.util.StunClient;
 import com.kurento.kas.ua.ErrorHandler;
 import com.kurento.kas.ua.KurentoException;
 import com.kurento.kas.ua.Register;
@@ -110,32 +132,76 @@ public class SipUA extends UA {
 	private UserAgentHeader userAgentHeader;
 
 	private boolean sipUaTerminated = false;
+	private volatile DrainReport drainReport;
 
 	// SIP factories
+	private static final int ADDRESS_CACHE_SIZE = 128;
 	private final SipFactory sipFactory;
-	private final AddressFactory addressFactory;
+	private final CachingAddressFactory addressFactory;
 	private final HeaderFactory headerFactory;
 	private final MessageFactory messageFactory;
 
+	private final DigestCredentialCache credentialCache;
+	private final SipWireTrace wireTrace = new SipWireTrace();
+	private final FlightRecorder flightRecorder = new FlightRecorder(
+			FLIGHT_RECORDER_EVENTS);
+	private static final int FLIGHT_RECORDER_EVENTS = 2048;
+	private static final String FLIGHT_RECORDER_FILE = "sip-flight-recorder.txt";
+	private static final long FLIGHT_RECORDER_MIN_DUMP_INTERVAL = 5000; // milliseconds
+	private long lastFlightRecorderDump = 0;
+
+	// Dumps on error are written off the thread that reported it
+	private static final ExecutorService flightRecorderDumper = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SipUA flight recorder dump");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	private final RequestTemplateCache requestTemplateCache = new RequestTemplateCache(
+			this);
+
 	// Sip Stack
 	private SipProvider sipProvider;
 	private KurentoSipStackImpl sipStack;
+	private KurentoSslNetworkLayer networkLayer;
 	private ListeningPoint listeningPoint;
 	private final SipListenerImpl sipListenerImpl = new SipListenerImpl();
 
+	// Providers replaced on handover, deleted once the new one is registered
+	private static final long RETIRE_POLL = 500; // milliseconds
+	private static final long RETIRE_TIMEOUT = 32000; // milliseconds, Timer F
+	private final List<SipProvider> retiringProviders = new ArrayList<SipProvider>();
+	private long retireDeadline;
+
 	private final AlarmUaTimer wakeupTimer;
-	private final AlarmUaTimer noWakeupTimer;
 
 	private InetAddress localAddress;
-	private SocketAddress tcpSocketAddress;
+	private volatile SocketAddress tcpSocketAddress;
 
 	private SipKeepAliveTimerTask sipKeepAliveTimerTask;
-	private CheckTCPConnectionAliveTimerTask checkTcpConnectionAliveTimerTask;
-
-	private static final int CHECK_TCP_CONNECTION_ALIVE_PERIOD = 2000; // milliseconds
-
-	private int publicPort = -1;
-	private String publicAddress = "";
+	private final PongDeadlineTimerTask pongDeadlineTimerTask = new PongDeadlineTimerTask();
+	private final KeepAliveMonitor keepAliveMonitor = new KeepAliveMonitor();
+	private final KeepAliveController keepAliveController;
+	private final RttEstimator rttEstimator = new RttEstimator();
+	private volatile DnsResolver dnsResolver;
+	private volatile InetSocketAddress proxyTarget;
+	private final ProxyTargetSet proxyTargets = new ProxyTargetSet();
+	private long proxyLocationExpires = 0;
+	private boolean proxyLocateScheduled = false;
+	private volatile int keepAliveInterval; // seconds
+
+	private volatile int publicPort = -1;
+	private volatile String publicAddress = "";
+	private long stunUnreachableUntil = 0;
+	private String stunUnreachableServer; // The backoff applies to it only
+
+	private static final long STUN_DISCOVERY_TIMEOUT = 1500; // milliseconds
+	private static final long STUN_UNREACHABLE_MILLIS = 300000;
+	private static final long MIN_PROXY_RELOCATE = 30000; // milliseconds
+	private static final long PROXY_RELOCATE_RETRY = 60; // seconds
 
 	// Handlers
 	private ErrorHandler errorHandler;
@@ -147,14 +213,125 @@ public class SipUA extends UA {
 	private CallTerminatedHandler callTerminatedHandler;
 
 	private final Map<String, SipRegister> localUris = new ConcurrentHashMap<String, SipRegister>();
-	final Set<CRegister> pendingCRegisters = new CopyOnWriteArraySet<CRegister>();
-	final Set<SipCall> activedCalls = new CopyOnWriteArraySet<SipCall>();
+	private final RegisterTransactionTracker registerTracker = new RegisterTransactionTracker();
+
+	// Client transactions waiting for a final response, failed at once if
+	// their flow fails
+	private final Set<CTransaction> clientTransactions = Collections
+			.newSetFromMap(new ConcurrentHashMap<CTransaction, Boolean>());
+	final SipCallRegistry activedCalls = new SipCallRegistry();
 
 	private final Preferences preferences;
+	private final RegisterScheduler registerScheduler;
+	private final PendingOperationQueue pendingOperations;
 	private final Context context;
 	private final SharedPreferences sharedPreferences;
 
+	// UA commands. They are executed serially on the UA looper thread
+	private static final int MSG_TERMINATE = 0;
+	private static final int MSG_INIT_SIP_STACK = 1;
+	private static final int MSG_INIT_SIP_PROVIDER = 2;
+	private static final int MSG_TERMINATE_SIP_PROVIDER = 3;
+	private static final int MSG_REGISTER = 4;
+	private static final int MSG_UNREGISTER = 5;
+	private static final int MSG_REREGISTER = 6;
+	private static final int MSG_REGISTER_PERSISTENT_TCP = 7;
+	private static final int MSG_DIAL = 8;
+	private static final int MSG_CONNECTION_CLOSED = 9;
+	private static final int MSG_DRAIN_REGISTER_QUEUE = 10;
+	private static final int MSG_FLOW_DEAD = 11;
+	private static final int MSG_STUN_KEEP_ALIVE = 12;
+	private static final int MSG_PUBLIC_ADDRESS = 13;
+	private static final int MSG_HANDOVER = 14;
+	private static final int MSG_RETIRE_PROVIDERS = 15;
+	private static final int MSG_EXPIRE_PENDING_OPERATIONS = 16;
+	private static final int MSG_DRAIN_RESULT = 17;
+	private static final int MSG_DRAIN_TIMEOUT = 18;
+	private static final int MSG_LOCATE_PROXY = 19;
+	private static final int MSG_RESET_DNS_RESOLVER = 20;
+
 	private final LooperThread looperThread = new LooperThread();
+	private final LooperThread.Mailbox mailbox = looperThread
+			.createMailbox(new Handler.Callback() {
+				@Override
+				public boolean handleMessage(Message msg) {
+					switch (msg.what) {
+					case MSG_TERMINATE:
+						terminateSync();
+						break;
+					case MSG_INIT_SIP_STACK:
+						initSipStackSync();
+						break;
+					case MSG_INIT_SIP_PROVIDER:
+						initSipProviderSync();
+						break;
+					case MSG_TERMINATE_SIP_PROVIDER:
+						terminateSipProviderSync();
+						break;
+					case MSG_REGISTER:
+						registerSync((Register) msg.obj);
+						break;
+					case MSG_UNREGISTER:
+						unregisterSync((Register) msg.obj);
+						break;
+					case MSG_REREGISTER:
+						reRegisterSync();
+						break;
+					case MSG_REGISTER_PERSISTENT_TCP:
+						registerPersistentTcpSync((SipRegister) msg.obj,
+								msg.arg1);
+						break;
+					case MSG_DIAL:
+						dialSync((SipCall) msg.obj);
+						break;
+					case MSG_CONNECTION_CLOSED:
+						connectionClosedSync((SocketAddress) msg.obj);
+						break;
+					case MSG_FLOW_DEAD:
+						flowDeadSync((SocketAddress) msg.obj);
+						break;
+					case MSG_STUN_KEEP_ALIVE:
+						stunKeepAliveSync();
+						break;
+					case MSG_PUBLIC_ADDRESS:
+						publicAddressSync((String) msg.obj, msg.arg1);
+						break;
+					case MSG_HANDOVER:
+						handoverSync();
+						break;
+					case MSG_RETIRE_PROVIDERS:
+						retireProvidersSync();
+						break;
+					case MSG_EXPIRE_PENDING_OPERATIONS:
+						pendingOperations.setExpireScheduled(false);
+						expirePendingOperationsSync();
+						break;
+					case MSG_DRAIN_RESULT:
+						drainResultSync((CTransaction) msg.obj, msg.arg1);
+						break;
+					case MSG_DRAIN_TIMEOUT:
+						if (!drainReport.isFinished())
+							finishTerminateSync();
+						break;
+					case MSG_DRAIN_REGISTER_QUEUE:
+						registerScheduler.setDrainScheduled(false);
+						drainRegisterQueueSync();
+						break;
+					case MSG_LOCATE_PROXY:
+						locateProxyOnExpirySync();
+						break;
+					case MSG_RESET_DNS_RESOLVER:
+						// Created again with the new servers when needed
+						dnsResolver = null;
+						break;
+					default:
+						log.warn("Unknown UA command: " + msg.what);
+						return false;
+					}
+					return true;
+				}
+			});
+	private final LooperThreadPool callLooperPool = new LooperThreadPool();
 
 	public SipUA(Context context) throws KurentoSipException {
 		super(context);
@@ -162,7 +339,8 @@ public class SipUA extends UA {
 		sipFactory = SipFactory.getInstance();
 
 		try {
-			addressFactory = sipFactory.createAddressFactory();
+			addressFactory = new CachingAddressFactory(
+					sipFactory.createAddressFactory(), ADDRESS_CACHE_SIZE);
 			headerFactory = sipFactory.createHeaderFactory();
 			messageFactory = sipFactory.createMessageFactory();
 
@@ -177,6 +355,8 @@ public class SipUA extends UA {
 			log.error("SipUA initialization error", t);
 			throw new KurentoSipException("SipUA initialization error", t);
 		}
+		credentialCache = new DigestCredentialCache(addressFactory,
+				headerFactory);
 
 		this.context = context;
 		sharedPreferences = PreferenceManager
@@ -185,12 +365,15 @@ public class SipUA extends UA {
 				.registerOnSharedPreferenceChangeListener(onSharedPreferenceChangeListener);
 
 		looperThread.start();
+		callLooperPool.start();
 		preferences = new Preferences(context);
+		registerScheduler = new RegisterScheduler(preferences);
+		pendingOperations = new PendingOperationQueue(preferences);
+		keepAliveController = new KeepAliveController(context);
+		configureWireTrace();
 
 		this.wakeupTimer = new AlarmUaTimer(context,
-				AlarmManager.ELAPSED_REALTIME_WAKEUP);
-		this.noWakeupTimer = new AlarmUaTimer(context,
-				AlarmManager.ELAPSED_REALTIME);
+				AlarmManager.ELAPSED_REALTIME_WAKEUP, flightRecorder);
 		createDefaultHandlers();
 
 		initSipStack();
@@ -206,37 +389,119 @@ public class SipUA extends UA {
 		return context;
 	}
 
+	/*
+	 * Calls are hung up and local contacts unregistered all at once. The
+	 * stack is stopped when every transaction is done or the drain deadline
+	 * is reached, whatever comes first
+	 */
 	private void terminateSync() {
+		if (drainReport != null)
+			return; // Already terminating
+
 		sharedPreferences
 				.unregisterOnSharedPreferenceChangeListener(onSharedPreferenceChangeListener);
 		context.unregisterReceiver(networkStateReceiver);
 
+		DrainReport report = new DrainReport();
 		if (sipStack != null && sipProvider != null) {
-			for (SipCall call : activedCalls) {
+			for (SipCall call : activedCalls.removeAll()) {
+				report.add(DrainReport.Kind.CALL, call.getId(),
+						call.isTerminationTracked());
 				call.terminate();
-				activedCalls.remove(call);
 			}
 
 			// Unregister all local contacts
-			for (SipRegister reg : localUris.values())
+			for (SipRegister reg : localUris.values()) {
+				String aor = reg.getRegister().getUri();
 				unregisterSync(reg.getRegister());
+				report.add(DrainReport.Kind.REGISTER, aor,
+						registerTracker.isInFlight(aor));
+			}
+		}
+		drainReport = report;
+
+		pendingOperations.clear(new KurentoException("UA terminated"));
+
+		if (report.isDrained()) {
+			finishTerminateSync();
+		} else {
+			log.info("Draining SIP UA before termination");
+			mailbox.sendDelayed(MSG_DRAIN_TIMEOUT,
+					preferences.getSipDrainTimeoutMillis());
 		}
+	}
+
+	/*
+	 * A transaction sent on terminate reached its outcome. Status code -1
+	 * for timeout
+	 */
+	private void drainResultSync(CTransaction cTrns, int statusCode) {
+		if (drainReport == null || drainReport.isFinished())
+			return;
+
+		DrainReport.Outcome outcome;
+		if (statusCode < 0)
+			outcome = DrainReport.Outcome.TIMED_OUT;
+		else if (statusCode < 300 || isCanceledInvite(cTrns, statusCode))
+			outcome = DrainReport.Outcome.COMPLETED;
+		else
+			outcome = DrainReport.Outcome.FAILED;
+
+		boolean completed;
+		if (cTrns instanceof CRegister
+				&& ((CRegister) cTrns).getExpires() == 0) {
+			completed = drainReport.complete(DrainReport.Kind.REGISTER,
+					((CRegister) cTrns).getRegister().getUri(), outcome,
+					statusCode);
+		} else if (cTrns.getCall() != null
+				&& (Request.BYE.equals(cTrns.getMethod()) || Request.INVITE
+						.equals(cTrns.getMethod()))) {
+			completed = drainReport.complete(DrainReport.Kind.CALL, cTrns
+					.getCall().getId(), outcome, statusCode);
+		} else {
+			return;
+		}
+
+		if (completed && drainReport.isDrained())
+			finishTerminateSync();
+	}
+
+	/*
+	 * The INVITE of a call canceled on terminate ends with 487: the CANCEL
+	 * succeeded
+	 */
+	private static boolean isCanceledInvite(CTransaction cTrns, int statusCode) {
+		return statusCode == Response.REQUEST_TERMINATED
+				&& Request.INVITE.equals(cTrns.getMethod())
+				&& cTrns.getCall() != null && cTrns.getCall().isTerminating();
+	}
+
+	private void finishTerminateSync() {
+		drainReport.finish();
+		log.info("SIP UA drained: " + drainReport);
 
 		terminateSipProviderSync();
 		terminateSipStackSync();
 		sipUaTerminated = true;
 		uaHandler.onTerminated(SipUA.this);
+		wakeupTimer.stop();
+		callLooperPool.quit();
 		looperThread.quit();
+		wireTrace.setEnabled(false);
+	}
+
+	/**
+	 * Outcome of the hang ups and unregistrations sent on terminate. Null
+	 * until the UA is terminated, final from
+	 * {@link UAHandler#onTerminated(UA)}.
+	 */
+	public DrainReport getDrainReport() {
+		return drainReport;
 	}
 
 	@Override
 	public void terminate() {
-		looperThread.post(new Runnable() {
-			@Override
-			public void run() {
-				terminateSync();
-			}
-		});
+		mailbox.send(MSG_TERMINATE);
 	}
 
 	// ////////////////
@@ -245,17 +510,19 @@ public class SipUA extends UA {
 	//
 	// ////////////////
 
+	LooperThreadPool getCallLooperPool() {
+		return callLooperPool;
+	}
+
 	public Preferences getPreferences() {
 		return preferences;
 	}
 
 	public String getLocalAddress() {
-		// TODO Return local address depending on STUN config
 		return localAddress.getHostAddress();
 	}
 
 	public int getLocalPort() {
-		// TODO Return local port depending on STUN config
 		return preferences.getSipLocalPort();
 	}
 
@@ -283,7 +550,11 @@ public class SipUA extends UA {
 		return wakeupTimer;
 	}
 
-	public AddressFactory getAddressFactory() {
+	/*
+	 * Addresses and URIs are parsed once and cloned afterwards. Hit and miss
+	 * counters are available from the returned factory
+	 */
+	public CachingAddressFactory getAddressFactory() {
 		return addressFactory;
 	}
 
@@ -299,6 +570,186 @@ public class SipUA extends UA {
 		return userAgentHeader;
 	}
 
+	public SipCallRegistry getCallRegistry() {
+		return activedCalls;
+	}
+
+	public RegisterScheduler getRegisterScheduler() {
+		return registerScheduler;
+	}
+
+	public PendingOperationQueue getPendingOperationQueue() {
+		return pendingOperations;
+	}
+
+	public RegisterTransactionTracker getRegisterTracker() {
+		return registerTracker;
+	}
+
+	public DigestCredentialCache getCredentialCache() {
+		return credentialCache;
+	}
+
+	public SipWireTrace getWireTrace() {
+		return wireTrace;
+	}
+
+	public FlightRecorder getFlightRecorder() {
+		return flightRecorder;
+	}
+
+	public KeepAliveMonitor getKeepAliveMonitor() {
+		return keepAliveMonitor;
+	}
+
+	public RttEstimator getRttEstimator() {
+		return rttEstimator;
+	}
+
+	public DnsResolver getDnsResolver() {
+		return dnsResolver;
+	}
+
+	public ProxyTargetSet getProxyTargets() {
+		return proxyTargets;
+	}
+
+	/**
+	 * Default destination of requests: host:port/transport. The best address
+	 * located when the SIP stack was initiated, or the configured proxy if it
+	 * could not be located. It stays, with the persistent flow and the keep
+	 * alives, until the stack is initiated again. Out of dialog requests may
+	 * be routed to other proxies of {@link #getProxyTargets()}, which are
+	 * located again when their DNS records expire.
+	 */
+	public String getOutboundProxy() {
+		InetSocketAddress target = proxyTarget;
+		if (target == null)
+			return preferences.getSipProxyServerAddress() + ":"
+					+ preferences.getSipProxyServerPort() + "/"
+					+ preferences.getSipTransport();
+		return getDestination(target);
+	}
+
+	/**
+	 * @return Address of {@link #getOutboundProxy()}, or null if the proxy
+	 *         could not be located
+	 */
+	public InetSocketAddress getOutboundProxyAddress() {
+		return proxyTarget;
+	}
+
+	/**
+	 * @return host:port/transport of a proxy
+	 */
+	public String getDestination(InetSocketAddress target) {
+		String host = target.getAddress().getHostAddress();
+		if (host.indexOf(':') >= 0)
+			host = "[" + host + "]";
+		return host + ":" + target.getPort() + "/"
+				+ preferences.getSipTransport();
+	}
+
+	/*
+	 * Proxy address for keep alives and flow tracking. Resolved by the
+	 * system, blocking, only if it could not be located
+	 */
+	private InetSocketAddress getProxyTarget() throws UnknownHostException {
+		InetSocketAddress target = proxyTarget;
+		if (target != null)
+			return target;
+		return new InetSocketAddress(InetAddress.getByName(preferences
+				.getSipProxyServerAddress()), preferences.getSipProxyServerPort());
+	}
+
+	public KeepAliveController getKeepAliveController() {
+		return keepAliveController;
+	}
+
+	/**
+	 * Write the events of the flight recorder into the application files
+	 * directory, replacing the previous dump.
+	 *
+	 * @return The dump file, or null if it could not be written
+	 */
+	public File dumpFlightRecorder() {
+		File file = new File(context.getFilesDir(), FLIGHT_RECORDER_FILE);
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(file);
+			flightRecorder.dump(out);
+			log.info("Flight recorder dumped to " + file);
+			return file;
+		} catch (IOException e) {
+			log.error("Unable to dump flight recorder", e);
+			return null;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					log.warn("Unable to close flight recorder dump", e);
+				}
+			}
+		}
+	}
+
+	private void dumpFlightRecorderOnError(KurentoException exception) {
+		flightRecorder.record(FlightRecorder.ERROR,
+				exception.getClass().getSimpleName(), exception.getMessage());
+
+		// A failure usually comes with more. Dump once for all of them
+		synchronized (flightRecorder) {
+			long now = SystemClock.elapsedRealtime();
+			if (lastFlightRecorderDump != 0
+					&& now - lastFlightRecorderDump < FLIGHT_RECORDER_MIN_DUMP_INTERVAL)
+				return;
+			lastFlightRecorderDump = now;
+		}
+		flightRecorderDumper.execute(new Runnable() {
+			@Override
+			public void run() {
+				dumpFlightRecorder();
+			}
+		});
+	}
+
+	private final ErrorHandler recordingErrorHandler = new ErrorHandler() {
+
+		@Override
+		public void onUAError(UA ua, KurentoException exception) {
+			dumpFlightRecorderOnError(exception);
+			errorHandler.onUAError(ua, exception);
+		}
+
+		@Override
+		public void onConfError(Conference conference,
+				KurentoException exception) {
+			errorHandler.onConfError(conference, exception);
+		}
+
+		@Override
+		public void onCallError(Call call, KurentoException exception) {
+			dumpFlightRecorderOnError(exception);
+			errorHandler.onCallError(call, exception);
+		}
+	};
+
+	public RequestTemplateCache getRequestTemplateCache() {
+		return requestTemplateCache;
+	}
+
+	/*
+	 * Registration of a local URI. It provides the credentials used to
+	 * authenticate any request sent on behalf of that URI
+	 */
+	public Register getRegister(String localUri) {
+		SipRegister sipReg = localUris.get(localUri);
+		if (sipReg != null)
+			return sipReg.getRegister();
+		return null;
+	}
+
 	public synchronized SipProvider getSipProvider() {
 		return sipProvider;
 	}
@@ -310,6 +761,17 @@ public class SipUA extends UA {
 		return null;
 	}
 
+	/*
+	 * Contact of the user at the current public address of the provider
+	 */
+	public Address createContactAddress(String user) throws ParseException {
+		String contactAddressStr = "sip:" + user + "@" + getPublicAddress()
+				+ ":" + getPublicPort();
+		if (!isUdp())
+			contactAddressStr += ";transport=" + preferences.getSipTransport();
+		return addressFactory.createAddress(contactAddressStr);
+	}
+
 	public void updateContactAddress(String contactUri) {
 		SipRegister sipReg = localUris.get(contactUri);
 		if (sipReg != null) {
@@ -319,6 +781,7 @@ public class SipUA extends UA {
 						+ getPublicAddress() + ":" + getPublicPort()
 						+ ";transport=" + preferences.getSipTransport());
 				sipReg.setAddress(contactAddress);
+				requestTemplateCache.invalidate(contactUri);
 			} catch (ParseException e) {
 				log.error("Unable to update contact address", e);
 			}
@@ -368,8 +831,12 @@ public class SipUA extends UA {
 		this.callTerminatedHandler = callTerminatedHandler;
 	}
 
+	/*
+	 * Errors are reported through this handler so that the flight recorder
+	 * is dumped before the application handler is called
+	 */
 	public ErrorHandler getErrorHandler() {
-		return errorHandler;
+		return recordingErrorHandler;
 	}
 
 	public RegisterHandler getRegisterHandler() {
@@ -411,10 +878,11 @@ public class SipUA extends UA {
 
 			Properties jainProps = new Properties();
 
-			String outboundProxy = preferences.getSipProxyServerAddress() + ":"
-					+ preferences.getSipProxyServerPort() + "/"
-					+ preferences.getSipTransport();
-			jainProps.setProperty("javax.sip.OUTBOUND_PROXY", outboundProxy);
+			if (!locateProxySync())
+				proxyTargets.clear();
+			proxyTarget = proxyTargets.select(null, true);
+			jainProps.setProperty("javax.sip.OUTBOUND_PROXY",
+					getOutboundProxy());
 
 			jainProps.setProperty("javax.sip.STACK_NAME",
 					"siplib_" + System.currentTimeMillis());
@@ -454,16 +922,19 @@ public class SipUA extends UA {
 				if (!ListeningPoint.TLS.equalsIgnoreCase(preferences
 						.getSipTransport())
 						|| preferences.isSipTrustAnyTlsConnection()) {
-					sipStack.setNetworkLayer(new KurentoSslNetworkLayer());
+					networkLayer = new KurentoSslNetworkLayer();
 				} else {
 					String truststoreRawResName = preferences
 							.getSipTlsTruststoreRawResName();
 					String truststorePassord = preferences
 							.getSipTlsTruststorePassword();
 					preferences.getSipTlsTruststorePassword();
-					sipStack.setNetworkLayer(new KurentoSslNetworkLayer(
-							context, truststoreRawResName, truststorePassord));
+					networkLayer = new KurentoSslNetworkLayer(context,
+							truststoreRawResName, truststorePassord);
 				}
+				networkLayer.setConnectionListener(connectionListener);
+				sipStack.setNetworkLayer(networkLayer);
+				keepAliveMonitor.setNetworkLayer(networkLayer);
 			} catch (Exception e) {
 				log.error("could not instantiate SSL networking", e);
 				throw e;
@@ -471,18 +942,13 @@ public class SipUA extends UA {
 		} catch (Throwable t) {
 			terminateSipStackSync();
 			log.error("Error initiating SIP stack", t);
-			errorHandler.onUAError(SipUA.this, new KurentoException(
+			recordingErrorHandler.onUAError(SipUA.this, new KurentoException(
 					"Unable to initiate SIP stack", t));
 		}
 	}
 
 	private void initSipStack() {
-		looperThread.post(new Runnable() {
-			@Override
-			public void run() {
-				initSipStackSync();
-			}
-		});
+		mailbox.send(MSG_INIT_SIP_STACK);
 	}
 
 	private void terminateSipStackSync() {
@@ -494,8 +960,91 @@ public class SipUA extends UA {
 		}
 	}
 
+	/*
+	 * rfc3263 location of the proxies, through the DNS cache: NAPTR and SRV
+	 * records if enabled, the address records of the host otherwise. They
+	 * replace the proxy targets. False if they can not be located, so the
+	 * stack resolves the host itself
+	 */
+	private boolean locateProxySync() {
+		String host = preferences.getSipProxyServerAddress();
+		long ttl = PROXY_RELOCATE_RETRY;
+		try {
+			DnsResolver resolver = dnsResolver;
+			if (resolver == null) {
+				resolver = new DnsResolver(DnsResolver.parseServers(preferences
+						.getSipDnsServers()));
+				dnsResolver = resolver;
+				if (preferences.isSipProxySrv()
+						&& resolver.getServers().isEmpty())
+					log.warn("No DNS server known to locate proxy "
+							+ host
+							+ " through NAPTR and SRV, only its address is "
+							+ "resolved. Configure "
+							+ Preferences.SIP_DNS_SERVERS);
+			}
+
+			SipServerLocator locator = new SipServerLocator(resolver);
+			List<InetSocketAddress> targets;
+			if (preferences.isSipProxySrv())
+				targets = locator.locate(host, preferences.getSipTransport(),
+						preferences.isSipOnlyIpv4());
+			else
+				targets = locator.locateHost(host,
+						preferences.getSipProxyServerPort(),
+						preferences.isSipOnlyIpv4());
+
+			if (targets.isEmpty()) {
+				log.warn("No server found for proxy " + host);
+				return false;
+			}
+			log.info("Proxy " + host + " located at " + targets);
+			ttl = locator.getTtl();
+			proxyTargets.setTargets(targets, locator.getPriorities());
+			return true;
+		} catch (IOException e) {
+			log.warn("Unable to locate proxy " + host, e);
+			return false;
+		} finally {
+			scheduleLocateProxySync(ttl);
+		}
+	}
+
+	/*
+	 * Locate the proxy again once what was located expires. The DNS cache
+	 * answers at once, refreshing in the background if needed, so the new
+	 * servers are picked up at the latest on the following location
+	 */
+	private void scheduleLocateProxySync(long ttl) {
+		if (ttl < 0) {
+			proxyLocationExpires = 0; // IP address, never expires
+			return;
+		}
+
+		long delay = Math.max(MIN_PROXY_RELOCATE, ttl * 1000);
+		proxyLocationExpires = SystemClock.elapsedRealtime() + delay;
+		if (!proxyLocateScheduled) {
+			proxyLocateScheduled = true;
+			mailbox.sendDelayed(MSG_LOCATE_PROXY, delay);
+		}
+	}
+
+	private void locateProxyOnExpirySync() {
+		proxyLocateScheduled = false;
+		if (sipStack == null || proxyLocationExpires == 0)
+			return;
+
+		long remaining = proxyLocationExpires - SystemClock.elapsedRealtime();
+		if (remaining > 0) {
+			proxyLocateScheduled = true;
+			mailbox.sendDelayed(MSG_LOCATE_PROXY, remaining);
+			return;
+		}
+
+		locateProxySync();
+	}
+
 	private synchronized void initSipProviderSync() {
-		// TODO get socket from SipStackExt to perform STUN test
 		// TODO Verify socket transport to see if it is compatible
 		// with STUN
 
@@ -505,125 +1054,301 @@ public class SipUA extends UA {
 			if (sipStack == null)
 				initSipStackSync();
 
-			localAddress = NetworkUtilities.getLocalInterface(null,
-					preferences.isSipOnlyIpv4());
+			createSipProviderSync(NetworkUtilities.getLocalInterface(null,
+					preferences.isSipOnlyIpv4()));
+			startSipProviderSync();
+		} catch (Throwable t) {
+			log.error("Error initiating SIP provider", t);
+			terminateSipProviderSync();
+			recordingErrorHandler.onUAError(SipUA.this, new KurentoException(
+					"Unable to initiate SIP provider", t));
+		}
+	}
 
-			// Create a listening point per interface
-			log.info("Create listening point at: " + localAddress + ":"
-					+ preferences.getSipLocalPort() + "/"
-					+ preferences.getSipTransport());
-			listeningPoint = sipStack.createListeningPoint(
-					localAddress.getHostAddress(),
-					preferences.getSipLocalPort(),
-					preferences.getSipTransport());
+	private void initSipProvider() {
+		mailbox.send(MSG_INIT_SIP_PROVIDER);
+	}
 
+	/*
+	 * Create a listening point and provider on the address and make them the
+	 * current ones. The previous provider, if any, is left untouched
+	 */
+	private void createSipProviderSync(InetAddress address) throws Exception {
+		log.info("Create listening point at: " + address + ":"
+				+ preferences.getSipLocalPort() + "/"
+				+ preferences.getSipTransport());
+		ListeningPoint lp = sipStack.createListeningPoint(
+				address.getHostAddress(), preferences.getSipLocalPort(),
+				preferences.getSipTransport());
+
+		SipProvider provider;
+		try {
 			// Create SIP PROVIDER and add listening points
-			sipProvider = sipStack.createSipProvider(listeningPoint);
+			provider = sipStack.createSipProvider(lp);
 
 			// Add User Agent as listener for the SIP provider
-			sipProvider.addSipListener(sipListenerImpl);
+			provider.addSipListener(sipListenerImpl);
+		} catch (Exception e) {
+			sipStack.deleteListeningPoint(lp);
+			throw e;
+		}
 
-			if (preferences.isPersistentConnection()) {
-				// rfc5626 3.5.1. CRLF Keep-Alive Technique
-				// Only with connection-oriented
-				if (sipKeepAliveTimerTask != null) {
-					// Disable keep alive if already active
-					wakeupTimer.cancel(sipKeepAliveTimerTask);
-				}
+		localAddress = address;
+		listeningPoint = lp;
+		sipProvider = provider;
+	}
 
-				tcpSocketAddress = sipStack.obtainLocalAddress(
-						InetAddress.getAllByName(preferences
-								.getSipProxyServerAddress())[0], preferences
-								.getSipProxyServerPort(), localAddress, 0);
-				log.debug("Socket address: " + tcpSocketAddress);
+	/*
+	 * Bring up the flow of the current provider and register every local
+	 * contact through it
+	 */
+	private void startSipProviderSync() throws IOException {
+		// The DNS answer may have changed. The stack keeps its outbound proxy
+		locateProxySync();
+
+		if (isUdp())
+			discoverPublicAddressSync();
+
+		if (preferences.isPersistentConnection()) {
+			// rfc5626 3.5.1. CRLF Keep-Alive Technique
+			// Only with connection-oriented
+			InetSocketAddress proxy = getProxyTarget();
+			tcpSocketAddress = sipStack.obtainLocalAddress(
+					proxy.getAddress(), proxy.getPort(), localAddress, 0);
+			log.debug("Socket address: " + tcpSocketAddress);
+		}
 
-				checkTcpConnectionAliveTimerTask = new CheckTCPConnectionAliveTimerTask();
-				noWakeupTimer.schedule(checkTcpConnectionAliveTimerTask,
-						CHECK_TCP_CONNECTION_ALIVE_PERIOD,
-						CHECK_TCP_CONNECTION_ALIVE_PERIOD);
-			}
+		configureSipKeepAlive();
 
-			configureSipKeepAlive();
+		flightRecorder.record(FlightRecorder.PROVIDER_INIT,
+				localAddress.getHostAddress() + ":"
+						+ preferences.getSipLocalPort() + ";transport="
+						+ preferences.getSipTransport(), null);
 
-			// Re-register all local contacts
-			for (SipRegister reg : localUris.values())
-				registerSync(reg);
-		} catch (Throwable t) {
-			log.error("Error initiating SIP provider", t);
-			terminateSipProviderSync();
-			errorHandler.onUAError(SipUA.this, new KurentoException(
-					"Unable to initiate SIP provider", t));
-		}
-	}
+		// Re-register all local contacts
+		registerScheduler.addAll(localUris.values());
+		drainRegisterQueueSync();
 
-	private void initSipProvider() {
-		looperThread.post(new Runnable() {
-			@Override
-			public void run() {
-				initSipProviderSync();
-			}
-		});
+		pendingOperations.flush();
 	}
 
-	private synchronized void terminateSipProviderSync() {
+	/*
+	 * Forget everything bound to the flow of the current provider
+	 */
+	private void resetSipProviderStateSync() {
 		if (sipKeepAliveTimerTask != null) {
 			log.info("Stop SIP keep alive");
 			wakeupTimer.cancel(sipKeepAliveTimerTask);
+			wakeupTimer.cancel(pongDeadlineTimerTask);
 		}
 
-		if (checkTcpConnectionAliveTimerTask != null) {
-			log.info("Stop checking TCP connection alive");
-			noWakeupTimer.cancel(checkTcpConnectionAliveTimerTask);
-		}
+		// Closing the connections of this provider is not a failure
+		tcpSocketAddress = null;
 
-		if (sipStack != null && sipProvider != null) {
-			log.info("Delete SIP listening points");
-			for (ListeningPoint lp : sipProvider.getListeningPoints()) {
-				try {
-					sipStack.deleteListeningPoint(lp);
-				} catch (ObjectInUseException e) {
-					log.warn("Unable to delete SIP listening point: "
-							+ lp.getIPAddress() + ":" + lp.getPort());
-				}
-			}
+		// Learned again on the next network
+		publicAddress = "";
+		publicPort = -1;
+
+		// Every local contact is registered again when the provider is
+		// initiated
+		registerScheduler.clear();
+
+		// Via and Contact of the templates belong to this provider
+		requestTemplateCache.invalidateAll();
+
+		// The path to the proxy changes with the network
+		rttEstimator.clear();
+	}
 
-			sipProvider.removeSipListener(sipListenerImpl);
+	private void deleteSipProviderSync(SipProvider provider) {
+		flightRecorder.record(FlightRecorder.PROVIDER_TERMINATED, null, null);
+		log.info("Delete SIP listening points");
+		for (ListeningPoint lp : provider.getListeningPoints()) {
 			try {
-				sipStack.deleteSipProvider(sipProvider);
+				sipStack.deleteListeningPoint(lp);
 			} catch (ObjectInUseException e) {
-				log.warn("Unable to delete SIP provider");
+				log.warn("Unable to delete SIP listening point: "
+						+ lp.getIPAddress() + ":" + lp.getPort());
 			}
+		}
+
+		provider.removeSipListener(sipListenerImpl);
+		try {
+			sipStack.deleteSipProvider(provider);
+		} catch (ObjectInUseException e) {
+			log.warn("Unable to delete SIP provider");
+		}
+	}
+
+	private synchronized void terminateSipProviderSync() {
+		resetSipProviderStateSync();
 
+		if (sipStack != null) {
+			for (SipProvider provider : retiringProviders)
+				deleteSipProviderSync(provider);
+		}
+		retiringProviders.clear();
+
+		if (sipStack != null && sipProvider != null) {
+			deleteSipProviderSync(sipProvider);
 			sipProvider = null;
 			log.info("SIP provider terminated");
 		}
 	}
 
 	private void terminateSipProvider() {
-		looperThread.post(new Runnable() {
-			@Override
-			public void run() {
-				terminateSipProviderSync();
+		mailbox.send(MSG_TERMINATE_SIP_PROVIDER);
+	}
+
+	/*
+	 * Make before break: the provider on the new address registers every
+	 * local contact and takes over the established calls before the old one
+	 * is deleted, so there is no time the UA can not be reached
+	 */
+	private synchronized void handoverSync() {
+		if (sipStack == null || sipProvider == null
+				|| !preferences.isSipHandover()) {
+			initSipProviderSync();
+			return;
+		}
+
+		InetAddress address;
+		try {
+			address = NetworkUtilities.getLocalInterface(null,
+					preferences.isSipOnlyIpv4());
+		} catch (IOException e) {
+			log.warn("No local address to hand over to", e);
+			terminateSipProviderSync();
+			return;
+		}
+
+		if (address.equals(localAddress)) {
+			// Same address, e.g. a duplicate broadcast: the registrations
+			// stand while the flow does. A dead one is left to keep alives
+			if (preferences.isPersistentConnection()
+					&& (tcpSocketAddress == null || !networkLayer
+							.isConnectionOpen(tcpSocketAddress))) {
+				log.debug("Flow to proxy lost, registering again");
+				reRegisterSync();
 			}
-		});
+			return;
+		}
+
+		log.info("Hand over SIP provider from " + localAddress + " to "
+				+ address);
+		SipProvider oldProvider = sipProvider;
+		try {
+			// REGISTERs through the old flow are superseded
+			registerTracker.cancelAll();
+			createSipProviderSync(address);
+		} catch (Throwable t) {
+			log.warn("Unable to create SIP provider for handover", t);
+			initSipProviderSync();
+			return;
+		}
+
+		resetSipProviderStateSync();
+		retiringProviders.add(oldProvider);
+		retireDeadline = SystemClock.elapsedRealtime() + RETIRE_TIMEOUT;
+
+		try {
+			startSipProviderSync();
+		} catch (Throwable t) {
+			log.error("Error starting SIP provider on handover", t);
+			terminateSipProviderSync();
+			recordingErrorHandler.onUAError(SipUA.this, new KurentoException(
+					"Unable to hand over SIP provider", t));
+			return;
+		}
+
+		for (SipCall call : activedCalls.getCalls())
+			call.handover();
+
+		mailbox.sendDelayed(MSG_RETIRE_PROVIDERS, RETIRE_POLL);
+	}
+
+	private void handover() {
+		mailbox.send(MSG_HANDOVER);
+	}
+
+	/*
+	 * Old providers are kept until the REGISTERs through the new one are
+	 * done, so responses and requests on the old flow are still handled
+	 */
+	private void retireProvidersSync() {
+		if (retiringProviders.isEmpty())
+			return;
+
+		if ((registerTracker.getInFlightCount() > 0 || registerScheduler
+				.getQueueDepth() > 0)
+				&& SystemClock.elapsedRealtime() < retireDeadline) {
+			mailbox.sendDelayed(MSG_RETIRE_PROVIDERS, RETIRE_POLL);
+			return;
+		}
+
+		log.info("Retire " + retiringProviders.size() + " old SIP provider(s)");
+		for (SipProvider provider : retiringProviders)
+			deleteSipProviderSync(provider);
+		retiringProviders.clear();
+	}
+
+	private void configureWireTrace() {
+		wireTrace.setCallSampling(preferences.getSipWireTraceCallSampling());
+		wireTrace.setMethodSampling(preferences
+				.getSipWireTraceMethodSampling());
+		wireTrace.setEnabled(preferences.isSipWireTrace());
 	}
 
 	private void configureSipKeepAlive() {
 		if (sipKeepAliveTimerTask != null) {
 			log.info("Stop SIP keep alive");
 			wakeupTimer.cancel(sipKeepAliveTimerTask);
+			wakeupTimer.cancel(pongDeadlineTimerTask);
 		}
 
-		if (listeningPoint != null && preferences.isPersistentConnection()
+		if (listeningPoint != null
+				&& (preferences.isPersistentConnection() || isUdp())
 				&& preferences.isEnableSipKeepAlive()) {
 			log.info("Using SIP keep alive");
 			sipKeepAliveTimerTask = new SipKeepAliveTimerTask(listeningPoint,
 					preferences);
-			long period = preferences.getSipKeepAliveSeconds() * 1000;
-			wakeupTimer.schedule(sipKeepAliveTimerTask, period, period);
+			if (preferences.isSipKeepAliveAdaptive()) {
+				keepAliveController.configure(
+						preferences.getSipKeepAliveSeconds(),
+						preferences.getSipKeepAliveMinSeconds(),
+						preferences.getSipKeepAliveMaxSeconds());
+				keepAliveController.setNetwork(NetworkUtilities
+						.getNetworkId(context, localAddress));
+				scheduleSipKeepAlive(keepAliveController
+						.getCurrentInterval());
+			} else {
+				scheduleSipKeepAlive(preferences.getSipKeepAliveSeconds());
+			}
 		}
 	}
 
+	private void scheduleSipKeepAlive(int interval) {
+		keepAliveInterval = interval;
+		long period = interval * 1000L;
+		wakeupTimer.schedule(sipKeepAliveTimerTask, period, period,
+				preferences.getSipKeepAliveToleranceSeconds() * 1000L);
+	}
+
+	/**
+	 * A REGISTER transaction has just gone through the connection to the
+	 * proxy, which refreshes the NAT binding as a keep alive would. The next
+	 * keep alive is pushed a full period away instead of waking the device
+	 * shortly after.
+	 */
+	public void onNatBindingRefreshed() {
+		SipKeepAliveTimerTask task = sipKeepAliveTimerTask;
+		if (task == null || !wakeupTimer.isScheduled(task))
+			return;
+
+		log.debug("NAT binding refreshed by REGISTER, delay SIP keep alive");
+		scheduleSipKeepAlive(keepAliveInterval);
+	}
+
 	// ////////////////
 	//
 	// URI & REGISTER MANAGEMENT
@@ -639,16 +1364,9 @@ public class SipUA extends UA {
 		Register reg = sipReg.getRegister();
 		try {
 			// TODO: if sipReg already has a contactAddress, use it
-			String contactAddressStr = "sip:" + reg.getUser() + "@"
-					+ localAddress.getHostAddress() + ":"
-					+ preferences.getSipLocalPort();
-			if (!ListeningPoint.UDP.equalsIgnoreCase(preferences
-					.getSipTransport()))
-				contactAddressStr += ";transport="
-						+ preferences.getSipTransport();
-
-			Address contactAddress = addressFactory
-					.createAddress(contactAddressStr);
+			Address contactAddress = createContactAddress(reg.getUser());
+			if (!contactAddress.equals(sipReg.getAddress()))
+				requestTemplateCache.invalidate(reg.getUri());
 			sipReg.setAddress(contactAddress);
 
 			// Before registration remove previous timers
@@ -657,9 +1375,12 @@ public class SipUA extends UA {
 			if (preferences.isPersistentConnection()) {
 				registerPersistentTcpSync(sipReg, 0);
 			} else {
-				CRegister creg = new CRegister(this, sipReg,
-						preferences.getSipRegExpires());
-				pendingCRegisters.add(creg);
+				int expires = preferences.getSipRegExpires();
+				if (registerTracker.coalesce(reg.getUri(), expires))
+					return;
+
+				CRegister creg = new CRegister(this, sipReg, expires);
+				registerTracker.add(creg);
 				creg.sendRequest();
 			}
 		} catch (ParseException e) {
@@ -675,14 +1396,7 @@ public class SipUA extends UA {
 	}
 
 	private void reRegisterSync() {
-		for (CRegister creg : pendingCRegisters) {
-			try {
-				creg.terminate();
-			} catch (KurentoSipException e) {
-				log.warn("Unable to terminate client transaction for register",
-						e);
-			}
-		}
+		registerTracker.cancelAll();
 
 		InetAddress localAddress;
 		try {
@@ -690,14 +1404,13 @@ public class SipUA extends UA {
 					preferences.isSipOnlyIpv4());
 
 			if (localAddress.equals(this.localAddress)) {
-				for (SipRegister reg : localUris.values())
-					registerSync(reg.getRegister());
+				registerScheduler.addAll(localUris.values());
+				drainRegisterQueueSync();
 				if (preferences.isPersistentConnection()) {
 					try {
+						InetSocketAddress proxy = getProxyTarget();
 						tcpSocketAddress = sipStack.obtainLocalAddress(
-								InetAddress.getAllByName(preferences
-										.getSipProxyServerAddress())[0],
-								preferences.getSipProxyServerPort(),
+								proxy.getAddress(), proxy.getPort(),
 								localAddress, 0);
 						log.debug("Socket address: " + tcpSocketAddress);
 					} catch (UnknownHostException e) {
@@ -713,19 +1426,17 @@ public class SipUA extends UA {
 	}
 
 	private void reRegister() {
-		looperThread.post(new Runnable() {
-			@Override
-			public void run() {
-				reRegisterSync();
-			}
-		});
+		mailbox.send(MSG_REREGISTER);
 	}
 
 	private void registerPersistentTcpSync(SipRegister sipReg, int expires) {
+		if (registerTracker.coalesce(sipReg.getRegister().getUri(), expires))
+			return;
+
 		try {
 			CRegisterPersistentTcp cunreg = new CRegisterPersistentTcp(this,
 					sipReg, expires);
-			pendingCRegisters.add(cunreg);
+			registerTracker.add(cunreg);
 			cunreg.sendRequest();
 		} catch (KurentoSipException e) {
 			log.error("Unable to register", e);
@@ -737,22 +1448,11 @@ public class SipUA extends UA {
 		}
 	}
 
-	public void registerPersistentTcp(final SipRegister sipReg,
-			final int expires) {
-		looperThread.post(new Runnable() {
-			@Override
-			public void run() {
-				registerPersistentTcpSync(sipReg, expires);
-			}
-		});
+	public void registerPersistentTcp(SipRegister sipReg, int expires) {
+		mailbox.send(MSG_REGISTER_PERSISTENT_TCP, expires, sipReg);
 	}
 
 	private void registerSync(Register register) {
-		// TODO Implement STUN in order to get public transport address. This
-		// is not accurate at all, but at least give the chance
-		// TODO STUN enabled then use public, STUN disabled then use private.
-		// Do not check NAT type.
-
 		log.debug("Request to register: " + register.getUri() + " for "
 				+ preferences.getSipRegExpires() + " seconds.");
 
@@ -765,17 +1465,29 @@ public class SipUA extends UA {
 			localUris.put(register.getUri(), sipReg);
 		}
 
-		registerSync(sipReg);
+		registerScheduler.add(sipReg);
+		drainRegisterQueueSync();
+	}
+
+	/*
+	 * Send the queued registrations allowed by the scheduler pacing and wait
+	 * for the rest
+	 */
+	private void drainRegisterQueueSync() {
+		SipRegister sipReg;
+		while ((sipReg = registerScheduler.poll()) != null)
+			registerSync(sipReg);
+
+		long delay = registerScheduler.getNextDelay();
+		if (delay >= 0 && !registerScheduler.isDrainScheduled()) {
+			registerScheduler.setDrainScheduled(true);
+			mailbox.sendDelayed(MSG_DRAIN_REGISTER_QUEUE, delay);
+		}
 	}
 
 	@Override
-	public void register(final Register register) {
-		looperThread.post(new Runnable() {
-			@Override
-			public void run() {
-				registerSync(register);
-			}
-		});
+	public void register(Register register) {
+		mailbox.send(MSG_REGISTER, register);
 	}
 
 	private void unregisterSync(Register register) {
@@ -791,9 +1503,15 @@ public class SipUA extends UA {
 			}
 
 			wakeupTimer.cancel(sipReg.getSipRegisterTimerTask());
-			CRegister creg = new CRegister(this, sipReg, 0);
-			pendingCRegisters.add(creg);
-			creg.sendRequest();
+			registerScheduler.remove(sipReg);
+			if (sipProvider == null) {
+				// Not registered again when the provider is up
+				localUris.remove(register.getUri());
+				pendSync(new UnregisterOperation(sipReg));
+				return;
+			}
+
+			sendUnregisterSync(sipReg);
 			localUris.remove(register.getUri());
 		} catch (KurentoSipException e) {
 			log.error("Unable to register", e);
@@ -804,21 +1522,23 @@ public class SipUA extends UA {
 		}
 	}
 
+	private void sendUnregisterSync(SipRegister sipReg)
+			throws KurentoSipException, KurentoException {
+		if (!registerTracker.coalesce(sipReg.getRegister().getUri(), 0)) {
+			CRegister creg = new CRegister(this, sipReg, 0);
+			registerTracker.add(creg);
+			creg.sendRequest();
+		}
+	}
+
 	@Override
-	public void unregister(final Register register) {
-		looperThread.post(new Runnable() {
-			@Override
-			public void run() {
-				unregisterSync(register);
-			}
-		});
+	public void unregister(Register register) {
+		mailbox.send(MSG_UNREGISTER, register);
 	}
 
 	private void dialSync(SipCall call) {
 		if (sipProvider == null) {
-			call.release();
-			errorHandler.onCallError(call, new KurentoException(
-					"Cannot dial. SIP Provider is not enabled"));
+			pendSync(new DialOperation(call));
 			return;
 		}
 
@@ -826,10 +1546,93 @@ public class SipUA extends UA {
 			new CInvite(this, call);
 			activedCalls.add(call);
 		} catch (KurentoSipException e) {
-			errorHandler.onCallError(call, new KurentoException(e));
+			recordingErrorHandler.onCallError(call, new KurentoException(e));
 		}
 	}
 
+	// ////////////////
+	//
+	// PENDING OPERATIONS
+	//
+	// ////////////////
+
+	/*
+	 * Keep the operation until the provider is up again
+	 */
+	private void pendSync(PendingOperationQueue.Operation op) {
+		pendingOperations.add(op);
+		scheduleExpirePendingOperationsSync();
+	}
+
+	private void expirePendingOperationsSync() {
+		pendingOperations.expire();
+		scheduleExpirePendingOperationsSync();
+	}
+
+	private void scheduleExpirePendingOperationsSync() {
+		long delay = pendingOperations.getNextDelay();
+		if (delay >= 0 && !pendingOperations.isExpireScheduled()) {
+			pendingOperations.setExpireScheduled(true);
+			mailbox.sendDelayed(MSG_EXPIRE_PENDING_OPERATIONS, delay);
+		}
+	}
+
+	private class DialOperation extends PendingOperationQueue.Operation {
+
+		private final SipCall call;
+
+		private DialOperation(SipCall call) {
+			this.call = call;
+		}
+
+		@Override
+		void run() {
+			// Hung up while waiting for the provider: nothing was sent
+			if (call.isTerminating()) {
+				log.debug("Drop dial of call hung up while pending");
+				call.terminatedCall(Reason.LOCAL_HANGUP);
+				return;
+			}
+			dialSync(call);
+		}
+
+		@Override
+		void fail(KurentoException e) {
+			call.callFailed(new KurentoException("Cannot dial. "
+					+ e.getMessage()));
+		}
+
+	}
+
+	private class UnregisterOperation extends PendingOperationQueue.Operation {
+
+		private final SipRegister sipReg;
+
+		private UnregisterOperation(SipRegister sipReg) {
+			this.sipReg = sipReg;
+		}
+
+		@Override
+		void run() {
+			try {
+				sendUnregisterSync(sipReg);
+			} catch (KurentoSipException e) {
+				log.error("Unable to unregister", e);
+				registerHandler.onRegisterError(sipReg.getRegister(),
+						new KurentoException(e));
+			} catch (KurentoException e) {
+				log.error("Unable to create CRegister", e);
+				registerHandler.onRegisterError(sipReg.getRegister(), e);
+			}
+		}
+
+		@Override
+		void fail(KurentoException e) {
+			registerHandler.onRegisterError(sipReg.getRegister(), e);
+		}
+
+	}
+
 	@Override
 	public DialingCall dial(String fromUri, String remoteUri)
 			throws KurentoException {
@@ -839,14 +1642,9 @@ public class SipUA extends UA {
 		if (remoteUri == null || remoteUri.isEmpty())
 			throw new KurentoException("Remote URI not set");
 
-		final SipCall call = new SipCall(this, fromUri, remoteUri);
+		SipCall call = new SipCall(this, fromUri, remoteUri);
 
-		looperThread.post(new Runnable() {
-			@Override
-			public void run() {
-				dialSync(call);
-			}
-		});
+		mailbox.send(MSG_DIAL, call);
 
 		return call.sipDialingCall;
 	}
@@ -887,16 +1685,15 @@ public class SipUA extends UA {
 
 		@Override
 		public void processIOException(IOExceptionEvent e) {
-			// Nothing to do here
-			log.warn("SIP IO Exception: " + e);
+			log.warn("SIP IO Exception: " + e.getTransport() + " "
+					+ e.getHost() + ":" + e.getPort());
+			failFlowTransactions(e.getHost(), e.getPort(), e.getTransport());
 		}
 
 		@Override
 		public void processRequest(RequestEvent requestEvent) {
-			log.info("SIP request received\n"
-					+ "<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<\n"
-					+ requestEvent.getRequest().toString() + "\n"
-					+ "<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<");
+			wireTrace.traceReceived(requestEvent.getRequest());
+			flightRecorder.messageReceived(requestEvent.getRequest());
 
 			ServerTransaction serverTransaction;
 			try {
@@ -979,9 +1776,20 @@ public class SipUA extends UA {
 
 		@Override
 		public void processResponse(ResponseEvent responseEvent) {
-			log.info("\n" + "<<<<<<<< SIP response received <<<<<<\n"
-					+ responseEvent.getResponse().toString()
-					+ "<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<");
+			wireTrace.traceReceived(responseEvent.getResponse());
+			flightRecorder.messageReceived(responseEvent.getResponse());
+
+			// Learn the public address of UDP flows from every response. The
+			// persistent connection does it on REGISTER
+			if (isUdp()) {
+				ViaHeader via = (ViaHeader) responseEvent.getResponse()
+						.getHeader(ViaHeader.NAME);
+				if (via != null && via.getRPort() > 0) {
+					String received = via.getReceived();
+					mailbox.send(MSG_PUBLIC_ADDRESS, via.getRPort(),
+							received != null ? received : via.getHost());
+				}
+			}
 
 			// Get transaction record for this response and process response
 			// SipProvider searches a proper client transaction to each
@@ -1003,7 +1811,26 @@ public class SipUA extends UA {
 			if (cTrns == null) {
 				log.error("Server Internal Error (500): Empty application data for response transaction");
 			}
+			int statusCode = responseEvent.getResponse().getStatusCode();
+			if (statusCode >= 200 && cTrns != null)
+				clientTransactions.remove(cTrns);
+			if (cTrns != null
+					&& cTrns.getClientTransaction() == clientTransaction)
+				cTrns.onResponseReceived(statusCode);
+
+			// Another proxy may serve it: rfc3263 4.3
+			if (statusCode == Response.SERVICE_UNAVAILABLE && cTrns != null
+					&& cTrns.getClientTransaction() == clientTransaction
+					&& cTrns.failover(responseEvent.getResponse()))
+				return;
+
 			cTrns.processResponse(responseEvent);
+
+			// A challenge answered with credentials is sent in a new
+			// transaction: the outcome is still to come
+			if (drainReport != null && statusCode >= 200
+					&& cTrns.getClientTransaction() == clientTransaction)
+				mailbox.send(MSG_DRAIN_RESULT, statusCode, cTrns);
 		}
 
 		@Override
@@ -1013,8 +1840,17 @@ public class SipUA extends UA {
 				if (timeoutEvent.getClientTransaction() != null) {
 					CTransaction cTrns = (CTransaction) timeoutEvent
 							.getClientTransaction().getApplicationData();
-					if (cTrns != null)
-						cTrns.processTimeout();
+					if (cTrns != null) {
+						clientTransactions.remove(cTrns);
+						if (cTrns.getClientTransaction() != timeoutEvent
+								.getClientTransaction()
+								|| !cTrns.failover(
+										ProxyTargetSet.Failure.TIMEOUT, -1)) {
+							cTrns.processTimeout();
+							if (drainReport != null)
+								mailbox.send(MSG_DRAIN_RESULT, -1, cTrns);
+						}
+					}
 					timeoutEvent.getClientTransaction().terminate();
 				} else if (timeoutEvent.getServerTransaction() != null) {
 					STransaction sTrns = (STransaction) timeoutEvent
@@ -1037,9 +1873,18 @@ public class SipUA extends UA {
 			} else {
 				log.info("Client Transaction terminated with ID: "
 						+ trnsTerminatedEv.getClientTransaction().getBranchId());
-				CTransaction cTrns = (CTransaction) trnsTerminatedEv
-						.getClientTransaction().getApplicationData();
-				pendingCRegisters.remove(cTrns);
+				ClientTransaction clientTransaction = trnsTerminatedEv
+						.getClientTransaction();
+				CTransaction cTrns = (CTransaction) clientTransaction
+						.getApplicationData();
+				// Authenticated REGISTER reuses the CRegister with a new
+				// client transaction. Only the last one completes it
+				if (cTrns != null
+						&& cTrns.getClientTransaction() == clientTransaction) {
+					clientTransactions.remove(cTrns);
+					if (cTrns instanceof CRegister)
+						registerTracker.complete((CRegister) cTrns);
+				}
 			}
 		}
 	}
@@ -1143,57 +1988,338 @@ public class SipUA extends UA {
 		public SipKeepAliveTimerTask(ListeningPoint listeningPoint,
 				Preferences preferences) {
 			this.listeningPoint = (ListeningPointExt) listeningPoint;
-			this.proxyAddr = preferences.getSipProxyServerAddress();
-			this.proxyPort = preferences.getSipProxyServerPort();
+			InetSocketAddress target = proxyTarget;
+			if (target != null) {
+				this.proxyAddr = target.getAddress().getHostAddress();
+				this.proxyPort = target.getPort();
+			} else {
+				this.proxyAddr = preferences.getSipProxyServerAddress();
+				this.proxyPort = preferences.getSipProxyServerPort();
+			}
 		}
 
 		@Override
 		protected void run() {
+			if (isUdp()) {
+				mailbox.send(MSG_STUN_KEEP_ALIVE);
+				return;
+			}
+
 			log.debug("Sending SIP keep alive");
+			// Marked before sending, the pong may come back at once
+			SocketAddress flow = tcpSocketAddress;
+			long pongTimeout = preferences.getSipKeepAlivePongTimeoutMillis();
+			boolean trackPong = pongTimeout > 0
+					&& keepAliveMonitor.onPingSent(flow);
 			try {
 				listeningPoint.sendHeartbeat(proxyAddr, proxyPort);
 			} catch (IOException e) {
 				log.error("Unable to send SIP keep-alive message", e);
 			}
+
+			if (trackPong) {
+				pongDeadlineTimerTask.flow = flow;
+				pongDeadlineTimerTask.interval = keepAliveInterval;
+				wakeupTimer.schedule(pongDeadlineTimerTask, pongTimeout, 0);
+			}
 		}
 
 	}
 
-	private void checkTCPConnectionAliveSync() {
-		if (sipStack == null)
+	private class PongDeadlineTimerTask extends KurentoUaTimerTask {
+
+		private SocketAddress flow;
+		private int interval;
+
+		@Override
+		protected void run() {
+			KeepAliveMonitor.PongResult result = keepAliveMonitor
+					.onPongDeadline(flow);
+			if (result == KeepAliveMonitor.PongResult.NOT_TRACKED)
+				return;
+
+			boolean lost = result == KeepAliveMonitor.PongResult.LOST;
+			// A rebound UDP flow kept working but its binding did not last
+			boolean expired = lost
+					|| result == KeepAliveMonitor.PongResult.REBOUND;
+			if (preferences.isSipKeepAliveAdaptive()) {
+				int next = expired ? keepAliveController.onPongLost(interval)
+						: keepAliveController.onPong(interval);
+				if (next != keepAliveInterval
+						&& wakeupTimer.isScheduled(sipKeepAliveTimerTask))
+					scheduleSipKeepAlive(next);
+			}
+
+			if (lost)
+				mailbox.send(MSG_FLOW_DEAD, flow);
+		}
+
+	}
+
+	private boolean isUdp() {
+		return ListeningPoint.UDP.equalsIgnoreCase(preferences
+				.getSipTransport());
+	}
+
+	/*
+	 * Learn the public address of the SIP UDP socket before registering, so
+	 * the first REGISTER carries the right Contact. A server that did not
+	 * answer is not waited for again for a while: a single request is sent
+	 * and a late response updates the Contact as a mapping change
+	 */
+	private void discoverPublicAddressSync() {
+		StunClient stunClient = networkLayer.getStunClient();
+		if (stunClient == null)
+			return;
+		stunClient.setListener(stunListener);
+
+		String stunServer = preferences.getSipStunServer();
+		if (stunServer == null || stunServer.length() == 0)
 			return;
 
-		log.trace("------------ Check TCP Connection Alive ------------");
 		try {
-			SocketAddress sa = sipStack.obtainLocalAddress(InetAddress
-					.getAllByName(preferences.getSipProxyServerAddress())[0],
-					preferences.getSipProxyServerPort(), localAddress, 0);
-			if (!tcpSocketAddress.toString().equalsIgnoreCase(sa.toString())) {
-				log.debug("Socket address changed: " + tcpSocketAddress
-						+ " -> " + sa);
-				reRegisterSync();
+			InetSocketAddress server = resolveStunServerSync(stunServer);
+			if (server == null)
+				return;
+
+			if (stunServer.equals(stunUnreachableServer)
+					&& SystemClock.elapsedRealtime() < stunUnreachableUntil) {
+				log.debug("STUN server " + stunServer
+						+ " unreachable lately, not waiting for it");
+				stunClient.sendBindingRequest(server);
+				return;
 			}
-		} catch (UnknownHostException e) {
-			log.warn("Unknown host", e);
+
+			InetSocketAddress mapped = stunClient.bind(server,
+					STUN_DISCOVERY_TIMEOUT);
+			if (mapped == null) {
+				log.warn("No response from STUN server " + stunServer);
+				stunUnreachableUntil = SystemClock.elapsedRealtime()
+						+ STUN_UNREACHABLE_MILLIS;
+				stunUnreachableServer = stunServer;
+				return;
+			}
+
+			stunUnreachableUntil = 0;
+			log.info("Public address from STUN: " + mapped);
+			publicAddress = mapped.getAddress().getHostAddress();
+			publicPort = mapped.getPort();
 		} catch (IOException e) {
-			log.warn("Error while obtaining local address");
+			log.warn("Unable to discover public address with STUN server "
+					+ stunServer, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
-	private class CheckTCPConnectionAliveTimerTask extends KurentoUaTimerTask {
+	/*
+	 * The STUN server host goes through the DNS cache, which answers from
+	 * memory once it has been resolved. Null if it can not be resolved
+	 */
+	private InetSocketAddress resolveStunServerSync(String stunServer) {
+		try {
+			InetSocketAddress server = StunClient.parseServer(stunServer);
+			String host = server.getHostName();
+			DnsResolver resolver = dnsResolver;
+			if (resolver == null || SipServerLocator.isIpAddress(host))
+				return StunClient.resolveServer(stunServer);
+
+			List<InetAddress> addresses = resolver.getAddresses(host,
+					preferences.isSipOnlyIpv4());
+			if (addresses.isEmpty()) {
+				log.warn("STUN server " + stunServer + " not found");
+				return null;
+			}
+			return new InetSocketAddress(addresses.get(0), server.getPort());
+		} catch (NumberFormatException e) {
+			log.warn("Invalid STUN server " + stunServer);
+			return null;
+		} catch (IOException e) {
+			log.warn("Unable to resolve STUN server " + stunServer, e);
+			return null;
+		}
+	}
+
+	/*
+	 * rfc5626 4.4.2 STUN keep alive, sent to the proxy from the SIP socket.
+	 * The response also tells whether the NAT mapping changed
+	 */
+	private void stunKeepAliveSync() {
+		StunClient stunClient = networkLayer == null ? null : networkLayer
+				.getStunClient();
+		if (sipProvider == null || stunClient == null)
+			return;
+
+		log.debug("Sending STUN keep alive");
+		// Tracked before sending, the response may come back at once
+		SocketAddress flow = new InetSocketAddress(localAddress,
+				preferences.getSipLocalPort());
+		long pongTimeout = preferences.getSipKeepAlivePongTimeoutMillis();
+		boolean trackPong = false;
+		try {
+			InetSocketAddress server = getProxyTarget();
+			trackPong = pongTimeout > 0
+					&& keepAliveMonitor.onStunPingSent(flow, server);
+			stunClient.sendBindingRequest(server);
+		} catch (IOException e) {
+			log.error("Unable to send STUN keep-alive message", e);
+		}
+
+		if (trackPong) {
+			pongDeadlineTimerTask.flow = flow;
+			pongDeadlineTimerTask.interval = keepAliveInterval;
+			wakeupTimer.schedule(pongDeadlineTimerTask, pongTimeout, 0);
+		}
+	}
+
+	private final StunClient.Listener stunListener = new StunClient.Listener() {
 
 		@Override
-		protected void run() {
-			looperThread.post(new Runnable() {
-				@Override
-				public void run() {
-					checkTCPConnectionAliveSync();
-				}
-			});
+		public void onBindingResponse(InetSocketAddress server,
+				InetSocketAddress mapped, long rtt) {
+			log.trace("STUN response from " + server + " in " + rtt + " ms");
+			keepAliveMonitor.onStunPong(server, mapped, rtt);
+			mailbox.send(MSG_PUBLIC_ADDRESS, mapped.getPort(), mapped
+					.getAddress().getHostAddress());
+		}
+
+	};
+
+	/*
+	 * The proxy or the STUN server see the UDP socket at another address:
+	 * the NAT mapping changed or was unknown. Register again with the new
+	 * Contact
+	 */
+	private void publicAddressSync(String address, int port) {
+		if (sipProvider == null || !isUdp())
+			return;
+		if (address.equals(getPublicAddress()) && port == getPublicPort())
+			return;
+
+		log.info("Public address changed: " + getPublicAddress() + ":"
+				+ getPublicPort() + " -> " + address + ":" + port);
+		publicAddress = address;
+		publicPort = port;
+		for (String contactUri : localUris.keySet())
+			updateContactAddress(contactUri);
+		reRegisterSync();
+	}
+
+	/*
+	 * No pong for the last keep alive: the NAT binding or the proxy are gone
+	 * without closing the connection. Closing it lets the stack clean up and
+	 * registers again through the connection closed event. UDP has no
+	 * connection, so it registers again at once to open a new binding
+	 */
+	private void flowDeadSync(SocketAddress flow) {
+		if (sipProvider == null || flow == null)
+			return;
+
+		if (isUdp()) {
+			if (!flow.equals(new InetSocketAddress(localAddress, preferences
+					.getSipLocalPort())))
+				return;
+			log.info("Flow " + flow + " is dead, registering again");
+			flightRecorder.record(FlightRecorder.ERROR,
+					"Keep alive pong timeout", flow.toString());
+			reRegisterSync();
+			return;
 		}
 
+		if (tcpSocketAddress == null || !tcpSocketAddress.equals(flow))
+			return;
+
+		log.info("Flow " + flow + " is dead, closing it");
+		flightRecorder.record(FlightRecorder.ERROR, "Keep alive pong timeout",
+				flow.toString());
+		if (!networkLayer.closeConnection(flow))
+			reRegisterSync();
+	}
+
+	/*
+	 * The connection to the proxy is gone: the stack closed it after an error
+	 * or the proxy closed or reset it. Register again to open a new one
+	 */
+	private void connectionClosedSync(SocketAddress localSocketAddress) {
+		if (sipProvider == null || tcpSocketAddress == null
+				|| !tcpSocketAddress.equals(localSocketAddress))
+			return;
+
+		log.debug("Connection to proxy closed: " + localSocketAddress);
+		reRegisterSync();
+	}
+
+	/**
+	 * Register the client transaction as waiting for its final response
+	 * through the flow it has just been sent to.
+	 */
+	public void trackClientTransaction(CTransaction cTrns) {
+		clientTransactions.add(cTrns);
+	}
+
+	/*
+	 * The flow to the peer failed: the client transactions sent through it
+	 * will never get a response. They fail now instead of on timeout, 32
+	 * seconds later
+	 */
+	private void failFlowTransactions(String host, int port, String transport) {
+		if (host == null || transport == null)
+			return;
+
+		for (CTransaction cTrns : clientTransactions) {
+			ClientTransaction ct = cTrns.getClientTransaction();
+			if (!(ct instanceof SIPTransaction))
+				continue;
+
+			TransactionState state = ct.getState();
+			if (!TransactionState.CALLING.equals(state)
+					&& !TransactionState.TRYING.equals(state)
+					&& !TransactionState.PROCEEDING.equals(state))
+				continue;
+
+			SIPTransaction st = (SIPTransaction) ct;
+			if (port != st.getPeerPort()
+					|| !host.equalsIgnoreCase(st.getPeerAddress())
+					|| !transport.equalsIgnoreCase(st.getTransport()))
+				continue;
+
+			if (!clientTransactions.remove(cTrns))
+				continue; // Failed by another thread
+			log.info("Fail " + cTrns.getMethod() + " on transport error to "
+					+ host + ":" + port);
+			try {
+				// No timeout will follow
+				ct.terminate();
+			} catch (ObjectInUseException e) {
+				log.warn("Unable to terminate client transaction", e);
+			}
+			if (cTrns.failover(ProxyTargetSet.Failure.TRANSPORT_ERROR, -1))
+				continue;
+			if (!cTrns.processTransportError() && drainReport != null)
+				mailbox.send(MSG_DRAIN_RESULT, -1, cTrns);
+		}
 	}
 
+	private final KurentoSslNetworkLayer.ConnectionListener connectionListener = new KurentoSslNetworkLayer.ConnectionListener() {
+
+		@Override
+		public void onConnectionClosed(SocketAddress localAddress,
+				SocketAddress remoteAddress, boolean failure) {
+			log.debug("Connection closed " + localAddress + " -> "
+					+ remoteAddress + (failure ? " by peer" : ""));
+			flightRecorder.record(FlightRecorder.CONNECTION_CLOSED,
+					localAddress + " -> " + remoteAddress,
+					failure ? "peer" : null);
+			if (failure && remoteAddress instanceof InetSocketAddress) {
+				InetSocketAddress remote = (InetSocketAddress) remoteAddress;
+				failFlowTransactions(remote.getAddress().getHostAddress(),
+						remote.getPort(), preferences.getSipTransport());
+			}
+			mailbox.send(MSG_CONNECTION_CLOSED, localAddress);
+		}
+
+	};
+
 	private final BroadcastReceiver networkStateReceiver = new BroadcastReceiver() {
 
 		@Override
@@ -1206,9 +2332,17 @@ public class SipUA extends UA {
 				log.debug("Connection Type: " + ni.getType() + "; State:"
 						+ ni.getState());
 
+				// Interfaces and addresses may have changed
+				NetworkUtilities.invalidateLocalInterface();
+
 				if (ni.getState().equals(NetworkInfo.State.CONNECTED)) {
 					log.debug("Network connected");
-					initSipProvider();
+					handover();
+				} else if (!intent.getBooleanExtra(
+						ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+					// Android fails over to another network
+					log.debug("Network not connected, other network available");
+					handover();
 				} else {
 					log.debug("Network not connected");
 					terminateSipProvider();
@@ -1229,14 +2363,30 @@ public class SipUA extends UA {
 					|| Preferences.SIP_TRUST_ANY_TLS_CONNECTION.equals(key)
 					|| Preferences.SIP_PROXY_SERVER_ADDRESS.equals(key)
 					|| Preferences.SIP_PROXY_SERVER_PORT.equals(key)
+					|| Preferences.SIP_PROXY_SRV.equals(key)
 					|| Preferences.SIP_LOCAL_PORT.equals(key)) {
 				initSipStack();
 				initSipProvider();
+			} else if (Preferences.SIP_DNS_SERVERS.equals(key)) {
+				mailbox.send(MSG_RESET_DNS_RESOLVER);
+				initSipStack();
+				initSipProvider();
 			} else if (Preferences.SIP_REG_EXPIRES.equals(key)) {
 				reRegister();
 			} else if (Preferences.ENABLE_SIP_KEEP_ALIVE.equals(key)
-					|| Preferences.SIP_KEEP_ALIVE_SECONDS.equals(key)) {
+					|| Preferences.SIP_KEEP_ALIVE_SECONDS.equals(key)
+					|| Preferences.SIP_KEEP_ALIVE_TOLERANCE_SECONDS.equals(key)
+					|| Preferences.SIP_KEEP_ALIVE_ADAPTIVE.equals(key)
+					|| Preferences.SIP_KEEP_ALIVE_MIN_SECONDS.equals(key)
+					|| Preferences.SIP_KEEP_ALIVE_MAX_SECONDS.equals(key)) {
 				configureSipKeepAlive();
+			} else if (Preferences.SIP_WIRE_TRACE.equals(key)
+					|| Preferences.SIP_WIRE_TRACE_CALL_SAMPLING.equals(key)
+					|| Preferences.SIP_WIRE_TRACE_METHOD_SAMPLING.equals(key)) {
+				configureWireTrace();
+			} else if (Preferences.SIP_STUN_SERVER.equals(key)) {
+				// Public address discovered again from the new server
+				initSipProvider();
 			}
 		}
 	};
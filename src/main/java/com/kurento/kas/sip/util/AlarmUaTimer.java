@@ -1,53 +1,513 @@
 package com.kurento.kas.sip.util;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import android.app.AlarmManager;
 import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 
+/**
+ * Hierarchical timer wheel shared by every task of a UA. Schedule and cancel
+ * are O(1) and a single underlying alarm is armed for the earliest deadline,
+ * so there is one receiver and one pending intent per timer instead of one
+ * per task.
+ * <p>
+ * Wakeup timers are driven by AlarmManager. Non wakeup timers do not need to
+ * leave the process, so they are driven by a Handler on the main looper.
+ * Tasks run on the main thread in both cases, as broadcast receivers do.
+ * <p>
+ * The wheel has {@value #LEVELS} levels of {@value #SLOTS} slots. Level 0
+ * slots last one tick of {@value #TICK_MILLIS} ms and every level slot lasts
+ * a full rotation of the level below. Tasks are cascaded to lower levels when
+ * their slot is reached. Cascades never arm the alarm by themselves, only
+ * task deadlines do.
+ * <p>
+ * Tasks scheduled with a tolerance may run up to that much earlier than their
+ * deadline, which lets them share wakeups:
+ * <ul>
+ * <li>Their alarm is aligned to a multiple of the tolerance, so tolerant
+ * deadlines close to each other wake the device once.</li>
+ * <li>Whenever the timer wakes up for any task, tolerant tasks whose window
+ * has already started run too.</li>
+ * </ul>
+ * Wakeups are counted per subsystem, attributing each one to the task that
+ * triggered it.
+ */
 public class AlarmUaTimer {
 
 	private final static Logger log = LoggerFactory
 			.getLogger(AlarmUaTimer.class.getSimpleName());
 
+	private static final long TICK_MILLIS = 100;
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final int LEVELS = 4; // 64^4 ticks: ~19 days
+
+	private static final String ACTION_PREFIX = "com.kurento.kas.sip.AlarmUaTimer.";
+
 	private final AlarmManager alarmManager;
 	private final Context context;
 	private final int type;
+	private final boolean wakeup;
+	private final FlightRecorder flightRecorder;
+
+	private final PendingIntent pendingIntent;
+	private final Handler handler;
+
+	private final KurentoUaTimerTask[] buckets = new KurentoUaTimerTask[LEVELS
+			* SLOTS];
+	private int size = 0;
+	private long currentTick;
+	private long armedTick = -1;
+
+	// Scheduled tasks with tolerance. Only a few, they are walked on wakeup
+	private final LinkedHashSet<KurentoUaTimerTask> tolerantTasks = new LinkedHashSet<KurentoUaTimerTask>();
+
+	// Wakeup statistics
+	private final long statsStart = SystemClock.elapsedRealtime();
+	private long wakeupCount = 0;
+	private final Map<String, long[]> subsystemStats = new HashMap<String, long[]>();
+	private static final int STAT_TRIGGERED = 0;
+	private static final int STAT_PIGGYBACKED = 1;
 
 	public AlarmUaTimer(Context context, int type) {
+		this(context, type, null);
+	}
+
+	/*
+	 * Timer whose task fires are recorded in the flight recorder
+	 */
+	public AlarmUaTimer(Context context, int type,
+			FlightRecorder flightRecorder) {
 		this.context = context;
 		this.type = type;
-		alarmManager = (AlarmManager) context
-				.getSystemService(Context.ALARM_SERVICE);
+		this.flightRecorder = flightRecorder;
+		this.wakeup = type == AlarmManager.ELAPSED_REALTIME_WAKEUP;
+		this.currentTick = nowTick();
+
+		if (wakeup) {
+			alarmManager = (AlarmManager) context
+					.getSystemService(Context.ALARM_SERVICE);
+			String action = ACTION_PREFIX + IdGenerator.newId();
+			pendingIntent = PendingIntent.getBroadcast(context, 0,
+					new Intent(action), 0);
+			context.registerReceiver(receiver, new IntentFilter(action));
+			handler = null;
+		} else {
+			alarmManager = null;
+			pendingIntent = null;
+			handler = new Handler(Looper.getMainLooper());
+		}
+	}
+
+	// ////////////////
+	//
+	// PUBLIC API
+	//
+	// ////////////////
+
+	/**
+	 * Schedule a task, replacing its previous schedule if any.
+	 *
+	 * @param delay
+	 *            Milliseconds until the first run
+	 * @param period
+	 *            Milliseconds between runs, or 0 to run once
+	 */
+	public void schedule(KurentoUaTimerTask task, long delay, long period) {
+		schedule(task, delay, period, 0);
+	}
+
+	/**
+	 * Schedule a task that can run up to <code>tolerance</code> milliseconds
+	 * before its deadline, to share a wakeup with other tasks. A periodic task
+	 * run early is rescheduled a full period from then, so the interval
+	 * between runs never exceeds the period. Tolerance is limited to half the
+	 * delay and half the period.
+	 */
+	public void schedule(KurentoUaTimerTask task, long delay, long period,
+			long tolerance) {
+		synchronized (this) {
+			if (task.timer != null && task.timer != this)
+				task.timer.cancel(task);
+
+			unlink(task);
+			if (size == 0)
+				currentTick = nowTick();
+
+			task.timer = this;
+			task.expirationTick = nowTick() + toTicks(delay);
+			task.periodTicks = period > 0 ? toTicks(period) : 0;
+			tolerance = Math.min(tolerance, delay / 2);
+			if (period > 0)
+				tolerance = Math.min(tolerance, period / 2);
+			task.toleranceTicks = tolerance >= TICK_MILLIS ? tolerance
+					/ TICK_MILLIS : 0;
+			if (task.toleranceTicks > 0)
+				tolerantTasks.add(task);
+			else
+				tolerantTasks.remove(task);
+			insert(task);
+
+			if (armedTick < 0 || wakeTick(task) < armedTick)
+				arm();
+		}
 	}
 
 	public void cancel(KurentoUaTimerTask task) {
-		Intent serviceIntent = new Intent(task.getId());
-		PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0,
-				serviceIntent, 0);
-		alarmManager.cancel(pendingIntent);
-		try {
-			context.unregisterReceiver(task.getReceiver());
-		} catch (Throwable t) {
-			log.error("Error unregistering receiver: " + task.getId());
+		synchronized (this) {
+			if (task.timer != this)
+				return;
+
+			// The alarm is moved if it was set for this task, so it does
+			// not wake the device for nothing
+			boolean next = task.bucket >= 0 && wakeTick(task) <= armedTick;
+			unlink(task);
+			tolerantTasks.remove(task);
+			task.timer = null;
+			if (size == 0 || next)
+				arm();
+		}
+	}
+
+	/*
+	 * Cancel every task and release the alarm
+	 */
+	public synchronized void stop() {
+		for (int i = 0; i < buckets.length; i++) {
+			KurentoUaTimerTask task = buckets[i];
+			while (task != null) {
+				KurentoUaTimerTask next = task.next;
+				task.timer = null;
+				task.bucket = -1;
+				task.prev = task.next = null;
+				task = next;
+			}
+			buckets[i] = null;
+		}
+		tolerantTasks.clear();
+		size = 0;
+		arm();
+
+		if (wakeup) {
+			try {
+				context.unregisterReceiver(receiver);
+			} catch (Throwable t) {
+				log.error("Error unregistering timer receiver", t);
+			}
 		}
 	}
 
-	public void schedule(final KurentoUaTimerTask task, long delay, long period) {
-		Intent serviceIntent = new Intent(task.getId());
+	public synchronized boolean isScheduled(KurentoUaTimerTask task) {
+		return task.timer == this && task.bucket >= 0;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized long getWakeupCount() {
+		return wakeupCount;
+	}
+
+	public synchronized double getWakeupsPerHour() {
+		return perHour(wakeupCount);
+	}
+
+	/**
+	 * Wakeups per hour triggered by each subsystem. Runs that shared the
+	 * wakeup of another task are not counted.
+	 */
+	public synchronized Map<String, Double> getWakeupsPerHourBySubsystem() {
+		Map<String, Double> rates = new HashMap<String, Double>();
+		for (Map.Entry<String, long[]> e : subsystemStats.entrySet())
+			rates.put(e.getKey(), perHour(e.getValue()[STAT_TRIGGERED]));
+		return Collections.unmodifiableMap(rates);
+	}
+
+	/**
+	 * Runs of each subsystem that shared a wakeup triggered by another task.
+	 */
+	public synchronized Map<String, Long> getPiggybackedRunsBySubsystem() {
+		Map<String, Long> runs = new HashMap<String, Long>();
+		for (Map.Entry<String, long[]> e : subsystemStats.entrySet())
+			runs.put(e.getKey(), e.getValue()[STAT_PIGGYBACKED]);
+		return Collections.unmodifiableMap(runs);
+	}
+
+	// ////////////////
+	//
+	// WHEEL
+	//
+	// ////////////////
 
-		PendingIntent pendingIntent = PendingIntent.getBroadcast(this.context,
-				0, serviceIntent, 0);
-		context.registerReceiver(task.getReceiver(),
-				new IntentFilter(task.getId()));
+	private void fire() {
+		List<KurentoUaTimerTask> expired = new ArrayList<KurentoUaTimerTask>();
+		synchronized (this) {
+			armedTick = -1;
+			long now = nowTick();
+			while (currentTick < now && size > 0) {
+				currentTick++;
+				advance(now, expired);
+			}
+			int triggered = expired.size();
+			collectTolerant(now, expired);
+			if (size == 0)
+				currentTick = now;
+			arm();
 
-		alarmManager.setRepeating(type, SystemClock.elapsedRealtime() + delay,
-				period, pendingIntent);
+			if (wakeup)
+				wakeupCount++;
+			for (int i = 0; i < expired.size(); i++)
+				countRun(expired.get(i), i < triggered ? STAT_TRIGGERED
+						: STAT_PIGGYBACKED);
+		}
+
+		for (KurentoUaTimerTask task : expired) {
+			synchronized (this) {
+				// Canceled by a previous task of this tick
+				if (task.timer != this)
+					continue;
+				// One shot tasks are done once run
+				if (task.bucket < 0) {
+					task.timer = null;
+					tolerantTasks.remove(task);
+				}
+			}
+			if (flightRecorder != null)
+				flightRecorder.record(FlightRecorder.TIMER_FIRED, task
+						.getClass().getSimpleName(), task.getId());
+			log.trace("Running task: " + task.getId());
+			try {
+				task.run();
+			} catch (Throwable t) {
+				log.error("Error running timer task " + task.getId(), t);
+			}
+		}
 	}
 
+	/*
+	 * Process currentTick: cascade the upper levels whose slot starts now and
+	 * expire the level 0 slot
+	 */
+	private void advance(long now, List<KurentoUaTimerTask> expired) {
+		for (int level = 1; level < LEVELS; level++) {
+			if (((currentTick >> (SLOT_BITS * level - SLOT_BITS)) & SLOT_MASK) != 0)
+				break;
+			int slot = (int) ((currentTick >> (SLOT_BITS * level)) & SLOT_MASK);
+			KurentoUaTimerTask task = buckets[level * SLOTS + slot];
+			while (task != null) {
+				KurentoUaTimerTask next = task.next;
+				unlink(task);
+				insert(task);
+				task = next;
+			}
+		}
+
+		int slot = (int) (currentTick & SLOT_MASK);
+		KurentoUaTimerTask task = buckets[slot];
+		while (task != null) {
+			KurentoUaTimerTask next = task.next;
+			unlink(task);
+			// Periodic tasks are rescheduled before they run. Runs missed
+			// while the device was asleep are skipped, as AlarmManager does
+			if (task.periodTicks > 0) {
+				task.expirationTick += task.periodTicks;
+				if (task.expirationTick <= now)
+					task.expirationTick = now + task.periodTicks;
+				insert(task);
+			}
+			expired.add(task);
+			task = next;
+		}
+	}
+
+	/*
+	 * Tolerant tasks whose window has started share this wakeup
+	 */
+	private void collectTolerant(long now, List<KurentoUaTimerTask> expired) {
+		Iterator<KurentoUaTimerTask> it = tolerantTasks.iterator();
+		while (it.hasNext()) {
+			KurentoUaTimerTask task = it.next();
+			if (task.bucket < 0
+					|| task.expirationTick - task.toleranceTicks > now)
+				continue;
+
+			unlink(task);
+			if (task.periodTicks > 0) {
+				task.expirationTick = now + task.periodTicks;
+				insert(task);
+			}
+			expired.add(task);
+		}
+	}
+
+	private void countRun(KurentoUaTimerTask task, int stat) {
+		String subsystem = task.getSubsystem();
+		long[] stats = subsystemStats.get(subsystem);
+		if (stats == null) {
+			stats = new long[2];
+			subsystemStats.put(subsystem, stats);
+		}
+		stats[stat]++;
+	}
+
+	private double perHour(long count) {
+		long elapsed = SystemClock.elapsedRealtime() - statsStart;
+		if (elapsed <= 0)
+			return 0;
+		return count * 3600000.0 / elapsed;
+	}
+
+	private void insert(KurentoUaTimerTask task) {
+		long diff = task.expirationTick - currentTick;
+		if (diff <= 0) {
+			// Late: run on next tick
+			task.expirationTick = currentTick + 1;
+			diff = 1;
+		}
+
+		int level = 0;
+		while (level < LEVELS - 1 && diff >= (1L << (SLOT_BITS * (level + 1))))
+			level++;
+
+		long position = task.expirationTick;
+		long horizon = 1L << (SLOT_BITS * LEVELS);
+		if (diff >= horizon)
+			// Beyond the wheel: park it in the furthest slot. It will be
+			// cascaded again from there
+			position = currentTick + horizon - 1;
+
+		int slot = (int) ((position >> (SLOT_BITS * level)) & SLOT_MASK);
+		int bucket = level * SLOTS + slot;
+
+		task.bucket = bucket;
+		task.prev = null;
+		task.next = buckets[bucket];
+		if (task.next != null)
+			task.next.prev = task;
+		buckets[bucket] = task;
+		size++;
+	}
+
+	private void unlink(KurentoUaTimerTask task) {
+		if (task.bucket < 0)
+			return;
+
+		if (task.prev != null)
+			task.prev.next = task.next;
+		else
+			buckets[task.bucket] = task.next;
+		if (task.next != null)
+			task.next.prev = task.prev;
+
+		task.prev = task.next = null;
+		task.bucket = -1;
+		size--;
+	}
+
+	/*
+	 * Earliest tick where a task must run. Cascades in between are done when
+	 * the timer wakes up, so they do not wake the device
+	 */
+	private long nextWakeTick() {
+		long next = Long.MAX_VALUE;
+		for (int i = 1; i < SLOTS; i++) {
+			if (buckets[(int) ((currentTick + i) & SLOT_MASK)] != null) {
+				next = currentTick + i;
+				break;
+			}
+		}
+
+		// Slots of a level are ordered in time, so the first used one holds
+		// the earliest deadline of the level
+		for (int level = 1; level < LEVELS; level++) {
+			int shift = SLOT_BITS * level;
+			long levelTick = currentTick >> shift;
+			for (int j = 1; j <= SLOTS; j++) {
+				if (((levelTick + j) << shift) >= next)
+					break;
+				KurentoUaTimerTask task = buckets[level * SLOTS
+						+ (int) ((levelTick + j) & SLOT_MASK)];
+				if (task != null) {
+					for (; task != null; task = task.next)
+						next = Math.min(next, task.expirationTick);
+					break;
+				}
+			}
+		}
+
+		for (KurentoUaTimerTask task : tolerantTasks)
+			next = Math.min(next, wakeTick(task));
+
+		return next;
+	}
+
+	/*
+	 * Tolerant deadlines are aligned to a multiple of the tolerance, which is
+	 * within the window
+	 */
+	private static long wakeTick(KurentoUaTimerTask task) {
+		if (task.toleranceTicks <= 0)
+			return task.expirationTick;
+		return task.expirationTick / task.toleranceTicks * task.toleranceTicks;
+	}
+
+	private void arm() {
+		long next = size == 0 ? -1 : nextWakeTick();
+		if (next == armedTick)
+			return;
+
+		armedTick = next;
+		if (wakeup) {
+			if (next < 0)
+				alarmManager.cancel(pendingIntent);
+			else
+				alarmManager.set(type, next * TICK_MILLIS, pendingIntent);
+		} else {
+			handler.removeCallbacks(fireRunnable);
+			if (next >= 0)
+				handler.postDelayed(fireRunnable, next * TICK_MILLIS
+						- SystemClock.elapsedRealtime());
+		}
+	}
+
+	private static long nowTick() {
+		return SystemClock.elapsedRealtime() / TICK_MILLIS;
+	}
+
+	private static long toTicks(long millis) {
+		return Math.max(1, (millis + TICK_MILLIS - 1) / TICK_MILLIS);
+	}
+
+	private final BroadcastReceiver receiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			fire();
+		}
+	};
+
+	private final Runnable fireRunnable = new Runnable() {
+		@Override
+		public void run() {
+			fire();
+		}
+	};
+
 }
@@ -0,0 +1,146 @@
+package com.kurento.kas.sip.util;
+
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sip.address.Address;
+import javax.sip.address.AddressFactory;
+import javax.sip.address.SipURI;
+import javax.sip.address.TelURL;
+import javax.sip.address.URI;
+
+/**
+ * AddressFactory that keeps the parsed form of the last strings it was asked
+ * for. Cached objects are never handed out: every call returns a clone, so
+ * callers can modify the result as with the plain factory. The cache is
+ * bounded and evicts the least recently used entries.
+ */
+public class CachingAddressFactory implements AddressFactory {
+
+	private final AddressFactory addressFactory;
+
+	private final LruCache<String, URI> uris;
+	private final LruCache<String, Address> addresses;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	public CachingAddressFactory(AddressFactory addressFactory, int maxEntries) {
+		this.addressFactory = addressFactory;
+		this.uris = new LruCache<String, URI>(maxEntries);
+		this.addresses = new LruCache<String, Address>(maxEntries);
+	}
+
+	@Override
+	public URI createURI(String uri) throws ParseException {
+		if (uri == null)
+			return addressFactory.createURI(uri);
+
+		URI cached;
+		synchronized (uris) {
+			cached = uris.get(uri);
+		}
+		if (cached != null) {
+			hitCount.incrementAndGet();
+			return (URI) cached.clone();
+		}
+
+		missCount.incrementAndGet();
+		URI parsed = addressFactory.createURI(uri);
+		synchronized (uris) {
+			uris.put(uri, (URI) parsed.clone());
+		}
+		return parsed;
+	}
+
+	@Override
+	public Address createAddress(String address) throws ParseException {
+		if (address == null)
+			return addressFactory.createAddress(address);
+
+		Address cached;
+		synchronized (addresses) {
+			cached = addresses.get(address);
+		}
+		if (cached != null) {
+			hitCount.incrementAndGet();
+			return (Address) cached.clone();
+		}
+
+		missCount.incrementAndGet();
+		Address parsed = addressFactory.createAddress(address);
+		synchronized (addresses) {
+			addresses.put(address, (Address) parsed.clone());
+		}
+		return parsed;
+	}
+
+	@Override
+	public TelURL createTelURL(String uri) throws ParseException {
+		return addressFactory.createTelURL(uri);
+	}
+
+	@Override
+	public SipURI createSipURI(String user, String host) throws ParseException {
+		return addressFactory.createSipURI(user, host);
+	}
+
+	@Override
+	public Address createAddress(URI uri) {
+		return addressFactory.createAddress(uri);
+	}
+
+	@Override
+	public Address createAddress(String displayName, URI uri)
+			throws ParseException {
+		return addressFactory.createAddress(displayName, uri);
+	}
+
+	public void clear() {
+		synchronized (uris) {
+			uris.clear();
+		}
+		synchronized (addresses) {
+			addresses.clear();
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public int size() {
+		int size;
+		synchronized (uris) {
+			size = uris.size();
+		}
+		synchronized (addresses) {
+			size += addresses.size();
+		}
+		return size;
+	}
+
+	private static class LruCache<K, V> extends LinkedHashMap<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int maxEntries;
+
+		private LruCache(int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > maxEntries;
+		}
+	}
+
+}
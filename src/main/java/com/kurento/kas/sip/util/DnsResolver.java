@@ -0,0 +1,720 @@
+package com.kurento.kas.sip.util;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.os.SystemClock;
+
+/**
+ * Stub DNS resolver (rfc1035) for the records Android does not resolve:
+ * NAPTR and SRV, and A/AAAA with their TTL.
+ * <ul>
+ * <li>Answers are cached for their TTL. Names and record types that do not
+ * exist are cached too, for the SOA minimum (rfc2308).</li>
+ * <li>Expired entries are still returned, for up to {@value #MAX_STALE} ms,
+ * while they are refreshed in the background. Only names never resolved
+ * block the caller.</li>
+ * <li>Queries go over UDP to each server in turn, and over TCP when the
+ * response is truncated.</li>
+ * </ul>
+ * Without configured servers the ones of the current network (net.dns1,
+ * net.dns2) are used. Without any, A and AAAA are resolved by the system,
+ * cached for {@value #SYSTEM_TTL} s, and other types do not exist.
+ */
+public class DnsResolver {
+
+	private static final Logger log = LoggerFactory.getLogger(DnsResolver.class
+			.getSimpleName());
+
+	public static final int TYPE_A = 1;
+	public static final int TYPE_CNAME = 5;
+	public static final int TYPE_SOA = 6;
+	public static final int TYPE_AAAA = 28;
+	public static final int TYPE_SRV = 33;
+	public static final int TYPE_NAPTR = 35;
+
+	public static final int DEFAULT_PORT = 53;
+
+	private static final int CLASS_IN = 1;
+	private static final int HEADER_SIZE = 12;
+	private static final int MAX_UDP_SIZE = 512;
+
+	private static final int RCODE_NXDOMAIN = 3;
+
+	private static final long INITIAL_TIMEOUT = 1000; // milliseconds
+	private static final int ATTEMPTS = 2; // per server
+
+	private static final long MIN_TTL = 5; // seconds
+	private static final long MAX_TTL = 86400; // seconds
+	private static final long NEGATIVE_TTL = 60; // seconds, without SOA
+	private static final long MAX_NEGATIVE_TTL = 3600; // seconds, rfc2308 5
+	static final long SYSTEM_TTL = 60; // seconds
+	static final long MAX_STALE = 3600 * 1000; // milliseconds
+
+	// Unpredictable query ids make spoofed answers harder: rfc5452 4.3
+	private static final SecureRandom random = new SecureRandom();
+
+	private static final ExecutorService refresher = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "DnsResolver refresh");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final List<InetSocketAddress> servers;
+	private final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+	private final ConcurrentHashMap<String, Boolean> refreshing = new ConcurrentHashMap<String, Boolean>();
+
+	// Metrics
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong staleHits = new AtomicLong();
+	private final AtomicLong negativeHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong queries = new AtomicLong();
+
+	/**
+	 * @param servers
+	 *            DNS servers, tried in order. Empty to use the ones of the
+	 *            current network
+	 */
+	public DnsResolver(List<InetSocketAddress> servers) {
+		this.servers = new ArrayList<InetSocketAddress>(servers);
+	}
+
+	/**
+	 * Parse a comma separated list of <code>host[:port]</code> DNS servers.
+	 */
+	public static List<InetSocketAddress> parseServers(String servers)
+			throws UnknownHostException {
+		List<InetSocketAddress> list = new ArrayList<InetSocketAddress>();
+		if (servers == null || servers.trim().length() == 0)
+			return list;
+
+		for (String server : servers.split(",")) {
+			String host = server.trim();
+			int port = DEFAULT_PORT;
+			int sep = host.lastIndexOf(':');
+			if (sep > 0 && host.indexOf(':') == sep) {
+				port = Integer.parseInt(host.substring(sep + 1));
+				host = host.substring(0, sep);
+			}
+			list.add(new InetSocketAddress(InetAddress.getByName(host), port));
+		}
+		return list;
+	}
+
+	/**
+	 * Servers queried, the configured ones or those of the current network.
+	 */
+	public List<InetSocketAddress> getServers() {
+		if (!servers.isEmpty())
+			return Collections.unmodifiableList(servers);
+
+		List<InetSocketAddress> list = new ArrayList<InetSocketAddress>();
+		for (String p : new String[] { "net.dns1", "net.dns2" }) {
+			String server = getSystemProperty(p);
+			if (server == null || server.length() == 0)
+				continue;
+			try {
+				list.add(new InetSocketAddress(InetAddress.getByName(server),
+						DEFAULT_PORT));
+			} catch (UnknownHostException e) {
+				log.debug("Invalid DNS server " + server);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Records of the name and type, from the cache if possible.
+	 *
+	 * @return Empty if the name or the type do not exist
+	 * @throws IOException
+	 *             No server answered and nothing is cached
+	 */
+	public List<Record> query(String name, int type) throws IOException {
+		final String key = key(name, type);
+		CacheEntry entry = cache.get(key);
+		long now = elapsedRealtime();
+		if (entry != null && now < entry.expires) {
+			if (entry.records.isEmpty())
+				negativeHits.incrementAndGet();
+			else
+				hits.incrementAndGet();
+			return entry.records;
+		}
+
+		if (entry != null && now < entry.expires + MAX_STALE) {
+			staleHits.incrementAndGet();
+			refresh(name, type);
+			return entry.records;
+		}
+
+		misses.incrementAndGet();
+		return resolve(name, type);
+	}
+
+	/**
+	 * Addresses of the name: A records, and AAAA unless only IPv4 is wanted.
+	 */
+	public List<InetAddress> getAddresses(String name, boolean onlyIpv4)
+			throws IOException {
+		List<InetAddress> addresses = new ArrayList<InetAddress>();
+		for (Record r : query(name, TYPE_A))
+			addresses.add(r.address);
+		if (!onlyIpv4) {
+			for (Record r : query(name, TYPE_AAAA))
+				addresses.add(r.address);
+		}
+		return addresses;
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	private void refresh(final String name, final int type) {
+		final String key = key(name, type);
+		if (refreshing.putIfAbsent(key, Boolean.TRUE) != null)
+			return;
+
+		refresher.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					resolve(name, type);
+				} catch (IOException e) {
+					log.debug("Unable to refresh " + key + ": " + e);
+				} finally {
+					refreshing.remove(key);
+				}
+			}
+		});
+	}
+
+	private List<Record> resolve(String name, int type) throws IOException {
+		queries.incrementAndGet();
+		List<InetSocketAddress> servers = getServers();
+		if (servers.isEmpty())
+			return resolveWithSystem(name, type);
+
+		IOException failure = null;
+		for (InetSocketAddress server : servers) {
+			try {
+				Response response = exchange(server, name, type);
+				store(name, type, response);
+				return response.getAnswers(type);
+			} catch (IOException e) {
+				log.debug("No answer from DNS server " + server + " for "
+						+ name + ": " + e);
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+
+	private List<Record> resolveWithSystem(String name, int type)
+			throws IOException {
+		List<Record> records = new ArrayList<Record>();
+		if (type == TYPE_A || type == TYPE_AAAA) {
+			try {
+				for (InetAddress address : InetAddress.getAllByName(name)) {
+					boolean v4 = address.getAddress().length == 4;
+					if (v4 == (type == TYPE_A))
+						records.add(Record.address(name, type, SYSTEM_TTL,
+								address));
+				}
+			} catch (UnknownHostException e) {
+				// Negative
+			}
+		}
+		put(key(name, type), records, SYSTEM_TTL);
+		return records;
+	}
+
+	/*
+	 * Cache the answer, and the addresses of the additional section, which
+	 * saves the A/AAAA queries of SRV targets
+	 */
+	private void store(String name, int type, Response response) {
+		List<Record> answers = response.getAnswers(type);
+		if (answers.isEmpty()) {
+			put(key(name, type), answers, response.negativeTtl);
+		} else {
+			long ttl = MAX_TTL;
+			for (Record r : answers)
+				ttl = Math.min(ttl, r.ttl);
+			put(key(name, type), answers, ttl);
+		}
+
+		Map<String, List<Record>> glue = new HashMap<String, List<Record>>();
+		for (Record r : response.additional) {
+			if (r.type != TYPE_A && r.type != TYPE_AAAA)
+				continue;
+			String k = key(r.name, r.type);
+			List<Record> same = glue.get(k);
+			if (same == null) {
+				same = new ArrayList<Record>();
+				glue.put(k, same);
+			}
+			same.add(r);
+		}
+		for (Map.Entry<String, List<Record>> e : glue.entrySet()) {
+			long ttl = MAX_TTL;
+			for (Record r : e.getValue())
+				ttl = Math.min(ttl, r.ttl);
+			put(e.getKey(), e.getValue(), ttl);
+		}
+	}
+
+	private void put(String key, List<Record> records, long ttl) {
+		ttl = Math.max(MIN_TTL, Math.min(MAX_TTL, ttl));
+		cache.put(key, new CacheEntry(Collections.unmodifiableList(records),
+				elapsedRealtime() + ttl * 1000));
+	}
+
+	/*
+	 * Clock of the cache, milliseconds since boot
+	 */
+	long elapsedRealtime() {
+		return SystemClock.elapsedRealtime();
+	}
+
+	private static String key(String name, int type) {
+		return type + ":" + name.toLowerCase();
+	}
+
+	// ////////////////
+	//
+	// PROTOCOL
+	//
+	// ////////////////
+
+	private static Response exchange(InetSocketAddress server, String name,
+			int type) throws IOException {
+		int id;
+		synchronized (random) {
+			id = random.nextInt(0x10000);
+		}
+		byte[] query = createQuery(id, name, type);
+
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			long timeout = INITIAL_TIMEOUT;
+			for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+				socket.send(new DatagramPacket(query, query.length, server));
+				long deadline = System.currentTimeMillis() + timeout;
+				try {
+					long wait;
+					while ((wait = deadline - System.currentTimeMillis()) > 0) {
+						socket.setSoTimeout((int) wait);
+						byte[] buf = new byte[MAX_UDP_SIZE];
+						DatagramPacket p = new DatagramPacket(buf, buf.length);
+						socket.receive(p);
+						if (!server.equals(p.getSocketAddress())
+								|| p.getLength() < HEADER_SIZE
+								|| readShort(buf, 0) != id)
+							continue; // Not ours
+
+						if ((buf[2] & 0x02) != 0) // TC
+							return exchangeTcp(server, id, query);
+						return Response.parse(buf, p.getLength());
+					}
+				} catch (SocketTimeoutException e) {
+					// Retransmit
+				}
+				timeout *= 2;
+			}
+			throw new SocketTimeoutException("DNS query timeout");
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static Response exchangeTcp(InetSocketAddress server, int id,
+			byte[] query) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(server, (int) INITIAL_TIMEOUT);
+			socket.setSoTimeout((int) (2 * INITIAL_TIMEOUT));
+			OutputStream out = socket.getOutputStream();
+			byte[] length = new byte[2];
+			writeShort(length, 0, query.length);
+			out.write(length);
+			out.write(query);
+			out.flush();
+
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			byte[] buf = new byte[in.readUnsignedShort()];
+			in.readFully(buf);
+			if (buf.length < HEADER_SIZE || readShort(buf, 0) != id)
+				throw new IOException("Invalid DNS response over TCP");
+			return Response.parse(buf, buf.length);
+		} finally {
+			socket.close();
+		}
+	}
+
+	static byte[] createQuery(int id, String name, int type) {
+		byte[] buf = new byte[HEADER_SIZE + name.length() + 2 + 4];
+		writeShort(buf, 0, id);
+		writeShort(buf, 2, 0x0100); // RD
+		writeShort(buf, 4, 1); // QDCOUNT
+		int pos = HEADER_SIZE;
+		for (String label : name.split("\\.")) {
+			if (label.length() == 0)
+				continue;
+			buf[pos++] = (byte) label.length();
+			for (int i = 0; i < label.length(); i++)
+				buf[pos++] = (byte) label.charAt(i);
+		}
+		buf[pos++] = 0;
+		writeShort(buf, pos, type);
+		writeShort(buf, pos + 2, CLASS_IN);
+		pos += 4;
+
+		byte[] query = new byte[pos];
+		System.arraycopy(buf, 0, query, 0, pos);
+		return query;
+	}
+
+	private static int readShort(byte[] buf, int offset) {
+		return ((buf[offset] & 0xFF) << 8) | (buf[offset + 1] & 0xFF);
+	}
+
+	private static long readInt(byte[] buf, int offset) {
+		return ((long) readShort(buf, offset) << 16)
+				| readShort(buf, offset + 2);
+	}
+
+	private static void writeShort(byte[] buf, int offset, int value) {
+		buf[offset] = (byte) (value >> 8);
+		buf[offset + 1] = (byte) value;
+	}
+
+	private static String getSystemProperty(String name) {
+		try {
+			Class<?> c = Class.forName("android.os.SystemProperties");
+			Method get = c.getMethod("get", String.class);
+			return (String) get.invoke(null, name);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	// ////////////////
+	//
+	// METRICS
+	//
+	// ////////////////
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getStaleHitCount() {
+		return staleHits.get();
+	}
+
+	public long getNegativeHitCount() {
+		return negativeHits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getQueryCount() {
+		return queries.get();
+	}
+
+	public int getCacheSize() {
+		return cache.size();
+	}
+
+	private static class CacheEntry {
+		private final List<Record> records;
+		private final long expires;
+
+		private CacheEntry(List<Record> records, long expires) {
+			this.records = records;
+			this.expires = expires;
+		}
+	}
+
+	private static class Response {
+
+		private final List<Record> answers = new ArrayList<Record>();
+		private final List<Record> additional = new ArrayList<Record>();
+		private long negativeTtl = NEGATIVE_TTL;
+
+		private List<Record> getAnswers(int type) {
+			List<Record> list = new ArrayList<Record>();
+			for (Record r : answers) {
+				if (r.type == type)
+					list.add(r);
+			}
+			return list;
+		}
+
+		private static Response parse(byte[] buf, int length)
+				throws IOException {
+			try {
+				int rcode = buf[3] & 0x0F;
+				if (rcode != 0 && rcode != RCODE_NXDOMAIN)
+					throw new IOException("DNS error " + rcode);
+
+				int qdcount = readShort(buf, 4);
+				int ancount = readShort(buf, 6);
+				int nscount = readShort(buf, 8);
+				int arcount = readShort(buf, 10);
+
+				int[] pos = { HEADER_SIZE };
+				for (int i = 0; i < qdcount; i++) {
+					readName(buf, length, pos);
+					pos[0] += 4;
+				}
+
+				Response response = new Response();
+				for (int i = 0; i < ancount + nscount + arcount; i++) {
+					Record r = readRecord(buf, length, pos);
+					if (r == null)
+						continue;
+					if (i < ancount) {
+						response.answers.add(r);
+					} else if (i < ancount + nscount) {
+						if (r.type == TYPE_SOA)
+							response.negativeTtl = Math.min(MAX_NEGATIVE_TTL,
+									Math.min(r.ttl, r.minimum));
+					} else {
+						response.additional.add(r);
+					}
+				}
+				return response;
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new IOException("Malformed DNS response");
+			}
+		}
+
+		/*
+		 * Return null for types not handled
+		 */
+		private static Record readRecord(byte[] buf, int length, int[] pos)
+				throws IOException {
+			String name = readName(buf, length, pos);
+			int type = readShort(buf, pos[0]);
+			long ttl = readInt(buf, pos[0] + 4);
+			int rdlength = readShort(buf, pos[0] + 8);
+			int rdata = pos[0] + 10;
+			pos[0] = rdata + rdlength;
+			if (pos[0] > length)
+				throw new IOException("Truncated DNS record");
+
+			int[] p = { rdata };
+			switch (type) {
+			case TYPE_A:
+			case TYPE_AAAA:
+				byte[] address = new byte[rdlength];
+				System.arraycopy(buf, rdata, address, 0, rdlength);
+				return Record.address(name, type, ttl,
+						InetAddress.getByAddress(name, address));
+			case TYPE_CNAME:
+				Record cname = new Record(name, type, ttl);
+				cname.target = readName(buf, length, p);
+				return cname;
+			case TYPE_SRV:
+				Record srv = new Record(name, type, ttl);
+				srv.priority = readShort(buf, rdata);
+				srv.weight = readShort(buf, rdata + 2);
+				srv.port = readShort(buf, rdata + 4);
+				p[0] = rdata + 6;
+				srv.target = readName(buf, length, p);
+				return srv;
+			case TYPE_NAPTR:
+				Record naptr = new Record(name, type, ttl);
+				naptr.order = readShort(buf, rdata);
+				naptr.preference = readShort(buf, rdata + 2);
+				p[0] = rdata + 4;
+				naptr.flags = readString(buf, p);
+				naptr.service = readString(buf, p);
+				readString(buf, p); // regexp, not used by SIP: rfc3263 4.1
+				naptr.target = readName(buf, length, p);
+				return naptr;
+			case TYPE_SOA:
+				Record soa = new Record(name, type, ttl);
+				readName(buf, length, p); // mname
+				readName(buf, length, p); // rname
+				soa.minimum = readInt(buf, p[0] + 16);
+				return soa;
+			default:
+				return null;
+			}
+		}
+
+		private static String readString(byte[] buf, int[] pos) {
+			int len = buf[pos[0]] & 0xFF;
+			StringBuilder sb = new StringBuilder(len);
+			for (int i = 0; i < len; i++)
+				sb.append((char) (buf[pos[0] + 1 + i] & 0xFF));
+			pos[0] += 1 + len;
+			return sb.toString();
+		}
+
+		/*
+		 * Name at pos, following compression pointers: rfc1035 4.1.4
+		 */
+		private static String readName(byte[] buf, int length, int[] pos)
+				throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int p = pos[0];
+			int end = -1;
+			for (int jumps = 0; jumps < 64;) {
+				int len = buf[p] & 0xFF;
+				if (len == 0) {
+					pos[0] = end >= 0 ? end : p + 1;
+					return sb.toString();
+				}
+				if ((len & 0xC0) == 0xC0) {
+					if (end < 0)
+						end = p + 2;
+					p = ((len & 0x3F) << 8) | (buf[p + 1] & 0xFF);
+					if (p >= length)
+						throw new IOException("Invalid DNS name pointer");
+					jumps++;
+					continue;
+				}
+				if (sb.length() > 0)
+					sb.append('.');
+				for (int i = 0; i < len; i++)
+					sb.append((char) (buf[p + 1 + i] & 0xFF));
+				p += 1 + len;
+			}
+			throw new IOException("DNS name pointer loop");
+		}
+	}
+
+	/**
+	 * Resource record. Only the fields of its type are set.
+	 */
+	public static class Record {
+
+		private final String name;
+		private final int type;
+		private final long ttl;
+
+		private InetAddress address; // A, AAAA
+		private String target; // CNAME, SRV, NAPTR replacement
+		private int priority, weight, port; // SRV
+		private int order, preference; // NAPTR
+		private String flags, service; // NAPTR
+		private long minimum; // SOA
+
+		private Record(String name, int type, long ttl) {
+			this.name = name;
+			this.type = type;
+			this.ttl = ttl;
+		}
+
+		private static Record address(String name, int type, long ttl,
+				InetAddress address) {
+			Record r = new Record(name, type, ttl);
+			r.address = address;
+			return r;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getType() {
+			return type;
+		}
+
+		/**
+		 * @return Seconds
+		 */
+		public long getTtl() {
+			return ttl;
+		}
+
+		public InetAddress getAddress() {
+			return address;
+		}
+
+		public String getTarget() {
+			return target;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		public int getWeight() {
+			return weight;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public int getOrder() {
+			return order;
+		}
+
+		public int getPreference() {
+			return preference;
+		}
+
+		public String getFlags() {
+			return flags;
+		}
+
+		public String getService() {
+			return service;
+		}
+
+		@Override
+		public String toString() {
+			switch (type) {
+			case TYPE_A:
+			case TYPE_AAAA:
+				return name + " " + address.getHostAddress();
+			case TYPE_SRV:
+				return name + " SRV " + priority + " " + weight + " " + port
+						+ " " + target;
+			case TYPE_NAPTR:
+				return name + " NAPTR " + order + " " + preference + " \""
+						+ flags + "\" \"" + service + "\" " + target;
+			default:
+				return name + " " + type + " " + target;
+			}
+		}
+	}
+
+}
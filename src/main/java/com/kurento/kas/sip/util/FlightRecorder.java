@@ -0,0 +1,165 @@
+package com.kurento.kas.sip.util;
+
+import gov.nist.javax.sip.message.SIPMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sip.header.CallIdHeader;
+import javax.sip.message.Message;
+
+/**
+ * Fixed size ring of compact binary events kept off the Java heap. It is
+ * always on and cheap enough for every device, and it can be dumped as text
+ * after a failure to see what happened just before.
+ * <p>
+ * Every event takes a fixed slot:
+ *
+ * <pre>
+ * seq(8) time(8) type(1) len(1) text(TEXT_SIZE) len(1) detail(DETAIL_SIZE)
+ * </pre>
+ *
+ * The sequence is written last, so a slot being overwritten while dumping is
+ * detected and skipped. Texts are stored as ASCII and truncated.
+ */
+public class FlightRecorder {
+
+	public static final byte MESSAGE_SENT = 1;
+	public static final byte MESSAGE_RECEIVED = 2;
+	public static final byte CALL_STATE = 3;
+	public static final byte TIMER_FIRED = 4;
+	public static final byte PROVIDER_INIT = 5;
+	public static final byte PROVIDER_TERMINATED = 6;
+	public static final byte ERROR = 7;
+	public static final byte CONNECTION_CLOSED = 8;
+
+	private static final String[] TYPE_NAMES = { "?", "SENT", "RECEIVED",
+			"CALL_STATE", "TIMER", "PROVIDER_INIT", "PROVIDER_TERMINATED",
+			"ERROR", "CONNECTION_CLOSED" };
+
+	private static final int SLOT_SIZE = 128;
+	private static final int SEQ_OFFSET = 0;
+	private static final int TIME_OFFSET = 8;
+	private static final int TYPE_OFFSET = 16;
+	private static final int TEXT_OFFSET = 17;
+	private static final int TEXT_SIZE = 64;
+	private static final int DETAIL_OFFSET = TEXT_OFFSET + 1 + TEXT_SIZE;
+	private static final int DETAIL_SIZE = SLOT_SIZE - DETAIL_OFFSET - 1;
+
+	private final ByteBuffer ring;
+	private final int slots;
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * @param slots
+	 *            Number of events kept. Memory used is 128 bytes per event.
+	 */
+	public FlightRecorder(int slots) {
+		this.slots = slots;
+		this.ring = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+	}
+
+	public void record(byte type, String text, String detail) {
+		long seq = sequence.incrementAndGet();
+		int base = (int) ((seq - 1) % slots) * SLOT_SIZE;
+
+		// Absolute accessors only. They do not touch the buffer position, so
+		// concurrent writers on different slots do not interfere
+		ring.putLong(base + SEQ_OFFSET, 0);
+		ring.putLong(base + TIME_OFFSET, System.currentTimeMillis());
+		ring.put(base + TYPE_OFFSET, type);
+		putText(base + TEXT_OFFSET, TEXT_SIZE, text);
+		putText(base + DETAIL_OFFSET, DETAIL_SIZE, detail);
+		ring.putLong(base + SEQ_OFFSET, seq);
+	}
+
+	public void messageSent(Message message) {
+		recordMessage(MESSAGE_SENT, message);
+	}
+
+	public void messageReceived(Message message) {
+		recordMessage(MESSAGE_RECEIVED, message);
+	}
+
+	private void recordMessage(byte type, Message message) {
+		String firstLine;
+		if (message instanceof SIPMessage)
+			firstLine = ((SIPMessage) message).getFirstLine();
+		else
+			firstLine = null;
+
+		CallIdHeader callId = (CallIdHeader) message
+				.getHeader(CallIdHeader.NAME);
+		record(type, firstLine, callId == null ? null : callId.getCallId());
+	}
+
+	public long getRecordedCount() {
+		return sequence.get();
+	}
+
+	/**
+	 * Write the recorded events as text, oldest first.
+	 */
+	public void dump(OutputStream out) throws IOException {
+		SimpleDateFormat format = new SimpleDateFormat(
+				"yyyy-MM-dd HH:mm:ss.SSS", Locale.ENGLISH);
+		PrintStream ps = new PrintStream(out, false);
+
+		long last = sequence.get();
+		long first = Math.max(1, last - slots + 1);
+		for (long seq = first; seq <= last; seq++) {
+			int base = (int) ((seq - 1) % slots) * SLOT_SIZE;
+			if (ring.getLong(base + SEQ_OFFSET) != seq)
+				continue; // Being written or already overwritten
+
+			long time = ring.getLong(base + TIME_OFFSET);
+			int type = ring.get(base + TYPE_OFFSET);
+			String text = getText(base + TEXT_OFFSET);
+			String detail = getText(base + DETAIL_OFFSET);
+			if (ring.getLong(base + SEQ_OFFSET) != seq)
+				continue;
+
+			ps.print(format.format(new Date(time)));
+			ps.print(' ');
+			ps.print(type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type]
+					: TYPE_NAMES[0]);
+			ps.print(' ');
+			ps.print(text);
+			if (detail.length() > 0) {
+				ps.print(" | ");
+				ps.print(detail);
+			}
+			ps.println();
+		}
+		ps.flush();
+		if (ps.checkError())
+			throw new IOException("Unable to dump flight recorder");
+	}
+
+	private void putText(int offset, int size, String text) {
+		int len = text == null ? 0 : Math.min(size, text.length());
+		int written = 0;
+		for (int i = 0; i < len; i++) {
+			char c = text.charAt(i);
+			if (c == '\r' || c == '\n')
+				break;
+			ring.put(offset + 1 + written++, (byte) (c < 0x80 ? c : '?'));
+		}
+		ring.put(offset, (byte) written);
+	}
+
+	private String getText(int offset) {
+		int len = ring.get(offset) & 0xFF;
+		char[] c = new char[len];
+		for (int i = 0; i < len; i++)
+			c[i] = (char) ring.get(offset + 1 + i);
+		return new String(c);
+	}
+
+}
@@ -0,0 +1,109 @@
+package com.kurento.kas.sip.util;
+
+import java.security.SecureRandom;
+
+/**
+ * Identifiers for tags, branches, calls and timers, cryptographically random
+ * as RFC3261 19.3 requires for tags. Each thread owns a SecureRandom and a
+ * buffer it fills in bulk, so no lock is taken and the random source is only
+ * called once every {@value #BUFFER_SIZE} bytes. Every character carries 6
+ * bits sliced from the buffer, instead of one RNG call per character.
+ */
+public class IdGenerator {
+
+	// RFC3261 magic cookie: branches starting with it are unique in space and
+	// time
+	private static final String BRANCH_COOKIE = "z9hG4bK";
+
+	private static final int TAG_LENGTH = 10; // 60 bits
+	private static final int BRANCH_LENGTH = 20; // 120 bits
+	private static final int ID_LENGTH = 22; // 132 bits, more than a UUID
+
+	static final int BUFFER_SIZE = 256; // bytes
+
+	// 64 token characters: RFC3261 25.1
+	private static final char[] ALPHABET = ("abcdefghijklmnopqrstuvwxyz"
+			+ "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789-.").toCharArray();
+
+	private static final ThreadLocal<Generator> generator = new ThreadLocal<Generator>() {
+		@Override
+		protected Generator initialValue() {
+			return new Generator();
+		}
+	};
+
+	private IdGenerator() {
+	}
+
+	/**
+	 * Random From/To tag.
+	 */
+	public static String newTag() {
+		char[] c = new char[TAG_LENGTH];
+		generator.get().fill(c, 0, TAG_LENGTH);
+		return new String(c);
+	}
+
+	/**
+	 * Random Via branch, starting with the RFC3261 magic cookie.
+	 */
+	public static String newBranch() {
+		int cookie = BRANCH_COOKIE.length();
+		char[] c = new char[cookie + BRANCH_LENGTH];
+		BRANCH_COOKIE.getChars(0, cookie, c, 0);
+		generator.get().fill(c, cookie, BRANCH_LENGTH);
+		return new String(c);
+	}
+
+	/**
+	 * Random identifier with at least the entropy of a random UUID.
+	 */
+	public static String newId() {
+		char[] c = new char[ID_LENGTH];
+		generator.get().fill(c, 0, ID_LENGTH);
+		return new String(c);
+	}
+
+	/**
+	 * Initial CSeq of a new sequence. It must be lower than 2^31: RFC3261
+	 * 8.1.1.5. It is kept far below so the sequence never overflows.
+	 */
+	public static long newCSeqNumber() {
+		return 1 + generator.get().nextBits(20); // [1, 2^20]
+	}
+
+	private static class Generator {
+
+		private final SecureRandom random = new SecureRandom();
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private int position = BUFFER_SIZE;
+
+		// Bits of the buffer read but not used yet, the lowest ones
+		private int bits = 0;
+		private int available = 0;
+
+		private int nextBits(int count) {
+			int value = 0;
+			for (int i = 0; i < count; i += 6) {
+				int n = Math.min(6, count - i);
+				if (available < n) {
+					if (position == buffer.length) {
+						random.nextBytes(buffer);
+						position = 0;
+					}
+					bits = (bits << 8) | (buffer[position++] & 0xFF);
+					available += 8;
+				}
+				available -= n;
+				value = (value << n) | ((bits >>> available) & ((1 << n) - 1));
+			}
+			return value;
+		}
+
+		private void fill(char[] c, int offset, int length) {
+			for (int i = offset; i < offset + length; i++)
+				c[i] = ALPHABET[nextBits(6)];
+		}
+	}
+
+}
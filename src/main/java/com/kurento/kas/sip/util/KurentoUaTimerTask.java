@@ -1,40 +1,32 @@
 package com.kurento.kas.sip.util;
 
-import java.util.UUID;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-
 public abstract class KurentoUaTimerTask {
 
-	private final static Logger log = LoggerFactory
-			.getLogger(KurentoUaTimerTask.class.getSimpleName());
-
 	private final String uuid;
-	private final BroadcastReceiver receiver = new BroadcastReceiver() {
-
-		@Override
-		public void onReceive(Context context, Intent intent) {
-			log.trace("Running task: " + getId());
-			run();
-		}
 
-	};
+	// Timer wheel bookkeeping. Guarded by the AlarmUaTimer that holds the task
+	AlarmUaTimer timer;
+	int bucket = -1;
+	long expirationTick;
+	long periodTicks;
+	long toleranceTicks;
+	KurentoUaTimerTask prev;
+	KurentoUaTimerTask next;
 
 	public KurentoUaTimerTask() {
-		uuid = UUID.randomUUID().toString();
+		uuid = IdGenerator.newId();
 	}
 
 	public String getId() {
 		return uuid;
 	}
 
-	BroadcastReceiver getReceiver() {
-		return receiver;
+	/*
+	 * Name under which wakeups of this task are accounted
+	 */
+	protected String getSubsystem() {
+		String name = getClass().getSimpleName();
+		return name.length() > 0 ? name : getClass().getName();
 	}
 
 	protected abstract void run();
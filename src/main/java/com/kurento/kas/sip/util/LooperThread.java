@@ -1,55 +1,197 @@
 package com.kurento.kas.sip.util;
 
+import java.util.ArrayList;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
 
 public class LooperThread extends Thread {
 
 	private static final Logger log = LoggerFactory
 			.getLogger(LooperThread.class.getSimpleName());
 
-	private Handler mHandler;
-	private Object initControl = new Object();
-	private boolean initiated = false;
+	private volatile Looper looper;
 	private boolean quit = false;
 
+	// Events sent before the looper is ready. They are delivered in order as
+	// soon as it starts. A null target means the message carries a Runnable
+	private final ArrayList<Message> pendingMessages = new ArrayList<Message>();
+	private final ArrayList<Mailbox> pendingTargets = new ArrayList<Mailbox>();
+	private final ArrayList<Long> pendingUptimes = new ArrayList<Long>();
+
+	private final Mailbox runnableMailbox = new Mailbox(null);
+
 	@Override
 	public void run() {
 		Looper.prepare();
+		Looper l = Looper.myLooper();
 		synchronized (this) {
-			mHandler = new Handler();
+			// Flush before publishing the looper, so that no new event can
+			// overtake the pending ones
+			for (int i = 0; i < pendingMessages.size(); i++) {
+				Message msg = pendingMessages.get(i);
+				Mailbox target = pendingTargets.get(i);
+				if (target == null) {
+					runnableMailbox.getHandler(l).post((Runnable) msg.obj);
+					msg.recycle();
+				} else {
+					target.getHandler(l).sendMessageAtTime(msg,
+							pendingUptimes.get(i));
+				}
+			}
+			pendingMessages.clear();
+			pendingTargets.clear();
+			pendingUptimes.clear();
+
+			looper = l;
 			if (quit) {
-				quit();
+				looper.quit();
 			}
 		}
-		synchronized (initControl) {
-			initiated = true;
-			initControl.notifyAll();
-		}
 		Looper.loop();
 	}
 
+	/**
+	 * Create a mailbox whose messages are handled by the given callback on
+	 * this looper. Messages are obtained from the Android message pool, so
+	 * sending them does not allocate once the pool is warm.
+	 *
+	 * @param callback
+	 *            Handler for the messages sent to the mailbox
+	 * @return The new mailbox
+	 */
+	public Mailbox createMailbox(Handler.Callback callback) {
+		return new Mailbox(callback);
+	}
+
+	/*
+	 * Never blocks. If the looper is not ready yet the runnable is queued and
+	 * executed as soon as it starts
+	 */
 	public boolean post(Runnable r) {
-		try {
-			synchronized (initControl) {
-				if (!initiated) {
-					initControl.wait();
+		Handler h = runnableMailbox.getHandler();
+		if (h != null)
+			return h.post(r);
+
+		synchronized (this) {
+			if (looper == null) {
+				if (quit) {
+					log.warn("Cannot post. Looper already quit");
+					return false;
 				}
+				Message msg = Message.obtain();
+				msg.obj = r;
+				pendingMessages.add(msg);
+				pendingTargets.add(null);
+				pendingUptimes.add(SystemClock.uptimeMillis());
+				return true;
 			}
-			return mHandler.post(r);
-		} catch (InterruptedException e) {
-			log.error("Cannot run", e);
-			return false;
 		}
+		return runnableMailbox.getHandler().post(r);
 	}
 
 	public synchronized void quit() {
 		quit = true;
-		if (mHandler != null) {
-			mHandler.getLooper().quit();
+		if (looper != null) {
+			looper.quit();
+		} else {
+			for (Message msg : pendingMessages)
+				msg.recycle();
+			pendingMessages.clear();
+			pendingTargets.clear();
+			pendingUptimes.clear();
 		}
 	}
+
+	/**
+	 * Serial mailbox on a looper thread. Commands are identified by the
+	 * message <code>what</code> and carry at most an int and an object
+	 * argument, so no Runnable has to be allocated per event.
+	 */
+	public class Mailbox {
+
+		private final Handler.Callback callback;
+		private volatile Handler handler;
+
+		private Mailbox(Handler.Callback callback) {
+			this.callback = callback;
+		}
+
+		private Handler getHandler() {
+			Looper l = looper;
+			if (l == null)
+				return null;
+
+			Handler h = handler;
+			if (h == null)
+				h = getHandler(l);
+			return h;
+		}
+
+		private synchronized Handler getHandler(Looper l) {
+			if (handler == null)
+				handler = new Handler(l, callback);
+			return handler;
+		}
+
+		public boolean send(int what) {
+			return send(what, 0, null);
+		}
+
+		public boolean send(int what, Object obj) {
+			return send(what, 0, obj);
+		}
+
+		public boolean send(int what, int arg1, Object obj) {
+			return sendDelayed(what, arg1, obj, 0);
+		}
+
+		public boolean sendDelayed(int what, long delayMillis) {
+			return sendDelayed(what, 0, null, delayMillis);
+		}
+
+		/*
+		 * Never blocks. If the looper is not ready yet the message is queued
+		 * and delivered as soon as it starts
+		 */
+		public boolean sendDelayed(int what, int arg1, Object obj,
+				long delayMillis) {
+			if (delayMillis < 0)
+				delayMillis = 0;
+			long uptime = SystemClock.uptimeMillis() + delayMillis;
+
+			Handler h = getHandler();
+			if (h != null)
+				return h.sendMessageAtTime(
+						h.obtainMessage(what, arg1, 0, obj), uptime);
+
+			synchronized (LooperThread.this) {
+				if (looper == null) {
+					if (quit) {
+						log.warn("Cannot send message " + what
+								+ ". Looper already quit");
+						return false;
+					}
+					Message msg = Message.obtain();
+					msg.what = what;
+					msg.arg1 = arg1;
+					msg.obj = obj;
+					pendingMessages.add(msg);
+					pendingTargets.add(this);
+					pendingUptimes.add(uptime);
+					return true;
+				}
+			}
+			h = getHandler();
+			return h.sendMessageAtTime(h.obtainMessage(what, arg1, 0, obj),
+					uptime);
+		}
+
+	}
+
 }
@@ -0,0 +1,65 @@
+package com.kurento.kas.sip.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Fixed set of looper threads shared by all the calls of a UA. Each call is
+ * pinned to one stripe by its Call-ID so its events keep being executed in
+ * order, without creating a new thread per call.
+ */
+public class LooperThreadPool {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(LooperThreadPool.class.getSimpleName());
+
+	private final LooperThread[] stripes;
+
+	public LooperThreadPool() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public LooperThreadPool(int size) {
+		if (size < 1)
+			size = 1;
+
+		stripes = new LooperThread[size];
+		for (int i = 0; i < size; i++)
+			stripes[i] = new LooperThread();
+	}
+
+	public void start() {
+		log.debug("Starting " + stripes.length + " looper threads");
+		for (LooperThread stripe : stripes)
+			stripe.start();
+	}
+
+	public LooperThread get(String key) {
+		int h = key.hashCode();
+		// Spread the hash so that keys differing only in high bits do not
+		// collide on the same stripe
+		h ^= (h >>> 16);
+		return stripes[(h & 0x7fffffff) % stripes.length];
+	}
+
+	public int size() {
+		return stripes.length;
+	}
+
+	/*
+	 * Quit every looper once the events already queued on it have been
+	 * executed, so pending call events (e.g. BYE on UA termination) are not
+	 * lost
+	 */
+	public void quit() {
+		for (final LooperThread stripe : stripes) {
+			stripe.post(new Runnable() {
+				@Override
+				public void run() {
+					stripe.quit();
+				}
+			});
+		}
+	}
+
+}
@@ -4,22 +4,86 @@ import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+
 public class NetworkUtilities {
 
 	private static final Logger log = LoggerFactory
 			.getLogger(NetworkUtilities.class.getSimpleName());
 
+	// Candidates are probed in parallel, each with this timeout
+	private static final int PROBE_TIMEOUT = 1000; // milliseconds
+
+	// Interface name prefixes by kind
+	private static final String[] WIRED_OR_WIFI = { "wlan", "eth", "en",
+			"wl" };
+	private static final String[] MOBILE = { "rmnet", "ccmni", "pdp", "ppp",
+			"wwan", "usb" };
+
+	private static final ConcurrentHashMap<String, InetAddress> cache = new ConcurrentHashMap<String, InetAddress>();
+
+	private static final ExecutorService probes = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "NetworkUtilities probe");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
 	/*
-	 * Get the first reachable address matching parameter pattern
+	 * Get the best reachable address matching parameter pattern. Without
+	 * pattern every candidate is probed in parallel and the best scored one
+	 * that answers is returned: WiFi or wired before mobile (metered) before
+	 * anything else, and IPv4 before IPv6. The result is cached until
+	 * invalidateLocalInterface() is called, e.g. on connectivity change
 	 */
 	public static InetAddress getLocalInterface(String pattern, boolean onlyIPv4)
 			throws IOException {
+		String key = pattern + "/" + onlyIPv4;
+		InetAddress cached = cache.get(key);
+		if (cached != null && NetworkInterface.getByInetAddress(cached) != null)
+			return cached;
+
+		InetAddress address = findLocalInterface(pattern, onlyIPv4);
+		if (address != null)
+			cache.put(key, address);
+		else
+			cache.remove(key);
+		return address;
+	}
 
+	/*
+	 * Forget selected interfaces. Next call to getLocalInterface probes again
+	 */
+	public static void invalidateLocalInterface() {
+		cache.clear();
+	}
+
+	private static InetAddress findLocalInterface(String pattern,
+			boolean onlyIPv4) throws IOException {
+		List<Candidate> candidates = new ArrayList<Candidate>();
 		Enumeration<NetworkInterface> intfEnum = NetworkInterface
 				.getNetworkInterfaces();
 
@@ -41,7 +105,6 @@ public class NetworkUtilities {
 				if (pattern != null && !"".equals(pattern)) {
 
 					if (intf.getDisplayName().equals(pattern)
-							|| inetAddress.getHostAddress().equals(pattern)
 							|| inetAddress.getHostAddress().equals(pattern)) {
 						return inetAddress;
 					}
@@ -58,15 +121,114 @@ public class NetworkUtilities {
 					if (inetAddress.isLinkLocalAddress()) {
 						continue;
 					}
-					if (inetAddress.isReachable(30000)) {
-						// Return only reachable interfaces
-						return inetAddress;
+					candidates.add(new Candidate(intf, inetAddress));
+				}
+			}
+		}
+
+		if (candidates.isEmpty())
+			return null;
+
+		Collections.sort(candidates);
+		List<Future<Boolean>> reachable = new ArrayList<Future<Boolean>>();
+		for (final Candidate c : candidates) {
+			reachable.add(probes.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return c.address.isReachable(PROBE_TIMEOUT);
+				}
+			}));
+		}
+
+		// Best scored first: the first reachable one wins
+		long deadline = System.currentTimeMillis() + 2 * PROBE_TIMEOUT;
+		try {
+			for (int i = 0; i < candidates.size(); i++) {
+				long remaining = Math.max(0,
+						deadline - System.currentTimeMillis());
+				try {
+					if (reachable.get(i).get(remaining, TimeUnit.MILLISECONDS)) {
+						log.debug("Selected interface: "
+								+ candidates.get(i).address.getHostAddress()
+								+ " (score " + candidates.get(i).score + ")");
+						return candidates.get(i).address;
 					}
+				} catch (ExecutionException e) {
+					log.debug("Unable to probe "
+							+ candidates.get(i).address.getHostAddress(),
+							e.getCause());
+				} catch (TimeoutException e) {
+					log.debug("Timeout probing "
+							+ candidates.get(i).address.getHostAddress());
 				}
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			for (Future<Boolean> f : reachable)
+				f.cancel(true);
 		}
 
 		return null;
 	}
 
+	private static boolean startsWithAny(String name, String[] prefixes) {
+		for (String prefix : prefixes)
+			if (name.startsWith(prefix))
+				return true;
+		return false;
+	}
+
+	private static class Candidate implements Comparable<Candidate> {
+
+		private final InetAddress address;
+		private final int score;
+
+		private Candidate(NetworkInterface intf, InetAddress address) {
+			this.address = address;
+
+			String name = intf.getName();
+			int score = 0;
+			if (startsWithAny(name, WIRED_OR_WIFI))
+				score += 30;
+			else if (startsWithAny(name, MOBILE))
+				score += 20; // Metered
+			else
+				score += 10; // VPN, tethering...
+			if (address instanceof Inet4Address)
+				score += 5;
+			this.score = score;
+		}
+
+		@Override
+		public int compareTo(Candidate other) {
+			return other.score - score;
+		}
+	}
+
+	/*
+	 * Identify the network the device is attached to: SSID for WiFi, operator
+	 * (MCC+MNC) for mobile networks, plus the local address. Returns null when
+	 * there is no active network
+	 */
+	public static String getNetworkId(Context context, InetAddress localAddress) {
+		ConnectivityManager cm = (ConnectivityManager) context
+				.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo ni = cm.getActiveNetworkInfo();
+		if (ni == null)
+			return null;
+
+		String name;
+		if (ni.getType() == ConnectivityManager.TYPE_MOBILE) {
+			TelephonyManager tm = (TelephonyManager) context
+					.getSystemService(Context.TELEPHONY_SERVICE);
+			name = tm.getNetworkOperator();
+		} else {
+			name = ni.getExtraInfo(); // SSID on WiFi
+		}
+
+		return ni.getTypeName() + ":" + name + "/"
+				+ (localAddress == null ? "" : localAddress.getHostAddress());
+	}
+
 }
@@ -0,0 +1,263 @@
+package com.kurento.kas.sip.util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.kurento.kas.sip.util.DnsResolver.Record;
+
+/**
+ * RFC3263 4 server location: NAPTR, then SRV, then A/AAAA.
+ * <ul>
+ * <li>NAPTR records of the domain give the SRV name for the transport, in
+ * order and preference. Without them the SRV name is built from the
+ * transport (_sip._udp, _sip._tcp, _sips._tcp).</li>
+ * <li>SRV targets are sorted by priority, and by weighted random selection
+ * within the same priority (rfc2782), so load spreads across servers.</li>
+ * <li>Without SRV records the domain itself is resolved, on the default port
+ * of the transport.</li>
+ * </ul>
+ * Every lookup goes through the {@link DnsResolver} cache. The servers found
+ * are valid for {@link #getTtl()}, the lowest TTL of the records used, and
+ * {@link #getPriorities()} keeps the SRV priority of each one.
+ */
+public class SipServerLocator {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(SipServerLocator.class.getSimpleName());
+
+	public static final int DEFAULT_PORT = 5060;
+	public static final int DEFAULT_TLS_PORT = 5061;
+
+	private static final Random random = new Random();
+
+	private final DnsResolver resolver;
+	private long ttl = -1;
+	private List<Integer> priorities = new ArrayList<Integer>();
+
+	public SipServerLocator(DnsResolver resolver) {
+		this.resolver = resolver;
+	}
+
+	public DnsResolver getResolver() {
+		return resolver;
+	}
+
+	/**
+	 * @return Seconds the servers of the last location are valid, or -1 if
+	 *         they do not expire, as IP addresses
+	 */
+	public long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * @return SRV priority of each server of the last location, in the same
+	 *         order. All 0 when they were not located through SRV
+	 */
+	public List<Integer> getPriorities() {
+		return priorities;
+	}
+
+	/**
+	 * Servers of a domain, in the order they must be tried.
+	 *
+	 * @param transport
+	 *            UDP, TCP or TLS
+	 * @return Empty if the domain has no server
+	 * @throws IOException
+	 *             DNS does not answer
+	 */
+	public List<InetSocketAddress> locate(String domain, String transport,
+			boolean onlyIpv4) throws IOException {
+		int defaultPort = "TLS".equalsIgnoreCase(transport) ? DEFAULT_TLS_PORT
+				: DEFAULT_PORT;
+
+		ttl = -1;
+		priorities = new ArrayList<Integer>();
+		List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+		if (isIpAddress(domain)) {
+			targets.add(new InetSocketAddress(InetAddress.getByName(domain),
+					defaultPort));
+			priorities.add(0);
+			return targets;
+		}
+
+		String srvName = getSrvName(domain, transport);
+		List<Record> srvs = query(srvName, DnsResolver.TYPE_SRV);
+		if (!srvs.isEmpty()) {
+			for (Record srv : sortSrv(srvs)) {
+				// "." means the service is not available: rfc2782
+				if (srv.getTarget() == null || srv.getTarget().length() == 0)
+					continue;
+				for (InetAddress a : getAddresses(srv.getTarget(), onlyIpv4)) {
+					targets.add(new InetSocketAddress(a, srv.getPort()));
+					priorities.add(srv.getPriority());
+				}
+			}
+			log.debug("Servers of " + domain + " (" + transport + "): "
+					+ targets);
+			return targets;
+		}
+
+		for (InetAddress a : getAddresses(domain, onlyIpv4)) {
+			targets.add(new InetSocketAddress(a, defaultPort));
+			priorities.add(0);
+		}
+		log.debug("Servers of " + domain + " (" + transport + "): " + targets);
+		return targets;
+	}
+
+	/**
+	 * Servers of a host, on the given port, without NAPTR nor SRV lookup.
+	 *
+	 * @return Empty if the host has no address
+	 * @throws IOException
+	 *             DNS does not answer
+	 */
+	public List<InetSocketAddress> locateHost(String host, int port,
+			boolean onlyIpv4) throws IOException {
+		ttl = -1;
+		priorities = new ArrayList<Integer>();
+		List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+		if (isIpAddress(host)) {
+			targets.add(new InetSocketAddress(InetAddress.getByName(host),
+					port));
+			priorities.add(0);
+			return targets;
+		}
+
+		for (InetAddress a : getAddresses(host, onlyIpv4)) {
+			targets.add(new InetSocketAddress(a, port));
+			priorities.add(0);
+		}
+		return targets;
+	}
+
+	private List<InetAddress> getAddresses(String name, boolean onlyIpv4)
+			throws IOException {
+		List<InetAddress> addresses = new ArrayList<InetAddress>();
+		for (Record r : query(name, DnsResolver.TYPE_A))
+			addresses.add(r.getAddress());
+		if (!onlyIpv4) {
+			for (Record r : query(name, DnsResolver.TYPE_AAAA))
+				addresses.add(r.getAddress());
+		}
+		return addresses;
+	}
+
+	/*
+	 * Query through the cache, keeping the lowest TTL of the records used
+	 */
+	private List<Record> query(String name, int type) throws IOException {
+		List<Record> records = resolver.query(name, type);
+		for (Record r : records) {
+			if (ttl < 0 || r.getTtl() < ttl)
+				ttl = r.getTtl();
+		}
+		return records;
+	}
+
+	/*
+	 * SRV name of the first NAPTR record for the transport, or the rfc3263
+	 * 4.1 default if there is none
+	 */
+	private String getSrvName(String domain, String transport)
+			throws IOException {
+		String service = "TLS".equalsIgnoreCase(transport) ? "SIPS+D2T"
+				: "TCP".equalsIgnoreCase(transport) ? "SIP+D2T" : "SIP+D2U";
+
+		List<Record> naptrs = new ArrayList<Record>(query(domain,
+				DnsResolver.TYPE_NAPTR));
+		Collections.sort(naptrs, new Comparator<Record>() {
+			@Override
+			public int compare(Record a, Record b) {
+				if (a.getOrder() != b.getOrder())
+					return a.getOrder() < b.getOrder() ? -1 : 1;
+				return a.getPreference() < b.getPreference() ? -1 : a
+						.getPreference() == b.getPreference() ? 0 : 1;
+			}
+		});
+		for (Record naptr : naptrs) {
+			if ("s".equalsIgnoreCase(naptr.getFlags())
+					&& service.equalsIgnoreCase(naptr.getService()))
+				return naptr.getTarget();
+		}
+
+		if ("TLS".equalsIgnoreCase(transport))
+			return "_sips._tcp." + domain;
+		if ("TCP".equalsIgnoreCase(transport))
+			return "_sip._tcp." + domain;
+		return "_sip._udp." + domain;
+	}
+
+	/*
+	 * Lowest priority first. Within a priority, pick records at random with
+	 * probability proportional to their weight: rfc2782
+	 */
+	static List<Record> sortSrv(List<Record> records) {
+		List<Record> remaining = new ArrayList<Record>(records);
+		Collections.sort(remaining, new Comparator<Record>() {
+			@Override
+			public int compare(Record a, Record b) {
+				return a.getPriority() < b.getPriority() ? -1 : a
+						.getPriority() == b.getPriority() ? 0 : 1;
+			}
+		});
+
+		List<Record> sorted = new ArrayList<Record>(remaining.size());
+		while (!remaining.isEmpty()) {
+			int priority = remaining.get(0).getPriority();
+			List<Record> group = new ArrayList<Record>();
+			for (Record r : remaining) {
+				if (r.getPriority() == priority)
+					group.add(r);
+			}
+			remaining.removeAll(group);
+
+			while (!group.isEmpty()) {
+				int total = 0;
+				for (Record r : group)
+					total += r.getWeight();
+
+				Record chosen = group.get(0);
+				if (total > 0) {
+					int pick;
+					synchronized (random) {
+						pick = random.nextInt(total + 1);
+					}
+					int sum = 0;
+					for (Record r : group) {
+						sum += r.getWeight();
+						if (sum >= pick) {
+							chosen = r;
+							break;
+						}
+					}
+				} else {
+					synchronized (random) {
+						chosen = group.get(random.nextInt(group.size()));
+					}
+				}
+				group.remove(chosen);
+				sorted.add(chosen);
+			}
+		}
+		return sorted;
+	}
+
+	public static boolean isIpAddress(String host) {
+		if (host.indexOf(':') >= 0)
+			return true; // IPv6 literal
+		return host.matches("\\d{1,3}(\\.\\d{1,3}){3}");
+	}
+
+}
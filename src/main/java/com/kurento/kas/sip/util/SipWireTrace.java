@@ -0,0 +1,239 @@
+package com.kurento.kas.sip.util;
+
+import gov.nist.javax.sip.message.SIPMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.Message;
+import javax.sip.message.Request;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Trace of the SIP messages sent and received. When disabled tracing a
+ * message costs a volatile read. When enabled, sampled messages are encoded
+ * once and their raw bytes are written by a background thread, so the
+ * signalling threads never wait for the log sink.
+ * <ul>
+ * <li>Call sampling traces 1 in N Call-IDs, so the sampled dialogs are
+ * complete.</li>
+ * <li>Method sampling traces 1 in N messages of a method, e.g. to skip most
+ * REGISTER refreshes. 0 disables the method.</li>
+ * </ul>
+ */
+public class SipWireTrace {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(SipWireTrace.class.getSimpleName());
+
+	private static final int QUEUE_SIZE = 256;
+
+	private volatile boolean enabled = false;
+	private volatile int callSampling = 1;
+	private final ConcurrentHashMap<String, Integer> methodSampling = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentHashMap<String, AtomicInteger> methodCounters = new ConcurrentHashMap<String, AtomicInteger>();
+
+	private final ArrayBlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(
+			QUEUE_SIZE);
+	private Thread writer;
+	private volatile OutputStream output;
+
+	private final AtomicLong tracedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public synchronized void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (enabled && writer == null) {
+			writer = new Thread(writerLoop, "SipWireTrace");
+			writer.setDaemon(true);
+			writer.start();
+		} else if (!enabled && writer != null) {
+			writer.interrupt();
+			writer = null;
+			queue.clear();
+		}
+	}
+
+	/**
+	 * Trace 1 in <code>oneInN</code> calls.
+	 */
+	public void setCallSampling(int oneInN) {
+		callSampling = Math.max(1, oneInN);
+	}
+
+	/**
+	 * Trace 1 in <code>oneInN</code> messages of the method. 0 disables the
+	 * method.
+	 */
+	public void setMethodSampling(String method, int oneInN) {
+		methodSampling.put(method.toUpperCase(Locale.ENGLISH),
+				Math.max(0, oneInN));
+	}
+
+	/**
+	 * Parse a method sampling list like <code>REGISTER=10,OPTIONS=0</code>.
+	 * Previous method sampling is discarded.
+	 */
+	public void setMethodSampling(String methodSamplingList) {
+		methodSampling.clear();
+		if (methodSamplingList == null)
+			return;
+
+		for (String entry : methodSamplingList.split(",")) {
+			int sep = entry.indexOf('=');
+			if (sep <= 0)
+				continue;
+			try {
+				setMethodSampling(entry.substring(0, sep).trim(),
+						Integer.parseInt(entry.substring(sep + 1).trim()));
+			} catch (NumberFormatException e) {
+				log.warn("Invalid wire trace sampling: " + entry);
+			}
+		}
+	}
+
+	/**
+	 * Write the trace to a stream instead of the log. A null stream restores
+	 * the log.
+	 */
+	public void setOutput(OutputStream output) {
+		this.output = output;
+	}
+
+	public long getTracedCount() {
+		return tracedCount.get();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public void traceSent(Message message) {
+		if (enabled)
+			trace(true, message);
+	}
+
+	public void traceReceived(Message message) {
+		if (enabled)
+			trace(false, message);
+	}
+
+	private void trace(boolean sent, Message message) {
+		if (!isSampled(message))
+			return;
+
+		byte[] raw;
+		if (message instanceof SIPMessage) {
+			ViaHeader via = (ViaHeader) message.getHeader(ViaHeader.NAME);
+			if (via != null && via.getTransport() != null)
+				raw = ((SIPMessage) message).encodeAsBytes(via.getTransport());
+			else
+				raw = ((SIPMessage) message).encode().getBytes();
+		} else {
+			raw = message.toString().getBytes();
+		}
+
+		if (queue.offer(new Record(sent, System.currentTimeMillis(), raw)))
+			tracedCount.incrementAndGet();
+		else
+			droppedCount.incrementAndGet();
+	}
+
+	private boolean isSampled(Message message) {
+		int calls = callSampling;
+		if (calls > 1) {
+			CallIdHeader callId = (CallIdHeader) message
+					.getHeader(CallIdHeader.NAME);
+			if (callId == null
+					|| (callId.getCallId().hashCode() & 0x7fffffff) % calls != 0)
+				return false;
+		}
+
+		if (methodSampling.isEmpty())
+			return true;
+
+		String method;
+		if (message instanceof Request) {
+			method = ((Request) message).getMethod();
+		} else {
+			CSeqHeader cSeq = (CSeqHeader) message.getHeader(CSeqHeader.NAME);
+			if (cSeq == null)
+				return true;
+			method = cSeq.getMethod();
+		}
+
+		Integer n = methodSampling.get(method);
+		if (n == null || n == 1)
+			return true;
+		if (n == 0)
+			return false;
+
+		AtomicInteger counter = methodCounters.get(method);
+		if (counter == null) {
+			counter = new AtomicInteger();
+			AtomicInteger previous = methodCounters.putIfAbsent(method,
+					counter);
+			if (previous != null)
+				counter = previous;
+		}
+		return counter.getAndIncrement() % n == 0;
+	}
+
+	private final Runnable writerLoop = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				while (!Thread.currentThread().isInterrupted())
+					write(queue.take());
+			} catch (InterruptedException e) {
+				// Tracing disabled
+			}
+		}
+	};
+
+	private void write(Record record) {
+		String header = (record.sent ? ">>>>>>>>>> SIP sent " : "<<<<<<<<<< SIP received ")
+				+ record.timestamp + "\n";
+		OutputStream out = output;
+		if (out == null) {
+			log.info(header + new String(record.raw));
+			return;
+		}
+
+		try {
+			out.write(header.getBytes());
+			out.write(record.raw);
+			out.write('\n');
+			out.flush();
+		} catch (IOException e) {
+			log.warn("Unable to write wire trace", e);
+		}
+	}
+
+	private static class Record {
+		private final boolean sent;
+		private final long timestamp;
+		private final byte[] raw;
+
+		private Record(boolean sent, long timestamp, byte[] raw) {
+			this.sent = sent;
+			this.timestamp = timestamp;
+			this.raw = raw;
+		}
+	}
+
+}
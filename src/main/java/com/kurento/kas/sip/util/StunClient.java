@@ -0,0 +1,367 @@
+package com.kurento.kas.sip.util;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * RFC5389 STUN Binding client, used to learn the public mapping of a UDP
+ * socket and to keep it alive (rfc5626 4.4.2).
+ * <p>
+ * The socket may be shared with the SIP stack, so responses are not read by
+ * the client: they must be passed to {@link #onPacket(byte[], int, int)} by
+ * whoever reads the socket, as {@link StunDatagramSocket} does. Sockets read
+ * by nobody else can use {@link #discover(DatagramSocket, InetSocketAddress,
+ * long)}.
+ */
+public class StunClient {
+
+	private static final Logger log = LoggerFactory.getLogger(StunClient.class
+			.getSimpleName());
+
+	public static final int DEFAULT_PORT = 3478;
+
+	static final int HEADER_SIZE = 20;
+	static final int MAGIC_COOKIE = 0x2112A442;
+	static final int BINDING_REQUEST = 0x0001;
+	static final int BINDING_RESPONSE = 0x0101;
+	static final int ATTR_MAPPED_ADDRESS = 0x0001;
+	static final int ATTR_XOR_MAPPED_ADDRESS = 0x0020;
+
+	private static final int TRANSACTION_ID_SIZE = 12;
+	private static final long INITIAL_RTO = 250; // milliseconds
+	private static final long TRANSACTION_TIMEOUT = 40000; // milliseconds
+
+	private static final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Notified of every Binding success response received.
+	 */
+	public interface Listener {
+
+		/**
+		 * @param mapped
+		 *            Address of the socket as seen by the server
+		 * @param rtt
+		 *            Milliseconds from the last (re)transmission of the
+		 *            request
+		 */
+		void onBindingResponse(InetSocketAddress server,
+				InetSocketAddress mapped, long rtt);
+
+	}
+
+	private final DatagramSocket socket;
+	private volatile Listener listener;
+
+	// Requests waiting for response, by transaction id
+	private final ConcurrentHashMap<String, Transaction> transactions = new ConcurrentHashMap<String, Transaction>();
+
+	public StunClient(DatagramSocket socket) {
+		this.socket = socket;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Send a single Binding request and do not wait for the response, e.g.
+	 * as keep alive. The response is reported to the listener.
+	 */
+	public void sendBindingRequest(InetSocketAddress server)
+			throws IOException {
+		// Forget unanswered requests
+		long now = System.currentTimeMillis();
+		for (Transaction old : transactions.values())
+			if (now - old.sentTime > TRANSACTION_TIMEOUT)
+				transactions.remove(old.key);
+
+		Transaction t = new Transaction(server);
+		transactions.put(t.key, t);
+		try {
+			t.send();
+		} catch (IOException e) {
+			transactions.remove(t.key);
+			throw e;
+		}
+	}
+
+	/**
+	 * Send a Binding request, retransmitting it with exponential back off,
+	 * and wait for the response.
+	 *
+	 * @return The mapped address or null if there was no response before the
+	 *         timeout
+	 */
+	public InetSocketAddress bind(InetSocketAddress server, long timeout)
+			throws IOException, InterruptedException {
+		Transaction t = new Transaction(server);
+		transactions.put(t.key, t);
+		try {
+			long deadline = System.currentTimeMillis() + timeout;
+			long rto = INITIAL_RTO;
+			synchronized (t) {
+				while (t.mapped == null) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0)
+						break;
+					t.send();
+					t.wait(Math.min(rto, remaining));
+					rto *= 2;
+				}
+				return t.mapped;
+			}
+		} finally {
+			transactions.remove(t.key);
+		}
+	}
+
+	/**
+	 * Give a packet received on the socket to the client.
+	 *
+	 * @return false if the packet is not STUN, so it belongs to somebody else
+	 */
+	public boolean onPacket(byte[] buf, int offset, int length) {
+		if (!isStunMessage(buf, offset, length))
+			return false;
+
+		Transaction t = transactions.remove(transactionKey(buf, offset));
+		if (t == null) {
+			log.debug("Discard STUN message of unknown transaction");
+			return true;
+		}
+
+		InetSocketAddress mapped = parseBindingResponse(buf, offset, length);
+		if (mapped == null) {
+			log.warn("Invalid STUN Binding response from " + t.server);
+			return true;
+		}
+
+		long rtt = System.currentTimeMillis() - t.sentTime;
+		synchronized (t) {
+			t.mapped = mapped;
+			t.notifyAll();
+		}
+
+		Listener l = listener;
+		if (l != null)
+			l.onBindingResponse(t.server, mapped, rtt);
+		return true;
+	}
+
+	/**
+	 * Learn the mapping of a socket nobody else reads.
+	 *
+	 * @return The mapped address or null if there was no response before the
+	 *         timeout
+	 */
+	public static InetSocketAddress discover(DatagramSocket socket,
+			InetSocketAddress server, long timeout) throws IOException {
+		byte[] transactionId = newTransactionId();
+		byte[] request = createBindingRequest(transactionId);
+		byte[] buf = new byte[1500];
+		long deadline = System.currentTimeMillis() + timeout;
+		long rto = INITIAL_RTO;
+		int soTimeout = socket.getSoTimeout();
+		try {
+			while (true) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					return null;
+				socket.send(new DatagramPacket(request, request.length, server));
+				long retransmit = System.currentTimeMillis()
+						+ Math.min(rto, remaining);
+				rto *= 2;
+				try {
+					long wait;
+					while ((wait = retransmit - System.currentTimeMillis()) > 0) {
+						socket.setSoTimeout((int) wait);
+						DatagramPacket p = new DatagramPacket(buf, buf.length);
+						socket.receive(p);
+						if (isStunMessage(buf, 0, p.getLength())
+								&& Arrays.equals(transactionId, Arrays
+										.copyOfRange(buf, 8, HEADER_SIZE))) {
+							InetSocketAddress mapped = parseBindingResponse(
+									buf, 0, p.getLength());
+							if (mapped != null)
+								return mapped;
+						}
+					}
+				} catch (SocketTimeoutException e) {
+					// Retransmit
+				}
+			}
+		} finally {
+			socket.setSoTimeout(soTimeout);
+		}
+	}
+
+	/**
+	 * Resolve a <code>host[:port]</code> STUN server.
+	 */
+	public static InetSocketAddress resolveServer(String server)
+			throws UnknownHostException {
+		InetSocketAddress address = parseServer(server);
+		return new InetSocketAddress(InetAddress.getByName(address
+				.getHostName()), address.getPort());
+	}
+
+	/**
+	 * Parse a <code>host[:port]</code> STUN server, leaving the host
+	 * unresolved so it can be resolved by other means.
+	 */
+	public static InetSocketAddress parseServer(String server) {
+		String host = server.trim();
+		int port = DEFAULT_PORT;
+		int sep = host.lastIndexOf(':');
+		if (sep > 0 && host.indexOf(':') == sep) {
+			port = Integer.parseInt(host.substring(sep + 1));
+			host = host.substring(0, sep);
+		}
+		return InetSocketAddress.createUnresolved(host, port);
+	}
+
+	/*
+	 * The two first bits of STUN messages are 0 and the magic cookie follows
+	 * the length: rfc5389 6. SIP messages start with a letter or CRLF
+	 */
+	static boolean isStunMessage(byte[] buf, int offset, int length) {
+		return length >= HEADER_SIZE && (buf[offset] & 0xC0) == 0
+				&& readInt(buf, offset + 4) == MAGIC_COOKIE
+				&& readShort(buf, offset + 2) + HEADER_SIZE <= length;
+	}
+
+	static byte[] newTransactionId() {
+		byte[] id = new byte[TRANSACTION_ID_SIZE];
+		synchronized (random) {
+			random.nextBytes(id);
+		}
+		return id;
+	}
+
+	static byte[] createBindingRequest(byte[] transactionId) {
+		byte[] msg = new byte[HEADER_SIZE];
+		writeShort(msg, 0, BINDING_REQUEST);
+		writeShort(msg, 2, 0);
+		writeInt(msg, 4, MAGIC_COOKIE);
+		System.arraycopy(transactionId, 0, msg, 8, TRANSACTION_ID_SIZE);
+		return msg;
+	}
+
+	/*
+	 * Return the XOR-MAPPED-ADDRESS, or MAPPED-ADDRESS of old servers, of a
+	 * Binding success response. Null if it is not one
+	 */
+	static InetSocketAddress parseBindingResponse(byte[] buf, int offset,
+			int length) {
+		if (readShort(buf, offset) != BINDING_RESPONSE)
+			return null;
+
+		InetSocketAddress mapped = null;
+		int end = offset + HEADER_SIZE + readShort(buf, offset + 2);
+		int pos = offset + HEADER_SIZE;
+		while (pos + 4 <= end) {
+			int type = readShort(buf, pos);
+			int len = readShort(buf, pos + 2);
+			int value = pos + 4;
+			if (value + len > end)
+				break;
+
+			if (type == ATTR_XOR_MAPPED_ADDRESS)
+				return parseAddress(buf, value, len, buf, offset + 4);
+			if (type == ATTR_MAPPED_ADDRESS)
+				mapped = parseAddress(buf, value, len, null, 0);
+
+			pos = value + ((len + 3) & ~3); // 32 bit aligned
+		}
+		return mapped;
+	}
+
+	/*
+	 * Address attribute: reserved(1) family(1) port(2) address(4|16). XOR-ed
+	 * with the magic cookie and transaction id when a mask is given
+	 */
+	private static InetSocketAddress parseAddress(byte[] buf, int offset,
+			int len, byte[] mask, int maskOffset) {
+		int family = buf[offset + 1];
+		int addressLength = family == 0x01 ? 4 : family == 0x02 ? 16 : -1;
+		if (addressLength < 0 || len < 4 + addressLength)
+			return null;
+
+		int port = readShort(buf, offset + 2);
+		byte[] address = new byte[addressLength];
+		System.arraycopy(buf, offset + 4, address, 0, addressLength);
+		if (mask != null) {
+			port ^= readShort(mask, maskOffset);
+			for (int i = 0; i < addressLength; i++)
+				address[i] ^= mask[maskOffset + i];
+		}
+
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(address),
+					port);
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	private static String transactionKey(byte[] buf, int offset) {
+		StringBuilder sb = new StringBuilder(2 * TRANSACTION_ID_SIZE);
+		for (int i = 0; i < TRANSACTION_ID_SIZE; i++) {
+			int b = buf[offset + 8 + i] & 0xFF;
+			sb.append(Character.forDigit(b >> 4, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	private static int readShort(byte[] buf, int offset) {
+		return ((buf[offset] & 0xFF) << 8) | (buf[offset + 1] & 0xFF);
+	}
+
+	private static int readInt(byte[] buf, int offset) {
+		return (readShort(buf, offset) << 16) | readShort(buf, offset + 2);
+	}
+
+	private static void writeShort(byte[] buf, int offset, int value) {
+		buf[offset] = (byte) (value >> 8);
+		buf[offset + 1] = (byte) value;
+	}
+
+	private static void writeInt(byte[] buf, int offset, int value) {
+		writeShort(buf, offset, value >>> 16);
+		writeShort(buf, offset + 2, value);
+	}
+
+	private class Transaction {
+
+		private final InetSocketAddress server;
+		private final byte[] request;
+		private final String key;
+		private volatile long sentTime;
+		private InetSocketAddress mapped;
+
+		private Transaction(InetSocketAddress server) {
+			this.server = server;
+			this.request = createBindingRequest(newTransactionId());
+			this.key = transactionKey(request, 0);
+		}
+
+		private void send() throws IOException {
+			sentTime = System.currentTimeMillis();
+			socket.send(new DatagramPacket(request, request.length, server));
+		}
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.kurento.kas.sip.util;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+
+/**
+ * UDP socket shared by the SIP stack and a {@link StunClient}. STUN messages
+ * received are given to the client and never reach the stack.
+ */
+public class StunDatagramSocket extends DatagramSocket {
+
+	private final StunClient stunClient = new StunClient(this);
+
+	public StunDatagramSocket(int port, InetAddress laddr)
+			throws SocketException {
+		super(port, laddr);
+	}
+
+	public StunClient getStunClient() {
+		return stunClient;
+	}
+
+	@Override
+	public void receive(DatagramPacket p) throws IOException {
+		// receive() shrinks the packet length to the data received
+		int length = p.getLength();
+		while (true) {
+			p.setLength(length);
+			super.receive(p);
+			if (!stunClient.onPacket(p.getData(), p.getOffset(),
+					p.getLength()))
+				return;
+		}
+	}
+
+}
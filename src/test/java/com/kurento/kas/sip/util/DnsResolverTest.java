@@ -0,0 +1,222 @@
+package com.kurento.kas.sip.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.kurento.kas.sip.util.DnsResolver.Record;
+import com.kurento.kas.sip.util.StubDnsServer.Rr;
+
+/**
+ * DnsResolver against a stub DNS server on loopback, with a clock moved by
+ * the test.
+ */
+public class DnsResolverTest {
+
+	private static final String HOST = "sip.example.com";
+	private static final int NXDOMAIN = 3;
+
+	private StubDnsServer server;
+	private volatile long now = 1000000;
+	private DnsResolver resolver;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new StubDnsServer();
+		resolver = new DnsResolver(Collections.singletonList(server
+				.getAddress())) {
+			@Override
+			long elapsedRealtime() {
+				return now;
+			}
+		};
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+	}
+
+	@Test
+	public void answerIsCachedForItsTtl() throws Exception {
+		server.add(Rr.a(HOST, 30, "192.0.2.1"));
+
+		assertAddresses(resolver.getAddresses(HOST, true), "192.0.2.1");
+		assertEquals(1, server.getQueries(HOST, DnsResolver.TYPE_A));
+		assertEquals(1, resolver.getMissCount());
+
+		now += 29000;
+		assertAddresses(resolver.getAddresses(HOST, true), "192.0.2.1");
+		assertEquals(1, server.getQueries(HOST, DnsResolver.TYPE_A));
+		assertEquals(1, resolver.getHitCount());
+	}
+
+	@Test
+	public void expiredAnswerIsServedStaleWhileRefreshed() throws Exception {
+		server.add(Rr.a(HOST, 30, "192.0.2.1"));
+		resolver.getAddresses(HOST, true);
+
+		server.remove(HOST, DnsResolver.TYPE_A);
+		server.add(Rr.a(HOST, 30, "192.0.2.2"));
+		now += 31000;
+
+		// No wait for the server: the expired answer comes back at once
+		assertAddresses(resolver.getAddresses(HOST, true), "192.0.2.1");
+		assertEquals(1, resolver.getStaleHitCount());
+
+		waitForAddress(HOST, "192.0.2.2");
+		assertEquals(2, server.getQueries(HOST, DnsResolver.TYPE_A));
+	}
+
+	@Test
+	public void answerTooLongExpiredIsResolvedAgain() throws Exception {
+		server.add(Rr.a(HOST, 30, "192.0.2.1"));
+		resolver.getAddresses(HOST, true);
+
+		server.remove(HOST, DnsResolver.TYPE_A);
+		server.add(Rr.a(HOST, 30, "192.0.2.2"));
+		now += 30000 + DnsResolver.MAX_STALE + 1;
+
+		assertAddresses(resolver.getAddresses(HOST, true), "192.0.2.2");
+		assertEquals(0, resolver.getStaleHitCount());
+		assertEquals(2, resolver.getMissCount());
+	}
+
+	@Test
+	public void nxdomainIsCachedForSoaMinimum() throws Exception {
+		server.setNegative(HOST, DnsResolver.TYPE_A, NXDOMAIN,
+				Rr.soa("example.com", 3600, 20));
+
+		assertTrue(resolver.query(HOST, DnsResolver.TYPE_A).isEmpty());
+		now += 19000;
+		assertTrue(resolver.query(HOST, DnsResolver.TYPE_A).isEmpty());
+		assertEquals(1, server.getQueries(HOST, DnsResolver.TYPE_A));
+		assertEquals(1, resolver.getNegativeHitCount());
+
+		now += 2000;
+		assertTrue(resolver.query(HOST, DnsResolver.TYPE_A).isEmpty());
+		waitForQueries(HOST, DnsResolver.TYPE_A, 2);
+	}
+
+	@Test
+	public void negativeTtlIsTheLowestOfSoaTtlAndMinimum() throws Exception {
+		server.setNegative(HOST, DnsResolver.TYPE_SRV, 0,
+				Rr.soa("example.com", 10, 600));
+
+		assertTrue(resolver.query(HOST, DnsResolver.TYPE_SRV).isEmpty());
+		now += 9000;
+		resolver.query(HOST, DnsResolver.TYPE_SRV);
+		assertEquals(1, server.getQueries(HOST, DnsResolver.TYPE_SRV));
+
+		now += 2000;
+		resolver.query(HOST, DnsResolver.TYPE_SRV);
+		waitForQueries(HOST, DnsResolver.TYPE_SRV, 2);
+	}
+
+	@Test
+	public void noDataWithoutSoaIsCachedForDefaultTtl() throws Exception {
+		assertTrue(resolver.query(HOST, DnsResolver.TYPE_NAPTR).isEmpty());
+		now += 59000;
+		assertTrue(resolver.query(HOST, DnsResolver.TYPE_NAPTR).isEmpty());
+		assertEquals(1, server.getQueries(HOST, DnsResolver.TYPE_NAPTR));
+	}
+
+	@Test
+	public void truncatedAnswerIsQueriedOverTcp() throws Exception {
+		String name = "_sip._udp.example.com";
+		for (int i = 0; i < 3; i++)
+			server.add(Rr.srv(name, 300, 10, 10, 5060, "sip" + i
+					+ ".example.com"));
+		server.setTruncated(name, DnsResolver.TYPE_SRV);
+
+		List<Record> srvs = resolver.query(name, DnsResolver.TYPE_SRV);
+		assertEquals(3, srvs.size());
+		assertEquals(1, server.getUdpQueries(name, DnsResolver.TYPE_SRV));
+		assertEquals(1, server.getTcpQueries(name, DnsResolver.TYPE_SRV));
+	}
+
+	@Test
+	public void compressedNamesAreExpanded() throws Exception {
+		// Owner names, SRV targets and NAPTR replacements are all written
+		// as pointers to the names before them
+		String name = "_sip._udp.example.com";
+		server.add(Rr.srv(name, 300, 10, 20, 5070, "sip1.example.com"));
+		server.add(Rr.srv(name, 300, 20, 30, 5080, "sip1.example.com"));
+		server.add(Rr.naptr("example.com", 300, 10, 20, "s", "SIP+D2U",
+				"_sip._udp.example.com"));
+
+		List<Record> srvs = resolver.query(name, DnsResolver.TYPE_SRV);
+		assertEquals(2, srvs.size());
+		Record srv = srvs.get(1);
+		assertEquals(name, srv.getName());
+		assertEquals("sip1.example.com", srv.getTarget());
+		assertEquals(20, srv.getPriority());
+		assertEquals(30, srv.getWeight());
+		assertEquals(5080, srv.getPort());
+		assertEquals(300, srv.getTtl());
+
+		Record naptr = resolver.query("example.com", DnsResolver.TYPE_NAPTR)
+				.get(0);
+		assertEquals("example.com", naptr.getName());
+		assertEquals(10, naptr.getOrder());
+		assertEquals(20, naptr.getPreference());
+		assertEquals("s", naptr.getFlags());
+		assertEquals("SIP+D2U", naptr.getService());
+		assertEquals(name, naptr.getTarget());
+	}
+
+	@Test
+	public void additionalAddressesAreCached() throws Exception {
+		String name = "_sip._udp.example.com";
+		server.add(Rr.srv(name, 300, 10, 10, 5060, HOST));
+		server.addAdditional(name, DnsResolver.TYPE_SRV,
+				Rr.a(HOST, 300, "192.0.2.1"));
+
+		resolver.query(name, DnsResolver.TYPE_SRV);
+		assertAddresses(resolver.getAddresses(HOST, true), "192.0.2.1");
+		assertEquals(0, server.getQueries(HOST, DnsResolver.TYPE_A));
+	}
+
+	@Test
+	public void ipv6AddressesUnlessOnlyIpv4() throws Exception {
+		server.add(Rr.a(HOST, 300, "192.0.2.1"));
+		server.add(Rr.aaaa(HOST, 300, "2001:db8::1"));
+
+		assertAddresses(resolver.getAddresses(HOST, true), "192.0.2.1");
+		assertAddresses(resolver.getAddresses(HOST, false), "192.0.2.1",
+				"2001:db8::1");
+	}
+
+	private void waitForAddress(String name, String address)
+			throws Exception {
+		InetAddress expected = InetAddress.getByName(address);
+		for (int i = 0; i < 100; i++) {
+			if (resolver.getAddresses(name, true).contains(expected))
+				return;
+			Thread.sleep(20);
+		}
+		assertAddresses(resolver.getAddresses(name, true), address);
+	}
+
+	private void waitForQueries(String name, int type, int queries)
+			throws Exception {
+		for (int i = 0; i < 100 && server.getQueries(name, type) < queries; i++)
+			Thread.sleep(20);
+		assertEquals(queries, server.getQueries(name, type));
+	}
+
+	private static void assertAddresses(List<InetAddress> actual,
+			String... expected) throws Exception {
+		assertEquals(expected.length, actual.size());
+		for (int i = 0; i < expected.length; i++)
+			assertEquals(InetAddress.getByName(expected[i]), actual.get(i));
+	}
+
+}
@@ -0,0 +1,215 @@
+package com.kurento.kas.sip.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.kurento.kas.sip.util.DnsResolver.Record;
+import com.kurento.kas.sip.util.StubDnsServer.Rr;
+
+/**
+ * rfc3263 location against a stub DNS server on loopback.
+ */
+public class SipServerLocatorTest {
+
+	private static final String DOMAIN = "example.com";
+
+	private StubDnsServer server;
+	private DnsResolver resolver;
+	private SipServerLocator locator;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new StubDnsServer();
+		resolver = new DnsResolver(Collections.singletonList(server
+				.getAddress())) {
+			@Override
+			long elapsedRealtime() {
+				return 1000000;
+			}
+		};
+		locator = new SipServerLocator(resolver);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.close();
+	}
+
+	@Test
+	public void naptrOfLowestOrderAndPreference() throws Exception {
+		server.add(Rr.naptr(DOMAIN, 300, 20, 10, "s", "SIP+D2U",
+				"_sip._udp.c.example.com"));
+		server.add(Rr.naptr(DOMAIN, 300, 10, 20, "s", "SIP+D2U",
+				"_sip._udp.b.example.com"));
+		server.add(Rr.naptr(DOMAIN, 300, 10, 10, "s", "SIP+D2U",
+				"_sip._udp.a.example.com"));
+		// Other transport, and not terminal
+		server.add(Rr.naptr(DOMAIN, 300, 5, 5, "s", "SIP+D2T",
+				"_sip._tcp.example.com"));
+		server.add(Rr.naptr(DOMAIN, 300, 5, 5, "", "SIP+D2U",
+				"_sip._udp.z.example.com"));
+		server.add(Rr.srv("_sip._udp.a.example.com", 300, 10, 10, 5070,
+				"sip-a.example.com"));
+		server.add(Rr.a("sip-a.example.com", 300, "192.0.2.1"));
+
+		assertTargets(locator.locate(DOMAIN, "UDP", true), "192.0.2.1:5070");
+	}
+
+	@Test
+	public void naptrServiceOfTheTransport() throws Exception {
+		server.add(Rr.naptr(DOMAIN, 300, 10, 10, "s", "SIP+D2U",
+				"_sip._udp.example.com"));
+		server.add(Rr.naptr(DOMAIN, 300, 20, 10, "s", "SIPS+D2T",
+				"_sips._tcp.example.com"));
+		server.add(Rr.srv("_sips._tcp.example.com", 300, 10, 10, 5071,
+				"sips.example.com"));
+		server.add(Rr.a("sips.example.com", 300, "192.0.2.5"));
+
+		assertTargets(locator.locate(DOMAIN, "TLS", true), "192.0.2.5:5071");
+	}
+
+	@Test
+	public void srvNameOfTheTransportWithoutNaptr() throws Exception {
+		server.add(Rr.srv("_sip._tcp.example.com", 300, 10, 10, 5080,
+				"tcp.example.com"));
+		server.add(Rr.a("tcp.example.com", 300, "192.0.2.8"));
+
+		assertTargets(locator.locate(DOMAIN, "TCP", true), "192.0.2.8:5080");
+		assertEquals(1,
+				server.getQueries("_sip._tcp.example.com", DnsResolver.TYPE_SRV));
+	}
+
+	@Test
+	public void srvByPriority() throws Exception {
+		String name = "_sip._udp.example.com";
+		server.add(Rr.srv(name, 300, 30, 10, 5060, "c.example.com"));
+		server.add(Rr.srv(name, 300, 10, 10, 5060, "a.example.com"));
+		server.add(Rr.srv(name, 300, 20, 10, 5060, "b.example.com"));
+		server.add(Rr.a("a.example.com", 300, "192.0.2.1"));
+		server.add(Rr.a("b.example.com", 300, "192.0.2.2"));
+		server.add(Rr.a("c.example.com", 300, "192.0.2.3"));
+
+		assertTargets(locator.locate(DOMAIN, "UDP", true), "192.0.2.1:5060",
+				"192.0.2.2:5060", "192.0.2.3:5060");
+		assertEquals(Arrays.asList(10, 20, 30), locator.getPriorities());
+	}
+
+	@Test
+	public void srvWeightedSelectionWithinPriority() throws Exception {
+		String name = "_sip._udp.example.com";
+		server.add(Rr.srv(name, 300, 10, 90, 5060, "heavy.example.com"));
+		server.add(Rr.srv(name, 300, 10, 10, 5060, "light.example.com"));
+		server.add(Rr.srv(name, 300, 20, 100, 5060, "backup.example.com"));
+		List<Record> records = resolver.query(name, DnsResolver.TYPE_SRV);
+
+		int heavyFirst = 0;
+		int runs = 2000;
+		for (int i = 0; i < runs; i++) {
+			List<Record> sorted = SipServerLocator.sortSrv(records);
+			assertEquals(3, sorted.size());
+			assertEquals("backup.example.com", sorted.get(2).getTarget());
+			if ("heavy.example.com".equals(sorted.get(0).getTarget()))
+				heavyFirst++;
+		}
+		// 90% expected: rfc2782
+		assertTrue("Heavy first " + heavyFirst + " times", heavyFirst > 0.85
+				* runs && heavyFirst < 0.95 * runs);
+	}
+
+	@Test
+	public void srvWithZeroWeightsAreAllSelected() throws Exception {
+		String name = "_sip._udp.example.com";
+		server.add(Rr.srv(name, 300, 10, 0, 5060, "a.example.com"));
+		server.add(Rr.srv(name, 300, 10, 0, 5060, "b.example.com"));
+		List<Record> records = resolver.query(name, DnsResolver.TYPE_SRV);
+
+		int aFirst = 0;
+		int runs = 200;
+		for (int i = 0; i < runs; i++) {
+			if ("a.example.com".equals(SipServerLocator.sortSrv(records)
+					.get(0).getTarget()))
+				aFirst++;
+		}
+		assertTrue("a first " + aFirst + " times", aFirst > 0 && aFirst < runs);
+	}
+
+	@Test
+	public void srvDotTargetMeansNoService() throws Exception {
+		server.add(Rr.srv("_sip._udp.example.com", 300, 0, 0, 0, "."));
+		server.add(Rr.a(DOMAIN, 300, "192.0.2.9"));
+
+		assertTrue(locator.locate(DOMAIN, "UDP", true).isEmpty());
+		assertEquals(0, server.getQueries(DOMAIN, DnsResolver.TYPE_A));
+	}
+
+	@Test
+	public void addressRecordsWithoutSrv() throws Exception {
+		server.add(Rr.a(DOMAIN, 300, "192.0.2.1"));
+		server.add(Rr.aaaa(DOMAIN, 300, "2001:db8::1"));
+
+		assertTargets(locator.locate(DOMAIN, "UDP", true), "192.0.2.1:5060");
+		assertTargets(locator.locate(DOMAIN, "UDP", false), "192.0.2.1:5060",
+				"[2001:db8::1]:5060");
+		assertEquals(Arrays.asList(0, 0), locator.getPriorities());
+		assertTargets(locator.locate(DOMAIN, "TLS", true), "192.0.2.1:5061");
+	}
+
+	@Test
+	public void ipAddressIsNotLookedUp() throws Exception {
+		assertTargets(locator.locate("192.0.2.1", "UDP", true),
+				"192.0.2.1:5060");
+		assertEquals(-1, locator.getTtl());
+		assertEquals(0, resolver.getQueryCount());
+	}
+
+	@Test
+	public void ttlIsTheLowestOfTheRecordsUsed() throws Exception {
+		String name = "_sip._udp.example.com";
+		server.add(Rr.srv(name, 600, 10, 10, 5060, "a.example.com"));
+		server.add(Rr.a("a.example.com", 120, "192.0.2.1"));
+
+		locator.locate(DOMAIN, "UDP", true);
+		assertEquals(120, locator.getTtl());
+
+		server.add(Rr.a("b.example.com", 30, "192.0.2.2"));
+		assertTargets(locator.locateHost("b.example.com", 5090, true),
+				"192.0.2.2:5090");
+		assertEquals(30, locator.getTtl());
+	}
+
+	private static void assertTargets(List<InetSocketAddress> actual,
+			String... expected) throws Exception {
+		List<String> list = new ArrayList<String>();
+		for (InetSocketAddress a : actual) {
+			InetAddress address = a.getAddress();
+			String host = address.getHostAddress();
+			if (host.indexOf(':') >= 0)
+				host = "[" + InetAddress.getByAddress(address.getAddress())
+						.getHostAddress() + "]";
+			list.add(host + ":" + a.getPort());
+		}
+		List<String> normalized = new ArrayList<String>();
+		for (String e : expected) {
+			if (e.startsWith("[")) {
+				int end = e.indexOf(']');
+				e = "["
+						+ InetAddress.getByName(e.substring(1, end))
+								.getHostAddress() + e.substring(end);
+			}
+			normalized.add(e);
+		}
+		assertEquals(normalized, list);
+	}
+
+}
@@ -0,0 +1,412 @@
+package com.kurento.kas.sip.util;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DNS server on the loopback interface, UDP and TCP on the same port, that
+ * answers from the records given by the test. Names are compressed in the
+ * answers wherever possible (rfc1035 4.1.4).
+ */
+class StubDnsServer {
+
+	private final DatagramSocket udp;
+	private final ServerSocket tcp;
+	private final Map<String, Answer> zone = new ConcurrentHashMap<String, Answer>();
+	private final Map<String, AtomicInteger> udpQueries = new ConcurrentHashMap<String, AtomicInteger>();
+	private final Map<String, AtomicInteger> tcpQueries = new ConcurrentHashMap<String, AtomicInteger>();
+	private volatile boolean closed = false;
+
+	StubDnsServer() throws IOException {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		DatagramSocket u = null;
+		ServerSocket t = null;
+		for (int i = 0; t == null; i++) {
+			u = new DatagramSocket(0, loopback);
+			try {
+				t = new ServerSocket(u.getLocalPort(), 5, loopback);
+			} catch (IOException e) {
+				u.close();
+				if (i == 10)
+					throw e;
+			}
+		}
+		udp = u;
+		tcp = t;
+
+		Thread udpThread = new Thread("Stub DNS UDP") {
+			@Override
+			public void run() {
+				serveUdp();
+			}
+		};
+		udpThread.setDaemon(true);
+		udpThread.start();
+
+		Thread tcpThread = new Thread("Stub DNS TCP") {
+			@Override
+			public void run() {
+				serveTcp();
+			}
+		};
+		tcpThread.setDaemon(true);
+		tcpThread.start();
+	}
+
+	InetSocketAddress getAddress() {
+		return new InetSocketAddress(udp.getLocalAddress(), udp.getLocalPort());
+	}
+
+	void close() throws IOException {
+		closed = true;
+		udp.close();
+		tcp.close();
+	}
+
+	/**
+	 * Answer the record to queries of its name and type.
+	 */
+	void add(Rr rr) {
+		getAnswer(rr.name, rr.type).answers.add(rr);
+	}
+
+	/**
+	 * Add the record to the additional section of answers to the query.
+	 */
+	void addAdditional(String name, int type, Rr rr) {
+		getAnswer(name, type).additional.add(rr);
+	}
+
+	/**
+	 * Answer the query with the rcode and the SOA in the authority section,
+	 * e.g. NXDOMAIN.
+	 */
+	void setNegative(String name, int type, int rcode, Rr soa) {
+		Answer a = getAnswer(name, type);
+		a.rcode = rcode;
+		a.soa = soa;
+	}
+
+	/**
+	 * Answer the query over UDP truncated, without records.
+	 */
+	void setTruncated(String name, int type) {
+		getAnswer(name, type).truncated = true;
+	}
+
+	void remove(String name, int type) {
+		zone.remove(key(name, type));
+	}
+
+	int getUdpQueries(String name, int type) {
+		AtomicInteger n = udpQueries.get(key(name, type));
+		return n == null ? 0 : n.get();
+	}
+
+	int getTcpQueries(String name, int type) {
+		AtomicInteger n = tcpQueries.get(key(name, type));
+		return n == null ? 0 : n.get();
+	}
+
+	int getQueries(String name, int type) {
+		return getUdpQueries(name, type) + getTcpQueries(name, type);
+	}
+
+	private synchronized Answer getAnswer(String name, int type) {
+		String key = key(name, type);
+		Answer a = zone.get(key);
+		if (a == null) {
+			a = new Answer();
+			zone.put(key, a);
+		}
+		return a;
+	}
+
+	private static String key(String name, int type) {
+		return type + ":" + name.toLowerCase();
+	}
+
+	private void serveUdp() {
+		byte[] buf = new byte[512];
+		while (!closed) {
+			try {
+				DatagramPacket p = new DatagramPacket(buf, buf.length);
+				udp.receive(p);
+				byte[] response = respond(buf, true);
+				udp.send(new DatagramPacket(response, response.length, p
+						.getSocketAddress()));
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+	}
+
+	private void serveTcp() {
+		while (!closed) {
+			try {
+				Socket s = tcp.accept();
+				try {
+					DataInputStream in = new DataInputStream(s.getInputStream());
+					byte[] query = new byte[in.readUnsignedShort()];
+					in.readFully(query);
+					byte[] response = respond(query, false);
+					OutputStream out = s.getOutputStream();
+					out.write(response.length >> 8);
+					out.write(response.length);
+					out.write(response);
+					out.flush();
+				} finally {
+					s.close();
+				}
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+	}
+
+	private byte[] respond(byte[] query, boolean overUdp) {
+		int id = readShort(query, 0);
+		StringBuilder sb = new StringBuilder();
+		int pos = 12;
+		while (query[pos] != 0) {
+			int len = query[pos];
+			if (sb.length() > 0)
+				sb.append('.');
+			sb.append(new String(query, pos + 1, len));
+			pos += 1 + len;
+		}
+		String name = sb.toString();
+		int type = readShort(query, pos + 1);
+
+		Map<String, AtomicInteger> counters = overUdp ? udpQueries
+				: tcpQueries;
+		synchronized (counters) {
+			AtomicInteger n = counters.get(key(name, type));
+			if (n == null)
+				counters.put(key(name, type), n = new AtomicInteger());
+			n.incrementAndGet();
+		}
+
+		Answer a = zone.get(key(name, type));
+		if (a == null)
+			a = new Answer(); // NODATA without SOA
+		boolean truncated = overUdp && a.truncated;
+		List<Rr> answers = truncated ? new ArrayList<Rr>() : a.answers;
+		List<Rr> additional = truncated ? new ArrayList<Rr>() : a.additional;
+		Rr soa = truncated ? null : a.soa;
+
+		Message m = new Message();
+		m.writeShort(id);
+		m.writeShort(0x8180 | (truncated ? 0x0200 : 0) | a.rcode);
+		m.writeShort(1);
+		m.writeShort(answers.size());
+		m.writeShort(soa == null ? 0 : 1);
+		m.writeShort(additional.size());
+		m.writeName(name);
+		m.writeShort(type);
+		m.writeShort(1);
+		for (Rr rr : answers)
+			m.writeRecord(rr);
+		if (soa != null)
+			m.writeRecord(soa);
+		for (Rr rr : additional)
+			m.writeRecord(rr);
+		return m.toByteArray();
+	}
+
+	private static int readShort(byte[] buf, int offset) {
+		return ((buf[offset] & 0xFF) << 8) | (buf[offset + 1] & 0xFF);
+	}
+
+	private static class Answer {
+		private final List<Rr> answers = new ArrayList<Rr>();
+		private final List<Rr> additional = new ArrayList<Rr>();
+		private Rr soa;
+		private int rcode = 0;
+		private boolean truncated = false;
+	}
+
+	/**
+	 * Resource record to answer.
+	 */
+	static class Rr {
+
+		private final String name;
+		private final int type;
+		private final long ttl;
+
+		private byte[] address;
+		private int priority, weight, port;
+		private int order, preference;
+		private String flags, service;
+		private String target;
+		private long minimum;
+
+		private Rr(String name, int type, long ttl) {
+			this.name = name;
+			this.type = type;
+			this.ttl = ttl;
+		}
+
+		static Rr a(String name, long ttl, String address) throws IOException {
+			Rr rr = new Rr(name, DnsResolver.TYPE_A, ttl);
+			rr.address = InetAddress.getByName(address).getAddress();
+			return rr;
+		}
+
+		static Rr aaaa(String name, long ttl, String address)
+				throws IOException {
+			Rr rr = new Rr(name, DnsResolver.TYPE_AAAA, ttl);
+			rr.address = InetAddress.getByName(address).getAddress();
+			return rr;
+		}
+
+		static Rr srv(String name, long ttl, int priority, int weight,
+				int port, String target) {
+			Rr rr = new Rr(name, DnsResolver.TYPE_SRV, ttl);
+			rr.priority = priority;
+			rr.weight = weight;
+			rr.port = port;
+			rr.target = target;
+			return rr;
+		}
+
+		static Rr naptr(String name, long ttl, int order, int preference,
+				String flags, String service, String replacement) {
+			Rr rr = new Rr(name, DnsResolver.TYPE_NAPTR, ttl);
+			rr.order = order;
+			rr.preference = preference;
+			rr.flags = flags;
+			rr.service = service;
+			rr.target = replacement;
+			return rr;
+		}
+
+		static Rr soa(String name, long ttl, long minimum) {
+			Rr rr = new Rr(name, DnsResolver.TYPE_SOA, ttl);
+			rr.minimum = minimum;
+			return rr;
+		}
+	}
+
+	/*
+	 * Message being written, with the offset of every name suffix written
+	 * so far for compression
+	 */
+	private static class Message {
+
+		private byte[] buf = new byte[512];
+		private int size = 0;
+		private final Map<String, Integer> suffixes = new HashMap<String, Integer>();
+
+		private void writeByte(int b) {
+			if (size == buf.length) {
+				byte[] bigger = new byte[2 * buf.length];
+				System.arraycopy(buf, 0, bigger, 0, size);
+				buf = bigger;
+			}
+			buf[size++] = (byte) b;
+		}
+
+		private void writeShort(int value) {
+			writeByte(value >> 8);
+			writeByte(value);
+		}
+
+		private void writeInt(long value) {
+			writeShort((int) (value >> 16) & 0xFFFF);
+			writeShort((int) value & 0xFFFF);
+		}
+
+		private void writeString(String s) {
+			writeByte(s.length());
+			for (int i = 0; i < s.length(); i++)
+				writeByte(s.charAt(i));
+		}
+
+		private void writeName(String name) {
+			String n = name.endsWith(".") ? name.substring(0,
+					name.length() - 1) : name;
+			while (n.length() > 0) {
+				Integer pointer = suffixes.get(n.toLowerCase());
+				if (pointer != null) {
+					writeShort(0xC000 | pointer);
+					return;
+				}
+				if (size < 0x4000)
+					suffixes.put(n.toLowerCase(), size);
+
+				int dot = n.indexOf('.');
+				writeString(dot < 0 ? n : n.substring(0, dot));
+				n = dot < 0 ? "" : n.substring(dot + 1);
+			}
+			writeByte(0);
+		}
+
+		private void writeRecord(Rr rr) {
+			writeName(rr.name);
+			writeShort(rr.type);
+			writeShort(1);
+			writeInt(rr.ttl);
+			int rdlength = size;
+			writeShort(0);
+
+			switch (rr.type) {
+			case DnsResolver.TYPE_A:
+			case DnsResolver.TYPE_AAAA:
+				for (byte b : rr.address)
+					writeByte(b);
+				break;
+			case DnsResolver.TYPE_SRV:
+				writeShort(rr.priority);
+				writeShort(rr.weight);
+				writeShort(rr.port);
+				writeName(rr.target);
+				break;
+			case DnsResolver.TYPE_NAPTR:
+				writeShort(rr.order);
+				writeShort(rr.preference);
+				writeString(rr.flags);
+				writeString(rr.service);
+				writeString("");
+				writeName(rr.target);
+				break;
+			case DnsResolver.TYPE_SOA:
+				writeName("ns." + rr.name);
+				writeName("hostmaster." + rr.name);
+				writeInt(1); // serial
+				writeInt(3600); // refresh
+				writeInt(600); // retry
+				writeInt(86400); // expire
+				writeInt(rr.minimum);
+				break;
+			default:
+				throw new IllegalArgumentException("Type " + rr.type);
+			}
+
+			int length = size - rdlength - 2;
+			buf[rdlength] = (byte) (length >> 8);
+			buf[rdlength + 1] = (byte) length;
+		}
+
+		private byte[] toByteArray() {
+			byte[] message = new byte[size];
+			System.arraycopy(buf, 0, message, 0, size);
+			return message;
+		}
+	}
+
+}
@@ -0,0 +1,358 @@
+package com.kurento.kas.sip.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * StunClient against a STUN server stub on the loopback interface. The client
+ * socket is a {@link StunDatagramSocket} read by a thread standing in for the
+ * SIP stack.
+ */
+public class StunClientTest {
+
+	private static final InetSocketAddress MAPPED_V4 = mapped("203.0.113.7",
+			40000);
+	private static final InetSocketAddress MAPPED_V6 = mapped(
+			"2001:db8::1:2:3", 50123);
+
+	private StubServer server;
+	private StunDatagramSocket socket;
+	private StunClient client;
+	private Thread reader;
+	private final BlockingQueue<byte[]> notStun = new LinkedBlockingQueue<byte[]>();
+	private final BlockingQueue<InetSocketAddress> responses = new LinkedBlockingQueue<InetSocketAddress>();
+
+	@Before
+	public void setUp() throws Exception {
+		server = new StubServer();
+		socket = new StunDatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		client = socket.getStunClient();
+		client.setListener(new StunClient.Listener() {
+			@Override
+			public void onBindingResponse(InetSocketAddress server,
+					InetSocketAddress mapped, long rtt) {
+				responses.add(mapped);
+			}
+		});
+
+		// What the SIP stack would do: only non STUN packets come out
+		reader = new Thread() {
+			@Override
+			public void run() {
+				byte[] buf = new byte[1500];
+				while (!socket.isClosed()) {
+					DatagramPacket p = new DatagramPacket(buf, buf.length);
+					try {
+						socket.receive(p);
+					} catch (IOException e) {
+						return;
+					}
+					notStun.add(Arrays.copyOfRange(p.getData(), p.getOffset(),
+							p.getOffset() + p.getLength()));
+				}
+			}
+		};
+		reader.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		socket.close();
+		server.close();
+		reader.join(1000);
+	}
+
+	@Test
+	public void xorMappedAddress() throws Exception {
+		client.sendBindingRequest(server.getAddress());
+		DatagramPacket request = server.receive();
+		assertEquals(StunClient.BINDING_REQUEST, readShort(request.getData(), 0));
+
+		server.reply(request, response(request.getData(), null, MAPPED_V4));
+		assertEquals(MAPPED_V4, responses.poll(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void mappedAddressOfOldServers() throws Exception {
+		client.sendBindingRequest(server.getAddress());
+		DatagramPacket request = server.receive();
+
+		server.reply(request, response(request.getData(), MAPPED_V4, null));
+		assertEquals(MAPPED_V4, responses.poll(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void xorMappedAddressWinsOverMappedAddress() throws Exception {
+		client.sendBindingRequest(server.getAddress());
+		DatagramPacket request = server.receive();
+
+		server.reply(request, response(request.getData(),
+				mapped("198.51.100.1", 1), MAPPED_V4));
+		assertEquals(MAPPED_V4, responses.poll(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void ipv6XorMappedAddress() throws Exception {
+		client.sendBindingRequest(server.getAddress());
+		DatagramPacket request = server.receive();
+
+		server.reply(request, response(request.getData(), null, MAPPED_V6));
+		assertEquals(MAPPED_V6, responses.poll(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void bindRetransmitsUntilResponse() throws Exception {
+		Thread responder = new Thread() {
+			@Override
+			public void run() {
+				try {
+					DatagramPacket first = server.receive();
+					DatagramPacket second = server.receive();
+					// Same transaction retransmitted
+					assertArrayEquals(
+							Arrays.copyOf(first.getData(), first.getLength()),
+							Arrays.copyOf(second.getData(), second.getLength()));
+					server.reply(second,
+							response(second.getData(), null, MAPPED_V4));
+				} catch (Exception e) {
+					// bind() times out and the test fails
+				}
+			}
+		};
+		responder.start();
+
+		assertEquals(MAPPED_V4, client.bind(server.getAddress(), 3000));
+		responder.join(1000);
+	}
+
+	@Test
+	public void bindTimesOut() throws Exception {
+		long start = System.currentTimeMillis();
+		assertNull(client.bind(server.getAddress(), 600));
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("Returned after " + elapsed + " ms", elapsed >= 600
+				&& elapsed < 1500);
+
+		// Sent at once and retransmitted after the initial RTO
+		assertNotNull(server.receive());
+		assertNotNull(server.receive());
+	}
+
+	@Test
+	public void lateResponseAfterTimeoutIsDiscarded() throws Exception {
+		assertNull(client.bind(server.getAddress(), 300));
+		DatagramPacket request = server.receive();
+
+		server.reply(request, response(request.getData(), null, MAPPED_V4));
+		assertNull(responses.poll(300, TimeUnit.MILLISECONDS));
+		assertTrue(notStun.isEmpty());
+	}
+
+	@Test
+	public void unknownTransactionIsDiscarded() throws Exception {
+		byte[] request = StunClient.createBindingRequest(StunClient
+				.newTransactionId());
+		byte[] response = response(request, null, MAPPED_V4);
+
+		assertTrue(client.onPacket(response, 0, response.length));
+		assertNull(responses.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void sipPayloadsAreNotStun() throws Exception {
+		byte[][] payloads = new byte[][] {
+				bytes("SIP/2.0 200 OK\r\nVia: SIP/2.0/UDP 127.0.0.1\r\n\r\n"),
+				bytes("REGISTER sip:example.com SIP/2.0\r\n\r\n"),
+				bytes("\r\n\r\n"), bytes("\r\n"),
+				// CRLF keep alives padded to a STUN header size
+				bytes("\r\n\r\n\r\n\r\n\r\n\r\n\r\n\r\n\r\n\r\n") };
+		for (byte[] payload : payloads) {
+			assertFalse(StunClient.isStunMessage(payload, 0, payload.length));
+			assertFalse(client.onPacket(payload, 0, payload.length));
+		}
+
+		// They reach the reader of the socket
+		for (byte[] payload : payloads) {
+			server.send(payload, socket.getLocalPort());
+			assertArrayEquals(payload, notStun.poll(1, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	public void truncatedStunIsNotStun() {
+		byte[] request = StunClient.createBindingRequest(StunClient
+				.newTransactionId());
+		byte[] response = response(request, null, MAPPED_V4);
+		assertTrue(StunClient.isStunMessage(response, 0, response.length));
+		assertFalse(StunClient.isStunMessage(response, 0, response.length - 1));
+		assertFalse(StunClient.isStunMessage(response, 0, 19));
+	}
+
+	@Test
+	public void discoverOnUnsharedSocket() throws Exception {
+		Thread responder = new Thread() {
+			@Override
+			public void run() {
+				try {
+					DatagramPacket request = server.receive();
+					server.reply(request,
+							response(request.getData(), null, MAPPED_V4));
+				} catch (Exception e) {
+					// discover() times out and the test fails
+				}
+			}
+		};
+		responder.start();
+
+		DatagramSocket plain = new DatagramSocket(0,
+				InetAddress.getByName("127.0.0.1"));
+		try {
+			assertEquals(MAPPED_V4,
+					StunClient.discover(plain, server.getAddress(), 2000));
+		} finally {
+			plain.close();
+		}
+		responder.join(1000);
+	}
+
+	@Test
+	public void parseServer() throws Exception {
+		InetSocketAddress a = StunClient.parseServer(" stun.example.com ");
+		assertEquals("stun.example.com", a.getHostName());
+		assertEquals(StunClient.DEFAULT_PORT, a.getPort());
+		assertTrue(a.isUnresolved());
+
+		a = StunClient.parseServer("stun.example.com:19302");
+		assertEquals("stun.example.com", a.getHostName());
+		assertEquals(19302, a.getPort());
+
+		// IPv6 literals carry no port
+		a = StunClient.parseServer("2001:db8::1");
+		assertEquals("2001:db8::1", a.getHostName());
+		assertEquals(StunClient.DEFAULT_PORT, a.getPort());
+	}
+
+	/*
+	 * Binding success response to the request, with MAPPED-ADDRESS and then
+	 * XOR-MAPPED-ADDRESS when given
+	 */
+	private static byte[] response(byte[] request, InetSocketAddress mapped,
+			InetSocketAddress xorMapped) {
+		byte[] buf = new byte[StunClient.HEADER_SIZE + 2 * 24];
+		int pos = StunClient.HEADER_SIZE;
+		if (mapped != null)
+			pos = writeAddress(buf, pos, StunClient.ATTR_MAPPED_ADDRESS,
+					mapped, null);
+		if (xorMapped != null)
+			pos = writeAddress(buf, pos, StunClient.ATTR_XOR_MAPPED_ADDRESS,
+					xorMapped, request);
+
+		writeShort(buf, 0, StunClient.BINDING_RESPONSE);
+		writeShort(buf, 2, pos - StunClient.HEADER_SIZE);
+		System.arraycopy(request, 4, buf, 4, 16); // Cookie and transaction
+		return Arrays.copyOf(buf, pos);
+	}
+
+	private static int writeAddress(byte[] buf, int pos, int type,
+			InetSocketAddress address, byte[] mask) {
+		byte[] a = address.getAddress().getAddress();
+		int port = address.getPort();
+		if (mask != null) {
+			port ^= readShort(mask, 4);
+			for (int i = 0; i < a.length; i++)
+				a[i] ^= mask[4 + i];
+		}
+
+		writeShort(buf, pos, type);
+		writeShort(buf, pos + 2, 4 + a.length);
+		buf[pos + 4] = 0;
+		buf[pos + 5] = (byte) (a.length == 4 ? 0x01 : 0x02);
+		writeShort(buf, pos + 6, port);
+		System.arraycopy(a, 0, buf, pos + 8, a.length);
+		return pos + 8 + a.length;
+	}
+
+	private static int readShort(byte[] buf, int offset) {
+		return ((buf[offset] & 0xFF) << 8) | (buf[offset + 1] & 0xFF);
+	}
+
+	private static void writeShort(byte[] buf, int offset, int value) {
+		buf[offset] = (byte) (value >> 8);
+		buf[offset + 1] = (byte) value;
+	}
+
+	private static byte[] bytes(String s) {
+		try {
+			return s.getBytes("US-ASCII");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static InetSocketAddress mapped(String address, int port) {
+		try {
+			return new InetSocketAddress(InetAddress.getByName(address), port);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * STUN server that hands the requests received to the test
+	 */
+	private static class StubServer {
+
+		private final DatagramSocket socket;
+
+		private StubServer() throws SocketException, IOException {
+			socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+			socket.setSoTimeout(2000);
+		}
+
+		private InetSocketAddress getAddress() {
+			return new InetSocketAddress(socket.getLocalAddress(),
+					socket.getLocalPort());
+		}
+
+		private DatagramPacket receive() throws IOException {
+			DatagramPacket p = new DatagramPacket(new byte[1500], 1500);
+			socket.receive(p);
+			return p;
+		}
+
+		private void reply(DatagramPacket request, byte[] response)
+				throws IOException {
+			socket.send(new DatagramPacket(response, response.length, request
+					.getSocketAddress()));
+		}
+
+		private void send(byte[] data, int port) throws IOException {
+			socket.send(new DatagramPacket(data, data.length, socket
+					.getLocalAddress(), port));
+		}
+
+		private void close() {
+			socket.close();
+		}
+	}
+
+}